@@ -0,0 +1,44 @@
+package ru.elomonosov.benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks. With arguments it is the usual JMH command line, e.g. "CacheBenchmark.get -t 8 -p workload=ZIPFIAN".
+ * Without arguments it runs the level benchmarks, then the cache benchmarks with 1, 2, 4 ... threads
+ * up to the quantity of processors. Results are written to the JSON files of every run.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder()
+                .include(LevelBenchmark.class.getSimpleName())
+                .result("levels.json")
+                .resultFormat(ResultFormatType.JSON)
+                .build()).run();
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            Options options = new OptionsBuilder()
+                    .include(CacheBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .result("cache-" + threads + "-threads.json")
+                    .resultFormat(ResultFormatType.JSON)
+                    .build();
+            new Runner(options).run();
+            if (threads == maxThreads) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ru.elomonosov.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+import ru.elomonosov.cache.*;
+
+import java.util.LinkedHashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Get and put of the whole cache, shared by all threads of the benchmark. The cache has as many segments
+ * as there are processors. Run it with the different quantities of threads, see {@link BenchmarkRunner}.
+ * The mixed group reads by three threads and writes by one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    @Param({"LEAST_RECENTLY_USED", "RANDOM", "TINY_LFU"})
+    public CacheStrategy strategy;
+
+    /**
+     * Levels of the cache, every level keeps the half of the stored items.
+     */
+    @Param({"MEMORY", "MEMORY,FILE"})
+    public String levels;
+
+    @Param({"UNIFORM", "ZIPFIAN", "MISS", "SCAN"})
+    public Workload workload;
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"10000"})
+    public int size;
+
+    private Cache cache;
+    private byte[][] data;
+
+    /**
+     * Requested ids of the thread. Every thread has its own sequence of the same workload.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+
+        private long[] keys;
+        private int position;
+
+        @Setup(Level.Trial)
+        public void setUp(CacheBenchmark benchmark, ThreadParams threadParams) {
+            keys = benchmark.workload.keys(benchmark.size, LevelBenchmark.KEY_SEQUENCE_LENGTH,
+                    new SplittableRandom(threadParams.getThreadIndex()));
+        }
+
+        long next() {
+            return keys[position++ & (LevelBenchmark.KEY_SEQUENCE_LENGTH - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheException, CacheFactoryException {
+        String[] levelNames = levels.split(",");
+        LinkedHashMap<ru.elomonosov.level.Level, Integer> levelList = new LinkedHashMap<>();
+        for (String levelName : levelNames) {
+            levelList.put(ru.elomonosov.level.Level.valueOf(levelName), size / levelNames.length);
+        }
+        CacheSettings settings = new CacheSettings();
+        settings.setConcurrencyLevel(Runtime.getRuntime().availableProcessors());
+        settings.setSerializer(Payload.serializer());
+        cache = CacheFactory.getInstance().getCache(strategy, levelList, settings);
+        data = new byte[LevelBenchmark.DATA_POOL_SIZE][];
+        for (int i = 0; i < LevelBenchmark.DATA_POOL_SIZE; i++) {
+            data[i] = Payload.of(i, payloadSize).data();
+        }
+        for (long id = 0; id < size; id++) {
+            cache.put(payload(id));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws CacheException {
+        cache.close();
+    }
+
+    @Benchmark
+    public Cacheable get(Keys keys) throws CacheException {
+        return cache.get(keys.next());
+    }
+
+    @Benchmark
+    public void put(Keys keys) throws CacheException {
+        cache.put(payload(keys.next()));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Cacheable mixedGet(Keys keys) throws CacheException {
+        return cache.get(keys.next());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedPut(Keys keys) throws CacheException {
+        cache.put(payload(keys.next()));
+    }
+
+    private Payload payload(long id) {
+        return new Payload(id, data[(int) (id % LevelBenchmark.DATA_POOL_SIZE)]);
+    }
+}
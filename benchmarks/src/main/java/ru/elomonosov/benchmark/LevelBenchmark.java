@@ -0,0 +1,101 @@
+package ru.elomonosov.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.elomonosov.cache.CacheStrategy;
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.level.CacheLevel;
+import ru.elomonosov.level.CacheLevelException;
+import ru.elomonosov.level.InFileLevel;
+import ru.elomonosov.level.InMemoryLevel;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Get and put of one level without the segment. Levels are not thread safe, so every thread has its own level.
+ * Put displaces the item by the strategy when the level is full, as the segment does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class LevelBenchmark {
+
+    static final int KEY_SEQUENCE_LENGTH = 1 << 16;
+    static final int DATA_POOL_SIZE = 256; // items share the data arrays, so the heap keeps the level, not the test data
+
+    @Param({"MEMORY", "FILE"})
+    public String level;
+
+    @Param({"LEAST_RECENTLY_USED", "RANDOM"})
+    public CacheStrategy strategy;
+
+    @Param({"UNIFORM", "ZIPFIAN", "MISS", "SCAN"})
+    public Workload workload;
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"10000"})
+    public int size;
+
+    private CacheLevel cacheLevel;
+    private byte[][] data;
+    private long[] keys;
+    private int position;
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheLevelException {
+        switch (level) {
+            case "MEMORY": {
+                cacheLevel = new InMemoryLevel(strategy, size, 0);
+                break;
+            }
+            case "FILE": {
+                cacheLevel = new InFileLevel(strategy, size, 0, Payload.serializer());
+                break;
+            }
+            default: {
+                throw new IllegalArgumentException("Unknown level " + level);
+            }
+        }
+        data = new byte[DATA_POOL_SIZE][];
+        for (int i = 0; i < DATA_POOL_SIZE; i++) {
+            data[i] = Payload.of(i, payloadSize).data();
+        }
+        for (long id = 0; id < size; id++) {
+            cacheLevel.put(payload(id));
+        }
+        keys = workload.keys(size, KEY_SEQUENCE_LENGTH, new SplittableRandom(42));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws CacheLevelException {
+        cacheLevel.close();
+    }
+
+    @Benchmark
+    public Cacheable get() throws CacheLevelException {
+        return cacheLevel.get(nextKey());
+    }
+
+    @Benchmark
+    public void put() throws CacheLevelException {
+        long id = nextKey();
+        if (!cacheLevel.mightContain(id) && cacheLevel.isFull()) {
+            cacheLevel.pullByStrategy();
+        }
+        cacheLevel.put(payload(id));
+    }
+
+    private long nextKey() {
+        return keys[position++ & (KEY_SEQUENCE_LENGTH - 1)];
+    }
+
+    private Payload payload(long id) {
+        return new Payload(id, data[(int) (id % DATA_POOL_SIZE)]);
+    }
+}
@@ -0,0 +1,69 @@
+package ru.elomonosov.benchmark;
+
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.serializer.BinarySerializer;
+import ru.elomonosov.serializer.CacheCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Item of the benchmarks: id and the data of the specified size.
+ */
+public final class Payload implements Cacheable {
+
+    private static final CacheCodec<Payload> CODEC = new CacheCodec<Payload>() {
+        @Override
+        public void write(Payload payload, DataOutput out) throws IOException {
+            out.writeLong(payload.id);
+            out.writeInt(payload.data.length);
+            out.write(payload.data);
+        }
+
+        @Override
+        public Payload read(DataInput in) throws IOException {
+            long id = in.readLong();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new Payload(id, data);
+        }
+    };
+
+    private final long id;
+    private final byte[] data;
+
+    Payload(long id, byte[] data) {
+        this.id = id;
+        this.data = data;
+    }
+
+    /**
+     * @return item with the data that is filled by the id, so it is not compressed better than the real data.
+     */
+    static Payload of(long id, int size) {
+        byte[] data = new byte[size];
+        long seed = id * 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < size; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            data[i] = (byte) (seed >>> 56);
+        }
+        return new Payload(id, data);
+    }
+
+    /**
+     * @return serializer that writes the payload by the codec, without the java serialization.
+     */
+    static BinarySerializer serializer() {
+        return new BinarySerializer().register(1, Payload.class, CODEC);
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    byte[] data() {
+        return data;
+    }
+}
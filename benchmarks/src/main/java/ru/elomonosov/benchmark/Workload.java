@@ -0,0 +1,92 @@
+package ru.elomonosov.benchmark;
+
+import java.util.SplittableRandom;
+
+/**
+ * Sequence of the requested ids. The benchmark stores the ids from 0 to the key count before the measurement,
+ * so the workload decides which part of the requests finds the item.
+ */
+public enum Workload {
+
+    /**
+     * Every stored id is requested with the same probability.
+     */
+    UNIFORM {
+        @Override
+        long[] keys(int keyCount, int length, SplittableRandom random) {
+            long[] result = new long[length];
+            for (int i = 0; i < length; i++) {
+                result[i] = random.nextInt(keyCount);
+            }
+            return result;
+        }
+    },
+
+    /**
+     * Stored ids are requested by the Zipfian distribution (skew 0.99), the smaller id is the more popular one.
+     */
+    ZIPFIAN {
+        @Override
+        long[] keys(int keyCount, int length, SplittableRandom random) {
+            double theta = 0.99;
+            double zeta2 = 1 + Math.pow(0.5, theta);
+            double zetaN = 0;
+            for (int i = 1; i <= keyCount; i++) {
+                zetaN += 1 / Math.pow(i, theta);
+            }
+            double alpha = 1 / (1 - theta);
+            double eta = (1 - Math.pow(2.0 / keyCount, 1 - theta)) / (1 - zeta2 / zetaN);
+            long[] result = new long[length];
+            for (int i = 0; i < length; i++) { // Gray et al., "Quickly generating billion-record synthetic databases"
+                double u = random.nextDouble();
+                double uz = u * zetaN;
+                long key;
+                if (uz < 1) {
+                    key = 0;
+                } else if (uz < zeta2) {
+                    key = 1;
+                } else {
+                    key = (long) (keyCount * Math.pow(eta * u - eta + 1, alpha));
+                }
+                result[i] = Math.min(key, keyCount - 1);
+            }
+            return result;
+        }
+    },
+
+    /**
+     * 90% of the requests ask for the ids that were never stored.
+     */
+    MISS {
+        @Override
+        long[] keys(int keyCount, int length, SplittableRandom random) {
+            long[] result = new long[length];
+            for (int i = 0; i < length; i++) {
+                result[i] = (random.nextInt(10) == 0) ? random.nextInt(keyCount) : keyCount + random.nextInt(keyCount * 9);
+            }
+            return result;
+        }
+    },
+
+    /**
+     * Ids are requested one by one, the scanned range is twice as large as the stored one.
+     */
+    SCAN {
+        @Override
+        long[] keys(int keyCount, int length, SplittableRandom random) {
+            long[] result = new long[length];
+            long start = random.nextInt(keyCount * 2);
+            for (int i = 0; i < length; i++) {
+                result[i] = (start + i) % (keyCount * 2L);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * @param keyCount quantity of the stored ids.
+     * @param length   quantity of the requests, the benchmark repeats them cyclically.
+     * @return requested ids.
+     */
+    abstract long[] keys(int keyCount, int length, SplittableRandom random);
+}
@@ -0,0 +1,18 @@
+package ru.elomonosov.cache;
+
+/**
+ * Admission to the blocking level of one segment, see {@link AdmissionPolicy}.
+ */
+public interface AdmissionFilter {
+
+    /**
+     * Records the put of the item or the hit on it.
+     */
+    void record(long id);
+
+    /**
+     * @return true if the item displaced from the memory level should be written to the blocking level,
+     * false if it should be lost.
+     */
+    boolean admit(long id);
+}
@@ -0,0 +1,15 @@
+package ru.elomonosov.cache;
+
+/**
+ * Decides which items displaced from the memory levels are written to the blocking level below them
+ * (file, memory mapped or write-behind). Items that are unlikely to be read again are lost instead of serialized.
+ * Every segment has its own filter created by the policy.
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * @param capacity quantity of items that the segment can keep.
+     * @return filter of one segment. It is used under the lock of the segment, so it need not be thread safe.
+     */
+    AdmissionFilter newFilter(int capacity);
+}
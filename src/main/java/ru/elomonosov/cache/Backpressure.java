@@ -0,0 +1,16 @@
+package ru.elomonosov.cache;
+
+/**
+ * Behavior of the put when the write-behind queue of the segment is full.
+ */
+public enum Backpressure {
+    /**
+     * Put waits until the queue has a free place.
+     */
+    BLOCK,
+
+    /**
+     * Put writes the queued items to the lower levels by itself.
+     */
+    CALLER_RUNS
+}
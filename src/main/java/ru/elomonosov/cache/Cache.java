@@ -4,18 +4,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.elomonosov.level.CacheLevel;
 import ru.elomonosov.level.CacheLevelException;
-import ru.elomonosov.util.ClassNameUtil;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
 
-public final class Cache {
+public final class Cache implements AutoCloseable {
 
-    private static final Logger logger = LoggerFactory.getLogger(ClassNameUtil.getCurrentClassName());
+    private static final Logger logger = LoggerFactory.getLogger(Cache.class);
 
     private final CacheStrategy cacheStrategy;
-    private final List<CacheLevel> cacheLevelList;
+    private final CacheSegment[] segments;
+    private final int segmentMask;
+    private final Executor executor;
+    private final CacheLoader loader;
+    private final ConcurrentHashMap<Long, CompletableFuture<Cacheable>> loads = new ConcurrentHashMap<>(); // loads in flight
+    private volatile ObjectName statsMBeanName; // registered MBean of the statistics, null if it is not registered
+    private final TraceBuffer trace;            // null if the operations are not traced
 
     /**
      * Constructs an empty cache with the specified displacement algorithm and levels.
@@ -24,8 +33,47 @@ public final class Cache {
      * @param cacheLevelList list of cache levels, sorted from first to last.
      */
     protected Cache(CacheStrategy cacheStrategy, List<CacheLevel> cacheLevelList) {
+        this(cacheStrategy, new CacheSegment[]{new CacheSegment(cacheStrategy, cacheLevelList)}, new CacheSettings());
+    }
+
+    /**
+     * Constructs an empty cache with the specified displacement algorithm and segments.
+     * Every segment has its own levels and lock, so threads working with different segments don't wait each other.
+     *
+     * @param cacheStrategy displacement algorithm.
+     * @param segments      cache segments, quantity of segments must be a power of two.
+     * @param settings      executor of the asynchronous operations and loader of the missing items.
+     */
+    Cache(CacheStrategy cacheStrategy, CacheSegment[] segments, CacheSettings settings) {
+        if (Integer.bitCount(segments.length) != 1) {
+            throw new IllegalArgumentException("Quantity of segments must be a power of two");
+        }
         this.cacheStrategy = cacheStrategy;
-        this.cacheLevelList = cacheLevelList;
+        this.segments = segments;
+        this.segmentMask = segments.length - 1;
+        this.executor = settings.getExecutor();
+        this.loader = settings.getLoader();
+        this.trace = (settings.getTraceBufferSize() > 0)
+                ? new TraceBuffer(settings.getTraceBufferSize(), settings.getTraceSampling()) : null;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].setTrace(trace, i);
+            segments[i].setPromotion(settings.getHierarchy(), settings.getPromotionThreshold());
+            segments[i].setDiskAdmission(settings.getDiskAdmission());
+        }
+    }
+
+    /**
+     * Internal method.
+     * @param id item id.
+     * @return segment that keeps item with the specified id.
+     */
+    CacheSegment segmentFor(long id) {
+        return segments[segmentIndex(id)];
+    }
+
+    private int segmentIndex(long id) {
+        int hash = Long.hashCode(id);
+        return (hash ^ (hash >>> 16)) & segmentMask;
     }
 
     /**
@@ -34,133 +82,357 @@ public final class Cache {
      * @param cacheable item that should be stored in the cache.
      * @throws CacheException if any level cannot reprocess item adding.
      */
-    public synchronized void put(Cacheable cacheable) throws CacheException {
+    public void put(Cacheable cacheable) throws CacheException {
         if (cacheable != null) {
-            logger.info("Putting item [id {}] in the cache...", cacheable.getId());
-            logger.info("Check for item with the same id...");
-            removeItem(cacheable.getId()); // remove item with the same id from the cache
-            logger.info("Adding item to cache...");
-            putByStrategy(cacheable, levelListByStrategy()); // put item in cache.
-            logger.info("Item [id{}] was added.", cacheable.getId());
+            segmentFor(cacheable.getId()).put(cacheable);
         }
     }
 
     /**
-     * Internal method. Use strategy defined method of displace item from the cache levels if cache levels are full.
+     * Add item in the cache on the top level with its own expiration, the expiration set by the settings
+     * is not used for the item. Item with the same id will be removed from the cache.
      *
-     * @param cacheable item that should be stored in the cache.
-     * @param levelsByStrategy
+     * @param cacheable         item that should be stored in the cache.
+     * @param expireAfterWrite  milliseconds that the item lives after it is stored, 0 if it does not expire by age.
+     * @param expireAfterAccess milliseconds that the item lives after the last access, 0 if it does not expire by idleness.
      * @throws CacheException if any level cannot reprocess item adding.
      */
-    private void putByStrategy(Cacheable cacheable, List<CacheLevel> levelsByStrategy) throws CacheException {
-        CacheLevel cacheLevel = null;
-        try {
-            cacheLevel = levelsByStrategy.get(0);
-            if (cacheLevel != null) {
-                if (cacheLevel.isFull()) {                                  // if level is full, strategy defined item must be displaced by the one that need to be saved
-                    Cacheable displacedData = cacheLevel.pullByStrategy(); // get the item that need to be shifted or removed
-                    if (levelsByStrategy.size() > 1) {                     // if it is not the last level, shift displaced data to next level
-                        levelsByStrategy.remove(0);                        // remove level from the list of reprocessing levels
-                        putByStrategy(displacedData, levelsByStrategy);    // call this method for the list of reprocessing levels
-                        cacheLevel.put(cacheable);                         // add item to this level
+    public void put(Cacheable cacheable, long expireAfterWrite, long expireAfterAccess) throws CacheException {
+        if ((expireAfterWrite < 0) || (expireAfterAccess < 0)) {
+            throw new IllegalArgumentException("Expiration must be not less than 0");
+        }
+        if (cacheable != null) {
+            segmentFor(cacheable.getId()).put(cacheable, expireAfterWrite, expireAfterAccess);
+        }
+    }
+
+    /**
+     * Get item in the cache by id.
+     * Items order in the cache will be updated. Returned item will be put on the top level.
+     * If the loader is set by the cache settings, the missing item is loaded as by {@link #get(long, CacheLoader)}.
+     *
+     * @param id item id.
+     * @return null if there is no item with the specified id in the cache.
+     * @throws CacheException if any level cannot reprocess item getting.
+     */
+    public Cacheable get(long id) throws CacheException {
+        return (loader == null) ? segmentFor(id).get(id) : get(id, loader);
+    }
+
+    /**
+     * Get item in the cache by id, the missing item is loaded by the loader and put in the cache.
+     * Concurrent requests of the same missing id wait for one load.
+     *
+     * @param id     item id.
+     * @param loader loader of the missing item.
+     * @return null if there is no item with the specified id in the cache and in the backing store.
+     * @throws CacheException if any level cannot reprocess item getting or the item cannot be loaded.
+     */
+    public Cacheable get(long id, CacheLoader loader) throws CacheException {
+        Cacheable result = segmentFor(id).get(id);
+        if (result == null) {
+            CompletableFuture<Cacheable> load = new CompletableFuture<>();
+            CompletableFuture<Cacheable> existingLoad = loads.putIfAbsent(id, load);
+            if (existingLoad != null) {
+                return await(id, existingLoad);
+            }
+            try {
+                result = segmentFor(id).get(id); // the previous load could be finished after the first search
+                if (result == null) {
+                    boolean traced = (trace != null) && trace.sample();
+                    long start = traced ? System.nanoTime() : 0;
+                    result = checkLoaded(id, loader.load(id));
+                    if (traced) {
+                        trace.recordSampled(TraceEvent.Type.LOAD, segmentIndex(id), -1, id,
+                                (int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - start) / 1000));
                     }
-                } else {
-                    cacheLevel.put(cacheable); // The simplest case. Put cached object on this level - it is not full
+                    put(result);
                 }
-            } else {
-                throw new CacheException("Cannot get level to put item on it", new NullPointerException());
+                load.complete(result);
+            } catch (Exception e) {
+                load.completeExceptionally(e);
+                throw (e instanceof CacheException) ? (CacheException) e : new CacheException("Cannot load item with id = " + id, e);
+            } catch (Error e) { // waiting requests must not wait forever
+                load.completeExceptionally(e);
+                throw e;
+            } finally {
+                loads.remove(id, load);
             }
-        } catch (CacheLevelException e) {
-            throw new CacheException("Cannot put item with id = " + cacheable.getId() + " in level " + cacheLevel.getOrder(), e);
         }
+        return result;
     }
 
     /**
-     * Internal method.
-     * @return list of levels that are using in shifting displaced items from top levels to bottom.
+     * Remove item from the cache.
+     *
+     * @param id item id.
+     * @return true if the item was removed, false if there was no such item in the cache.
+     * @throws CacheException if any level cannot reprocess item removing.
      */
-    private List<CacheLevel> levelListByStrategy() {
-        List<CacheLevel> result = new ArrayList<>();
-        switch (cacheStrategy) {
-            case LEAST_RECENTLY_USED: {
-                result.addAll(cacheLevelList);
-                break;
-            }
-            case RANDOM: {
-                CacheLevel randomCacheLevel = cacheLevelList.get(new Random().nextInt(cacheLevelList.size()));
-                result.add(randomCacheLevel);
-                break;
+    public boolean remove(long id) throws CacheException {
+        return segmentFor(id).remove(id);
+    }
+
+    /**
+     * Get item in the cache by id without blocking the caller. Item found on the levels that keep items
+     * in memory is returned by the completed future, if its segment is not locked and the item is raised without
+     * displacing other items. If all levels keep items in memory, the miss is returned by the completed future too,
+     * unless the loader is set. Otherwise the search is run by the executor of the cache.
+     *
+     * @param id item id.
+     * @return future of the item, or of null if there is no item with the specified id in the cache.
+     * The future fails with {@link CacheException} if any level cannot reprocess item getting.
+     */
+    public CompletableFuture<Cacheable> getAsync(final long id) {
+        final CacheSegment segment = segmentFor(id);
+        try {
+            CompletableFuture<Cacheable> inline = segment.getInline(id);
+            if ((inline != null) && ((loader == null) || (inline.getNow(null) != null))) { // the miss is loaded by the executor
+                return inline;
             }
+        } catch (CacheException e) {
+            return failedFuture(e);
         }
-        return result;
+        return CompletableFuture.supplyAsync(new Supplier<Cacheable>() {
+            @Override
+            public Cacheable get() {
+                try {
+                    return (loader == null) ? segment.get(id) : Cache.this.get(id, loader);
+                } catch (CacheException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
     }
 
     /**
-     * Get item in the cache by id.
-     * Items order in the cache will be updated. Returned item will be put on the top level.
+     * Add item in the cache by the executor of the cache. Asynchronous operations are not ordered,
+     * the caller must wait for the future to see the item.
+     *
+     * @param cacheable item that should be stored in the cache.
+     * @return future that is completed when the item is stored.
+     * The future fails with {@link CacheException} if any level cannot reprocess item adding.
+     */
+    public CompletableFuture<Void> putAsync(final Cacheable cacheable) {
+        return CompletableFuture.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    put(cacheable);
+                } catch (CacheException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Remove item from the cache by the executor of the cache.
      *
      * @param id item id.
-     * @return null if there is no item with the specified id in the cache.
-     * @throws CacheException if any level cannot reprocess item getting.
+     * @return future of true if the item was removed, false if there was no such item in the cache.
+     * The future fails with {@link CacheException} if any level cannot reprocess item removing.
      */
-    public synchronized Cacheable get(long id) throws CacheException {
-        int levelNum = 0;
-        logger.info("Searching item [id {}]", id);
-        for (CacheLevel cacheLevel : cacheLevelList) {
-            logger.info("level {}:", levelNum);
-            Cacheable cacheable;
-            try {
-                cacheable = cacheLevel.get(id);
+    public CompletableFuture<Boolean> removeAsync(final long id) {
+        return CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                try {
+                    return remove(id);
+                } catch (CacheException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Exception e) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    /**
+     * Add items in the cache. Every segment is locked once for all its items, place on the levels is freed
+     * for the whole group and items are written to the file levels by a few large writes.
+     *
+     * @param cacheables items that should be stored in the cache, from the eldest to the newest.
+     * @throws CacheException if any level cannot reprocess items adding.
+     */
+    public void putAll(Collection<? extends Cacheable> cacheables) throws CacheException {
+        if ((cacheables != null) && !cacheables.isEmpty()) {
+            List<List<Cacheable>> itemsBySegment = new ArrayList<>(segments.length);
+            for (int i = 0; i < segments.length; i++) {
+                itemsBySegment.add(new ArrayList<Cacheable>());
+            }
+            for (Cacheable cacheable : cacheables) {
                 if (cacheable != null) {
-                    logger.info("Item was found, putting it on the top level.");
-                    putByStrategy(cacheable, levelListByStrategy());
-                    return cacheable;
+                    itemsBySegment.get(segmentIndex(cacheable.getId())).add(cacheable);
+                }
+            }
+            for (int i = 0; i < segments.length; i++) {
+                if (!itemsBySegment.get(i).isEmpty()) {
+                    segments[i].putAll(itemsBySegment.get(i));
                 }
-            } catch (CacheLevelException | CacheException e) {
-                throw new CacheException("Cannot get item with id = " + id, e);
             }
-            levelNum++;
         }
-        logger.info("Item has not found.");
-        return null; // return null if nothing was found
     }
 
     /**
-     * Internal method. Remove item from the cache.
+     * Get items in the cache by ids. Every segment is locked once for all its ids,
+     * the file levels read the requested items in the file order.
+     * Items order in the cache will be updated as by {@link #get(long)}.
      *
-     * @param id item id
-     * @return level order, that contained item that was removed. Returns -1 if item was not found.
-     * @throws CacheException if any level cannot reprocess item removing.
+     * @param ids items ids.
+     * @return found items by id, ids that are absent in the cache are not included.
+     * @throws CacheException if any level cannot reprocess items getting.
      */
-    private int removeItem(long id) throws CacheException {
-        int result = -1;
-        logger.info("Trying to remove the item [id {}].", id);
-        try {
-            for (int i = 0; i < cacheLevelList.size(); i++) {
-                if (cacheLevelList.get(i).pull(id) != null) {
-                    result = i;
-                    logger.info("Item [id {}] has been removed", id);
-                    break;
+    public Map<Long, Cacheable> getAll(long[] ids) throws CacheException {
+        return (loader == null) ? find(ids) : getAll(ids, loader);
+    }
+
+    /**
+     * Get items in the cache by ids, missing items are loaded by one call of {@link CacheLoader#loadAll(long[])}
+     * and put in the cache. Ids that are loaded by concurrent requests are not loaded again, their loads are awaited.
+     *
+     * @param ids    items ids.
+     * @param loader loader of the missing items.
+     * @return found and loaded items by id, ids that are absent in the backing store are not included.
+     * @throws CacheException if any level cannot reprocess items getting or the items cannot be loaded.
+     */
+    public Map<Long, Cacheable> getAll(long[] ids, CacheLoader loader) throws CacheException {
+        Map<Long, Cacheable> result = find(ids);
+        Map<Long, CompletableFuture<Cacheable>> ownLoads = new LinkedHashMap<>();
+        Map<Long, CompletableFuture<Cacheable>> otherLoads = new HashMap<>();
+        for (long id : ids) {
+            if (!result.containsKey(id) && !ownLoads.containsKey(id) && !otherLoads.containsKey(id)) {
+                CompletableFuture<Cacheable> load = new CompletableFuture<>();
+                CompletableFuture<Cacheable> existingLoad = loads.putIfAbsent(id, load);
+                if (existingLoad == null) {
+                    ownLoads.put(id, load);
+                } else {
+                    otherLoads.put(id, existingLoad);
                 }
             }
-        } catch (CacheLevelException e) {
-            throw new CacheException("Cannot remove item with id = " + id, e);
         }
-        logger.info("Item {}{}", (result == -1) ? "has not found" : "has been removed from level ", (result == -1) ? "." : result);
+        if (!ownLoads.isEmpty()) {
+            try {
+                long[] loadIds = new long[ownLoads.size()];
+                int i = 0;
+                for (long id : ownLoads.keySet()) {
+                    loadIds[i++] = id;
+                }
+                Map<Long, Cacheable> loaded = loader.loadAll(loadIds);
+                List<Cacheable> loadedItems = new ArrayList<>(loaded.size());
+                for (long id : loadIds) {
+                    Cacheable cacheable = checkLoaded(id, loaded.get(id));
+                    if (cacheable != null) {
+                        loadedItems.add(cacheable);
+                        result.put(id, cacheable);
+                    }
+                }
+                putAll(loadedItems);
+                for (Map.Entry<Long, CompletableFuture<Cacheable>> entry : ownLoads.entrySet()) {
+                    entry.getValue().complete(loaded.get(entry.getKey()));
+                }
+            } catch (Exception e) {
+                for (CompletableFuture<Cacheable> load : ownLoads.values()) {
+                    load.completeExceptionally(e);
+                }
+                throw (e instanceof CacheException) ? (CacheException) e : new CacheException("Cannot load " + ownLoads.size() + " items", e);
+            } catch (Error e) { // waiting requests must not wait forever
+                for (CompletableFuture<Cacheable> load : ownLoads.values()) {
+                    load.completeExceptionally(e);
+                }
+                throw e;
+            } finally {
+                for (Map.Entry<Long, CompletableFuture<Cacheable>> entry : ownLoads.entrySet()) {
+                    loads.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<Long, CompletableFuture<Cacheable>> entry : otherLoads.entrySet()) {
+            Cacheable cacheable = await(entry.getKey(), entry.getValue());
+            if (cacheable != null) {
+                result.put(entry.getKey(), cacheable);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Internal method.
+     * @return the loaded item, if it has the requested id.
+     */
+    private static Cacheable checkLoaded(long id, Cacheable cacheable) throws CacheException {
+        if ((cacheable != null) && (cacheable.getId() != id)) {
+            throw new CacheException("Loader returned item with id = " + cacheable.getId() + " instead of " + id,
+                    new IllegalStateException());
+        }
+        return cacheable;
+    }
+
+    /**
+     * Internal method. Waits for the load that is run by another request.
+     */
+    private static Cacheable await(long id, CompletableFuture<Cacheable> load) throws CacheException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheException("Interrupted while waiting for the load of item with id = " + id, e);
+        } catch (ExecutionException e) {
+            Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+            throw new CacheException("Cannot load item with id = " + id, cause);
+        }
+    }
+
+    /**
+     * Internal method. Searches items in the segments without loading.
+     */
+    private Map<Long, Cacheable> find(long[] ids) throws CacheException {
+        int[] counts = new int[segments.length];
+        for (long id : ids) {
+            counts[segmentIndex(id)]++;
+        }
+        long[][] idsBySegment = new long[segments.length][];
+        for (int i = 0; i < segments.length; i++) {
+            idsBySegment[i] = new long[counts[i]];
+            counts[i] = 0;
+        }
+        for (long id : ids) {
+            int segment = segmentIndex(id);
+            idsBySegment[segment][counts[segment]++] = id;
+        }
+        Map<Long, Cacheable> result = new HashMap<>();
+        for (int i = 0; i < segments.length; i++) {
+            if (idsBySegment[i].length > 0) {
+                segments[i].getAll(idsBySegment[i], result);
+            }
+        }
         return result;
     }
 
+    /**
+     * Removes the expired items at once. Otherwise every segment removes them by the next operation that changes it.
+     * @throws CacheException if any level cannot reprocess items removing.
+     */
+    public void cleanUp() throws CacheException {
+        for (CacheSegment segment : segments) {
+            segment.cleanUp();
+        }
+    }
+
     /**
      *
-     * @return current size of cache, i.e. quantity of stored items.
+     * @return current size of cache, i.e. quantity of stored items. Expired items are counted until they are removed.
      * @throws CacheException
      */
     public int size() throws CacheException {
-        logger.info("Counting the cache size.");
         int result = 0;
         try {
-            for (CacheLevel cacheLevel : cacheLevelList) { //size of the cache = sum of size of every level
-                result += cacheLevel.size();
+            for (CacheSegment segment : segments) { //size of the cache = sum of size of every segment
+                result += segment.size();
             }
         } catch (CacheLevelException e) {
             throw new CacheException("Cache size was not counted.", e);
@@ -170,21 +442,35 @@ public final class Cache {
 
     /**
      *
-     * @return quantity of items that can be stored in the cache.
+     * @return total weight of the stored items, i.e. their quantity if the weigher is not set.
+     * @throws CacheException
+     */
+    public long weight() throws CacheException {
+        long result = 0;
+        try {
+            for (CacheSegment segment : segments) {
+                result += segment.weight();
+            }
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cache weight was not counted.", e);
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return quantity of items that can be stored in the cache, or their total weight if the weigher is set.
      * @throws CacheException
      */
     public int maxSize() throws CacheException {
-        logger.info("Counting the cache max size.");
         int result = 0;
         try {
-            for (CacheLevel cacheLevel : cacheLevelList) { //max size of the cache = sum of max size of every level
-                logger.info("Asking level...");
-                result += cacheLevel.maxSize();
+            for (CacheSegment segment : segments) { //max size of the cache = sum of max size of every segment
+                result += segment.maxSize();
             }
         } catch (CacheLevelException e) {
             throw new CacheException("Cache max size was not counted.", e);
         }
-        logger.info("Cache max size is {}.", result);
         return result;
     }
 
@@ -196,32 +482,173 @@ public final class Cache {
         return cacheStrategy;
     }
 
+    /**
+     * Shows how many independently locked segments the cache is split into.
+     * @return quantity of segments.
+     */
+    public int concurrencyLevel() {
+        return segments.length;
+    }
+
     /**
      * Clears the cache from all items.
      * @throws CacheException if any level cannot be cleared.
      */
     public void clear() throws CacheException {
-        logger.info("Clearing the cache.");
-        logger.info(toString());
         try {
-            for (CacheLevel cacheLevel : cacheLevelList) {
-                cacheLevel.clear();
+            for (CacheSegment segment : segments) {
+                segment.clear();
             }
         } catch (CacheLevelException e) {
             throw new CacheException("Cannot clear cache.", e);
         }
     }
 
+    /**
+     * Used by the cluster to find the items that move between its nodes.
+     *
+     * @return ids of the items of the cache, or null if any level does not know the ids of its items.
+     * @throws CacheException if any level cannot be asked.
+     */
+    Set<Long> ids() throws CacheException {
+        Set<Long> result = new HashSet<>();
+        try {
+            for (CacheSegment segment : segments) {
+                if (!segment.ids(result)) {
+                    return null;
+                }
+            }
+        } catch (CacheLevelException e) {
+            throw new CacheException("Ids of the cache items were not read.", e);
+        }
+        return result;
+    }
+
+    /**
+     * Moves all items of the cache to the map, the cache is empty after it. Used by the cluster to rebalance its nodes.
+     *
+     * @param result items by id, items that are already in the map are not replaced.
+     * @throws CacheException if any level cannot be drained.
+     */
+    void drain(Map<Long, Cacheable> result) throws CacheException {
+        for (CacheSegment segment : segments) {
+            segment.drain(result);
+        }
+    }
+
+    /**
+     * Closes the cache. Items of persistent levels are saved, the cache created with the same directory gets them back.
+     * Items of other levels are lost. The cache must not be used after closing.
+     * @throws CacheException if any level cannot be closed.
+     */
+    @Override
+    public void close() throws CacheException {
+        ObjectName mbeanName = statsMBeanName;
+        if (mbeanName != null) {
+            statsMBeanName = null;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                logger.warn("Cannot unregister MBean " + mbeanName, e);
+            }
+        }
+        CacheLevelException failure = null;
+        for (CacheSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (CacheLevelException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw new CacheException("Cannot close cache.", failure);
+        }
+    }
+
+    /**
+     * @return events recorded by the trace buffer, from the eldest to the newest. Empty if the trace buffer
+     * is not set by the settings. Events recorded during the dump may be missing.
+     */
+    public List<TraceEvent> traceEvents() {
+        return (trace == null) ? Collections.<TraceEvent>emptyList() : trace.events();
+    }
+
+    /**
+     * Snapshot of the statistics. Counting never blocks the operations, so the counters of the snapshot
+     * may be taken at slightly different moments.
+     *
+     * @return hits and misses of the cache, counters and latencies of every level.
+     */
+    public CacheStats stats() {
+        long hitCount = 0;
+        long missCount = 0;
+        List<LevelStats> levels = null;
+        for (CacheSegment segment : segments) { // every segment has the same levels
+            hitCount += segment.hitCount();
+            missCount += segment.missCount();
+            List<LevelStats> segmentLevels = segment.levelStats();
+            if (levels == null) {
+                levels = new ArrayList<>(segmentLevels);
+            } else {
+                for (int i = 0; i < levels.size(); i++) {
+                    levels.set(i, levels.get(i).plus(segmentLevels.get(i)));
+                }
+            }
+        }
+        return new CacheStats(hitCount, missCount, levels);
+    }
+
+    /**
+     * Internal method. Registers the statistics in the platform MBean server, the MBean is unregistered by close.
+     *
+     * @param name name of the cache, the MBean is named ru.elomonosov.cache:type=Cache,name=&lt;name&gt;.
+     * @throws CacheException if the name is invalid or it is already registered.
+     */
+    void registerStatsMBean(String name) throws CacheException {
+        try {
+            ObjectName mbeanName = new ObjectName("ru.elomonosov.cache:type=Cache,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new CacheStatsMXBean() {
+                @Override
+                public long getHitCount() {
+                    return stats().getHitCount();
+                }
+
+                @Override
+                public long getMissCount() {
+                    return stats().getMissCount();
+                }
+
+                @Override
+                public double getHitRate() {
+                    return stats().getHitRate();
+                }
+
+                @Override
+                public List<LevelStats> getLevels() {
+                    return stats().getLevels();
+                }
+            }, mbeanName);
+            statsMBeanName = mbeanName;
+        } catch (JMException e) {
+            throw new CacheException("Cannot register MBean of the cache " + name, e);
+        }
+    }
+
     /**
      * Show if the cache is full or not.
      * @return true if the cache can store more items without displace already stored, and false in the other case.
      * @throws CacheException
      */
     public boolean isFull() throws CacheException {
-        logger.info("Checking the cache for fill.");
-        boolean result;
+        boolean result = true;
         try {
-            result = cacheLevelList.get(cacheLevelList.size() - 1).isFull();
+            for (CacheSegment segment : segments) { // the cache is full when every segment is full
+                if (!segment.isFull()) {
+                    result = false;
+                    break;
+                }
+            }
         } catch (CacheLevelException e) {
             throw new CacheException("Cannot check the cache for fill.", e);
         }
@@ -236,17 +663,22 @@ public final class Cache {
         String result;
 
         try {
-            header1 = "Cache strategy: " + strategy() + "\n";
+            header1 = "Cache strategy: " + strategy() + ", segments: " + segments.length + "\n";
             header2 = "Cache contains " + size() + " items of " + maxSize() + ".\n";
-            int levelNum = 1;
-            for (CacheLevel cacheLevel : cacheLevelList) {
-                levelsInfo.append(levelNum);
+            int levelCount = segments[0].levels().size();
+            for (int levelNum = 0; levelNum < levelCount; levelNum++) {
+                int levelSize = 0;
+                int levelMaxSize = 0;
+                for (CacheSegment segment : segments) {
+                    levelSize += segment.size(levelNum);
+                    levelMaxSize += segment.levels().get(levelNum).maxSize();
+                }
+                levelsInfo.append(levelNum + 1);
                 levelsInfo.append(": ");
-                levelsInfo.append(cacheLevel.size());
+                levelsInfo.append(levelSize);
                 levelsInfo.append(" items of ");
-                levelsInfo.append(cacheLevel.maxSize());
+                levelsInfo.append(levelMaxSize);
                 levelsInfo.append("\n");
-                levelNum++;
             }
             result = header1 + header2 + levelsInfo;
         } catch (CacheLevelException | CacheException e) {
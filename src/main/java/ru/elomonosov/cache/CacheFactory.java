@@ -1,13 +1,26 @@
 package ru.elomonosov.cache;
 
 import ru.elomonosov.level.CacheLevel;
+import ru.elomonosov.level.CacheLevelException;
 import ru.elomonosov.level.CacheLevelFactory;
 import ru.elomonosov.level.Level;
+import ru.elomonosov.serializer.BinarySerializer;
+import ru.elomonosov.serializer.CacheSerializer;
+import ru.elomonosov.serializer.CompressingSerializer;
+import ru.elomonosov.serializer.Compression;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 public final class CacheFactory {
 
+    private static final String LAYOUT = "cache.properties";
 
     private static final CacheFactory INSTANCE = new CacheFactory();
 
@@ -35,21 +48,232 @@ public final class CacheFactory {
     }
 
     public Cache getCache(CacheStrategy cacheStrategy, LinkedHashMap<Level, Integer> levelList) {
+        return getCache(cacheStrategy, levelList, 1);
+    }
+
+    /**
+     * Creates the cache that is split into independently locked segments. Items are spread between segments by id,
+     * every segment gets its own share of every level, so threads working with different segments don't wait each other.
+     *
+     * @param cacheStrategy    displacement algorithm.
+     * @param levelList        types and sizes of levels, sorted from first to last.
+     * @param concurrencyLevel expected quantity of concurrently working threads. Rounded up to a power of two,
+     *                         but not more than the size of the smallest level.
+     * @return new cache with temporary levels.
+     */
+    public Cache getCache(CacheStrategy cacheStrategy, LinkedHashMap<Level, Integer> levelList, int concurrencyLevel) {
+        CacheSettings settings = new CacheSettings();
+        settings.setConcurrencyLevel(concurrencyLevel);
+        try {
+            return getCache(cacheStrategy, levelList, settings);
+        } catch (CacheFactoryException e) {
+            throw new IllegalStateException("Temporary levels cannot fail on creation", e);
+        }
+    }
+
+    /**
+     * Creates the cache with the specified optional parameters.
+     *
+     * @param cacheStrategy displacement algorithm.
+     * @param levelList     types and sizes of levels, sorted from first to last. If the weigher is set, sizes are
+     *                      the total weights of items that the levels can keep.
+     * If the directory is set, file levels are opened in it and the items saved by the closed cache are available at once.
+     *
+     * @param settings      optional parameters of the cache.
+     * @return new cache.
+     * @throws CacheFactoryException if the directory cannot be opened or it keeps the cache with other levels,
+     *                               or the statistics cannot be registered in JMX.
+     */
+    public Cache getCache(CacheStrategy cacheStrategy, LinkedHashMap<Level, Integer> levelList, CacheSettings settings) throws CacheFactoryException {
         if (cacheStrategy == null) {
             throw new IllegalArgumentException("Cache strategy must be not null");
         }
         if ((levelList == null)||(levelList.isEmpty())) {
             throw new IllegalArgumentException("Cache levels must be set");
         }
-        Iterator<Map.Entry<Level, Integer>> iterator = levelList.entrySet().iterator();
-        List<CacheLevel> cacheLevelList = new ArrayList<>(levelList.size());
-        int i = 0;
-        while(iterator.hasNext()) {
-            Map.Entry<Level, Integer> entry = iterator.next();
-            cacheLevelList.add(CacheLevelFactory.INSTANCE.getCacheLevel(cacheStrategy, entry.getKey(), entry.getValue(), i));
-            i++;
+        if (settings == null) {
+            throw new IllegalArgumentException("Cache settings must be not null");
         }
-        return new Cache(cacheStrategy, cacheLevelList);
+        int minLevelSize = Integer.MAX_VALUE;
+        for (Integer levelSize : levelList.values()) {
+            if ((levelSize == null) || !(levelSize > 0)) {
+                throw new IllegalArgumentException("Level size must be more than 0");
+            }
+            minLevelSize = Math.min(minLevelSize, levelSize);
+        }
+        int segmentCount = 1;
+        while ((segmentCount < settings.getConcurrencyLevel()) && (segmentCount * 2 <= minLevelSize)) {
+            segmentCount <<= 1;
+        }
+
+        Path directory = settings.getDirectory();
+        if (directory != null) {
+            checkLayout(directory, cacheStrategy, levelList, segmentCount, settings.getCompression() != Compression.NONE,
+                    settings.getFileDirectories(), settings.getSerializer(), settings.getWeigher() != null);
+        }
+
+        CacheSerializer diskSerializer = (settings.getCompression() == Compression.NONE) ? settings.getSerializer()
+                : new CompressingSerializer(settings.getSerializer(), settings.getCompression(), settings.getCompressionThreshold());
+        CacheSegment[] segments = new CacheSegment[segmentCount];
+        List<CacheLevel> createdLevels = new ArrayList<>();
+        try {
+            for (int segmentNum = 0; segmentNum < segmentCount; segmentNum++) {
+                Iterator<Map.Entry<Level, Integer>> iterator = levelList.entrySet().iterator();
+                List<CacheLevel> cacheLevelList = new ArrayList<>(levelList.size());
+                int windowSize = 0;
+                int i = 0;
+                while(iterator.hasNext()) {
+                    Map.Entry<Level, Integer> entry = iterator.next();
+                    int levelSize = entry.getValue() / segmentCount + ((segmentNum < entry.getValue() % segmentCount) ? 1 : 0);
+                    if ((i == 0) && (cacheStrategy == CacheStrategy.TINY_LFU) && (levelSize > 1)) {
+                        windowSize = Math.max(1, levelSize / 100); // admission window takes 1% of the top level
+                        levelSize -= windowSize;
+                    }
+                    Path levelPath = Paths.get("segment" + segmentNum, "level" + i);
+                    CacheLevel cacheLevel;
+                    if (entry.getKey() == Level.REMOTE) {
+                        if (settings.getRemoteAddress() == null) {
+                            throw new IllegalArgumentException("Remote address must be set for the remote level");
+                        }
+                        String client = (settings.getRemoteClientName() == null) ? null
+                                : settings.getRemoteClientName() + "/segment" + segmentNum;
+                        cacheLevel = CacheLevelFactory.INSTANCE.getRemoteLevel(settings.getRemoteAddress(), i, diskSerializer,
+                                settings.getRemotePoolSize(), segmentCount, segmentNum, client);
+                    } else if ((entry.getKey() == Level.FILE) && !settings.getFileDirectories().isEmpty()) {
+                        List<Path> shardDirectories = new ArrayList<>(settings.getFileDirectories().size());
+                        for (Path fileDirectory : settings.getFileDirectories()) {
+                            shardDirectories.add((directory == null) ? fileDirectory : fileDirectory.resolve(levelPath));
+                        }
+                        cacheLevel = CacheLevelFactory.INSTANCE.getShardedFileLevel(cacheStrategy, levelSize, i, diskSerializer,
+                                shardDirectories, directory != null, settings.getWeigher());
+                    } else {
+                        cacheLevel = CacheLevelFactory.INSTANCE.getCacheLevel(cacheStrategy, entry.getKey(), levelSize, i,
+                                isDisk(entry.getKey()) ? diskSerializer : settings.getSerializer(),
+                                (directory == null) ? null : directory.resolve(levelPath), settings.getWeigher());
+                    }
+                    createdLevels.add(cacheLevel);
+                    cacheLevelList.add(cacheLevel);
+                    i++;
+                }
+                segments[segmentNum] = new CacheSegment(cacheStrategy, withWriteBehind(cacheStrategy, cacheLevelList, settings), windowSize,
+                        settings.getExpireAfterWrite(), settings.getExpireAfterAccess());
+            }
+        } catch (CacheLevelException e) {
+            for (CacheLevel cacheLevel : createdLevels) { // release directories of the opened levels
+                try {
+                    cacheLevel.close();
+                } catch (CacheLevelException ignored) {
+                }
+            }
+            throw new CacheFactoryException((directory == null) ? "Cannot create cache levels" : "Cannot open cache in " + directory, e);
+        }
+        Cache cache = new Cache(cacheStrategy, segments, settings);
+        if (settings.getStatsMBeanName() != null) {
+            try {
+                cache.registerStatsMBean(settings.getStatsMBeanName());
+            } catch (CacheException e) {
+                try {
+                    cache.close();
+                } catch (CacheException ignored) {
+                }
+                throw new CacheFactoryException("Cannot register statistics of the cache", e);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Internal method. Replaces the blocking levels below the top one by the write-behind level,
+     * if the write-behind queue is set.
+     */
+    private List<CacheLevel> withWriteBehind(CacheStrategy cacheStrategy, List<CacheLevel> cacheLevelList, CacheSettings settings) {
+        if (settings.getWriteBehindQueueSize() == 0) {
+            return cacheLevelList;
+        }
+        int firstBlocking = 1;
+        while ((firstBlocking < cacheLevelList.size()) && !cacheLevelList.get(firstBlocking).isBlocking()) {
+            firstBlocking++;
+        }
+        if (firstBlocking == cacheLevelList.size()) {
+            return cacheLevelList;
+        }
+        CacheSegment lowerSegment = new CacheSegment(cacheStrategy, new ArrayList<>(cacheLevelList.subList(firstBlocking, cacheLevelList.size())));
+        List<CacheLevel> result = new ArrayList<>(cacheLevelList.subList(0, firstBlocking));
+        result.add(new WriteBehindLevel(lowerSegment, firstBlocking, settings));
+        return result;
+    }
+
+    /**
+     * Internal method. Saves the layout of the new persistent cache, or checks that the existing one was created
+     * with the same strategy, levels and segments. Otherwise items would be looked for in the wrong segments.
+     * Compressed records have the header, so the compression must be set for them too. Items of the sharded
+     * file levels are looked for in the shard directories, so they must be the same and in the same order.
+     * Stored items are read by the serializer, so its class and the classes registered in the binary serializer
+     * must be the same. Weighted levels count the stored items by their size, so the weigher must be set or unset again.
+     */
+    private void checkLayout(Path directory, CacheStrategy cacheStrategy, LinkedHashMap<Level, Integer> levelList, int segmentCount,
+                             boolean compressed, List<Path> fileDirectories, CacheSerializer serializer,
+                             boolean weighted) throws CacheFactoryException {
+        StringBuilder levels = new StringBuilder();
+        for (Map.Entry<Level, Integer> entry : levelList.entrySet()) {
+            if (levels.length() > 0) {
+                levels.append(',');
+            }
+            levels.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        Properties layout = new Properties();
+        layout.setProperty("strategy", cacheStrategy.name());
+        layout.setProperty("levels", levels.toString());
+        layout.setProperty("segments", String.valueOf(segmentCount));
+        if (compressed) {
+            layout.setProperty("compressed", "true");
+        }
+        layout.setProperty("serializer", serializer.getClass().getName());
+        if ((serializer instanceof BinarySerializer) && !((BinarySerializer) serializer).registrations().isEmpty()) {
+            layout.setProperty("serializerTypes", ((BinarySerializer) serializer).registrations());
+        }
+        if (weighted) {
+            layout.setProperty("weighted", "true");
+        }
+        if (!fileDirectories.isEmpty()) {
+            StringBuilder shards = new StringBuilder();
+            for (Path fileDirectory : fileDirectories) {
+                if (shards.length() > 0) {
+                    shards.append(File.pathSeparatorChar);
+                }
+                shards.append(fileDirectory.toAbsolutePath().normalize());
+            }
+            layout.setProperty("fileDirectories", shards.toString());
+        }
+
+        Path layoutFile = directory.resolve(LAYOUT);
+        try {
+            if (Files.exists(layoutFile)) {
+                Properties existing = new Properties();
+                try (InputStream in = Files.newInputStream(layoutFile)) {
+                    existing.load(in);
+                }
+                if (!existing.equals(layout)) {
+                    throw new CacheFactoryException("Cache in " + directory + " was created with other parameters: " + existing,
+                            new IllegalArgumentException(layout.toString()));
+                }
+            } else {
+                Files.createDirectories(directory);
+                try (OutputStream out = Files.newOutputStream(layoutFile)) {
+                    layout.store(out, "Cache layout");
+                }
+            }
+        } catch (IOException e) {
+            throw new CacheFactoryException("Cannot open cache in " + directory, e);
+        }
+    }
+
+    /**
+     * Internal method.
+     * @return true if the level keeps items on the disk or the server, so they are compressed if the compression is set.
+     */
+    private static boolean isDisk(Level level) {
+        return (level == Level.FILE) || (level == Level.MMAP) || (level == Level.REMOTE);
     }
 
     public Cache getCache(int baseSize, int multiplier, CacheStrategy cacheStrategy, List<Level> cacheLevels) throws CacheFactoryException {
@@ -71,4 +295,52 @@ public final class CacheFactory {
         }
         return new Cache(cacheStrategy, cacheLevelList);
     }
+
+    /**
+     * Creates the cluster of the in-process nodes with the same levels, nodes are named node0, node1 and so on.
+     *
+     * @param cacheStrategy displacement algorithm of the nodes.
+     * @param levelList     types and sizes of levels of every node, sorted from first to last.
+     * @param nodeCount     quantity of nodes.
+     * @param replicas      quantity of nodes that keep every item, 1 if items are not replicated.
+     * @return new cluster cache.
+     */
+    public ClusterCache getClusterCache(CacheStrategy cacheStrategy, LinkedHashMap<Level, Integer> levelList,
+                                        int nodeCount, int replicas) {
+        if (!(nodeCount > 0)) {
+            throw new IllegalArgumentException("Node count must be more than 0");
+        }
+        Map<String, Cache> nodes = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                nodes.put("node" + i, getCache(cacheStrategy, levelList));
+            }
+        } catch (RuntimeException e) {
+            for (Cache cache : nodes.values()) {
+                try {
+                    cache.close();
+                } catch (CacheException ignored) {
+                }
+            }
+            throw e;
+        }
+        return getClusterCache(nodes, replicas, ClusterCache.DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates the cluster of the node caches, see {@link ClusterCache}. Nodes may keep items in the process
+     * or on the cache servers of other processes by the remote level.
+     *
+     * @param nodes        node caches by node name, they must be empty. The points of the node on the hash ring
+     *                     depend on its name, so the cluster created again with the same names routes items the same way.
+     * @param replicas     quantity of nodes that keep every item, 1 if items are not replicated.
+     * @param virtualNodes points of every node on the hash ring, e.g. {@link ClusterCache#DEFAULT_VIRTUAL_NODES}.
+     * @return new cluster cache.
+     */
+    public ClusterCache getClusterCache(Map<String, Cache> nodes, int replicas, int virtualNodes) {
+        if ((nodes == null) || nodes.isEmpty()) {
+            throw new IllegalArgumentException("Cluster nodes must be set");
+        }
+        return new ClusterCache(nodes, replicas, virtualNodes);
+    }
 }
@@ -0,0 +1,37 @@
+package ru.elomonosov.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads items that are absent in the cache from the backing store.
+ * Cache calls the loader once for the id, concurrent requests of the same id wait for the same load.
+ */
+public interface CacheLoader {
+
+    /**
+     * @param id item id.
+     * @return loaded item with the specified id, or null if there is no such item in the backing store.
+     * @throws Exception if the item cannot be loaded.
+     */
+    Cacheable load(long id) throws Exception;
+
+    /**
+     * Loads the group of items. Default implementation loads items one by one,
+     * the backing store that can load the group by one request should override it.
+     *
+     * @param ids items ids.
+     * @return loaded items by id, ids that are absent in the backing store are not included.
+     * @throws Exception if the items cannot be loaded.
+     */
+    default Map<Long, Cacheable> loadAll(long[] ids) throws Exception {
+        Map<Long, Cacheable> result = new HashMap<>();
+        for (long id : ids) {
+            Cacheable cacheable = load(id);
+            if (cacheable != null) {
+                result.put(id, cacheable);
+            }
+        }
+        return result;
+    }
+}
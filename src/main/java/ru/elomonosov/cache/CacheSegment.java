@@ -0,0 +1,1569 @@
+package ru.elomonosov.cache;
+
+import ru.elomonosov.level.CacheLevel;
+import ru.elomonosov.level.CacheLevelException;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Independent part of the cache with its own stack of levels and its own lock.
+ * Cache spreads items between segments by id, so operations on different segments never wait for each other.
+ */
+final class CacheSegment {
+
+    private final CacheStrategy cacheStrategy;
+    private final List<CacheLevel> cacheLevelList;
+
+    private static final int WEIGHTED_SKETCH_SIZE = 1024; // initial sketch size if the quantity of items is unknown
+
+    private final int windowSize;                        // quantity of items, or their total weight if the top level is weighted
+    private final LinkedHashMap<Long, Cacheable> window; // admission window of the TinyLFU strategy
+    private long windowWeight;
+    private final FrequencySketch sketch;                // access frequency of the TinyLFU strategy
+    private final boolean weighted;                      // true if any level is weighted, so the sketch grows with the items
+    private int admissionCount;
+
+    private static final long START = System.nanoTime();
+
+    private final long expireAfterWrite;  // default time to live in milliseconds, 0 if items don't expire by age
+    private final long expireAfterAccess; // default time to idle in milliseconds, 0 if items don't expire by idleness
+    private final TimerWheel wheel;       // expiration times of the items, guarded by the write lock
+    private volatile boolean idleExpiry;  // true if any item expires by idleness, so reads must take the write lock
+
+    private final LevelStatsCounter[] levelStats; // by position in the level list
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    private TraceBuffer trace; // null if the operations are not traced
+    private int segmentNum;
+
+    private Map<Long, CacheLevel> copies;     // lower level of every raised item that keeps its copy, null for the exclusive hierarchy
+    private int promotionThreshold = 1;       // recent hits on the lower levels that raise the item
+    private FrequencySketch promotionSketch;  // hits on the lower levels, null if every hit raises the item or the strategy counts them
+    private AdmissionFilter diskAdmission;    // admission of the items displaced to the blocking level, null if all of them are written
+    private Set<Long> members;                // ids of the items kept by the segment, maintained by its owner, null if they are not tracked
+
+    private static final int READ_BUFFER_SIZE = 64;          // power of two
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    private final AtomicLongArray readBuffer = new AtomicLongArray(READ_BUFFER_SIZE); // ids of the LRU hits found under the read lock
+    private final AtomicLong readIndex = new AtomicLong(); // quantity of recorded hits, the buffer is overwritten when it is full
+    private long readsDrained;                             // quantity of replayed hits, guarded by the write lock
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Constructs an empty segment with the specified displacement algorithm and levels.
+     *
+     * @param cacheStrategy  displacement algorithm.
+     * @param cacheLevelList list of cache levels, sorted from first to last.
+     */
+    CacheSegment(CacheStrategy cacheStrategy, List<CacheLevel> cacheLevelList) {
+        this(cacheStrategy, cacheLevelList, 0);
+    }
+
+    /**
+     * Constructs an empty segment with the specified displacement algorithm, levels and admission window.
+     *
+     * @param cacheStrategy  displacement algorithm.
+     * @param cacheLevelList list of cache levels, sorted from first to last.
+     * @param windowSize     quantity of new items kept before the admission to the levels, used by the TinyLFU strategy.
+     */
+    CacheSegment(CacheStrategy cacheStrategy, List<CacheLevel> cacheLevelList, int windowSize) {
+        this(cacheStrategy, cacheLevelList, windowSize, 0, 0);
+    }
+
+    /**
+     * Constructs an empty segment with the specified displacement algorithm, levels, admission window and expiration.
+     *
+     * @param cacheStrategy     displacement algorithm.
+     * @param cacheLevelList    list of cache levels, sorted from first to last.
+     * @param windowSize        quantity of new items kept before the admission to the levels, used by the TinyLFU strategy.
+     * @param expireAfterWrite  milliseconds that the item lives after it is stored, 0 if items don't expire by age.
+     * @param expireAfterAccess milliseconds that the item lives after the last access, 0 if items don't expire by idleness.
+     */
+    CacheSegment(CacheStrategy cacheStrategy, List<CacheLevel> cacheLevelList, int windowSize, long expireAfterWrite, long expireAfterAccess) {
+        this.cacheStrategy = cacheStrategy;
+        this.expireAfterWrite = expireAfterWrite;
+        this.expireAfterAccess = expireAfterAccess;
+        this.idleExpiry = expireAfterAccess > 0;
+        this.wheel = new TimerWheel(now());
+        this.cacheLevelList = cacheLevelList;
+        this.levelStats = new LevelStatsCounter[cacheLevelList.size()];
+        for (int i = 0; i < levelStats.length; i++) {
+            levelStats[i] = new LevelStatsCounter(cacheLevelList.get(i));
+        }
+        boolean weighted = false;
+        for (CacheLevel cacheLevel : cacheLevelList) {
+            weighted |= cacheLevel.isWeighted();
+        }
+        this.weighted = weighted;
+        if (cacheStrategy == CacheStrategy.TINY_LFU) {
+            this.windowSize = windowSize;
+            this.window = new LinkedHashMap<>(16, 0.75F, true);
+            try {
+                int maximumSize = windowSize;
+                for (CacheLevel cacheLevel : cacheLevelList) {
+                    maximumSize += cacheLevel.maxSize();
+                }
+                this.sketch = new FrequencySketch(weighted ? WEIGHTED_SKETCH_SIZE : maximumSize);
+            } catch (CacheLevelException e) {
+                throw new IllegalArgumentException("Cannot get max size of levels", e);
+            }
+        } else {
+            this.windowSize = 0;
+            this.window = null;
+            this.sketch = null;
+        }
+    }
+
+    List<CacheLevel> levels() {
+        return cacheLevelList;
+    }
+
+    /**
+     * Sets the buffer that records the operations of the segment. Must be called before the segment is used.
+     *
+     * @param trace      trace buffer, null if the operations are not traced.
+     * @param segmentNum number of the segment in the cache.
+     */
+    void setTrace(TraceBuffer trace, int segmentNum) {
+        this.trace = trace;
+        this.segmentNum = segmentNum;
+    }
+
+    /**
+     * Sets the relation of the items on the levels and the promotion of the items from the lower levels.
+     * Must be called before the segment is used.
+     *
+     * @param hierarchy          relation of the items on the levels, the random strategy keeps items exclusively.
+     * @param promotionThreshold recent hits on the lower levels after which the item is raised to the top level.
+     */
+    void setPromotion(Hierarchy hierarchy, int promotionThreshold) {
+        this.copies = ((hierarchy == Hierarchy.INCLUSIVE) && (cacheStrategy != CacheStrategy.RANDOM)) ? new HashMap<Long, CacheLevel>() : null;
+        this.promotionThreshold = promotionThreshold;
+        this.promotionSketch = null;
+        if ((promotionThreshold > 1) && (cacheStrategy != CacheStrategy.TINY_LFU)) { // TinyLFU sketch counts the hits already
+            try {
+                this.promotionSketch = new FrequencySketch(weighted ? WEIGHTED_SKETCH_SIZE : maxSize());
+            } catch (CacheLevelException e) {
+                throw new IllegalArgumentException("Cannot get max size of levels", e);
+            }
+        }
+    }
+
+    /**
+     * Sets the admission of the items displaced from the memory levels to the blocking level.
+     * Must be called before the segment is used.
+     *
+     * @param policy admission policy, null if every displaced item is written.
+     */
+    void setDiskAdmission(AdmissionPolicy policy) {
+        try {
+            this.diskAdmission = (policy == null) ? null : policy.newFilter(weighted ? WEIGHTED_SKETCH_SIZE : maxSize());
+        } catch (CacheLevelException e) {
+            throw new IllegalArgumentException("Cannot get max size of levels", e);
+        }
+    }
+
+    /**
+     * Sets the ids of the items kept by the segment, so the owner of the segment can check them without its lock.
+     * The owner adds the ids of the items it puts and removes the ids of the items it pulls, the segment removes
+     * the ids of the items it loses or expires. Must be called before the segment is used.
+     *
+     * @param members concurrent set of ids, null if the items are not tracked.
+     */
+    void setMembers(Set<Long> members) {
+        this.members = members;
+    }
+
+    /**
+     * Add item in the segment on the top level. Item with the same id will be removed from the segment.
+     *
+     * @param cacheable item that should be stored in the segment.
+     * @throws CacheException if any level cannot reprocess item adding.
+     */
+    void put(Cacheable cacheable) throws CacheException {
+        put(cacheable, expireAfterWrite, expireAfterAccess);
+    }
+
+    /**
+     * Add item in the segment on the top level with its own expiration.
+     *
+     * @param cacheable         item that should be stored in the segment.
+     * @param expireAfterWrite  milliseconds that the item lives after it is stored, 0 if it does not expire by age.
+     * @param expireAfterAccess milliseconds that the item lives after the last access, 0 if it does not expire by idleness.
+     * @throws CacheException if any level cannot reprocess item adding.
+     */
+    void put(Cacheable cacheable, long expireAfterWrite, long expireAfterAccess) throws CacheException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            replayReads();
+            expire();
+            schedule(cacheable.getId(), expireAfterWrite, expireAfterAccess);
+            putItem(cacheable);
+            trace(TraceEvent.Type.PUT, -1, cacheable.getId());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Add items in the segment under one lock. Items with the same ids will be removed from the segment.
+     * For the LRU and random strategies items displaced from a level are moved to the next level together.
+     * If the group contains several items with the same id, the last one is stored.
+     *
+     * @param cacheables items that should be stored in the segment, from the eldest to the newest.
+     * @throws CacheException if any level cannot reprocess items adding.
+     */
+    void putAll(Collection<? extends Cacheable> cacheables) throws CacheException {
+        LinkedHashMap<Long, Cacheable> unique = new LinkedHashMap<>();
+        for (Cacheable cacheable : cacheables) {
+            unique.remove(cacheable.getId()); // the last item with the id becomes the newest one
+            unique.put(cacheable.getId(), cacheable);
+        }
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            replayReads();
+            expire();
+            for (long id : unique.keySet()) {
+                schedule(id, expireAfterWrite, expireAfterAccess);
+                trace(TraceEvent.Type.PUT, -1, id);
+            }
+            switch (cacheStrategy) {
+                case LEAST_RECENTLY_USED: {
+                    for (long id : unique.keySet()) {
+                        recordAccess(id);
+                        removeItem(id);
+                    }
+                    putAllByStrategy(new ArrayList<>(unique.values()), cacheLevelList);
+                    break;
+                }
+                case RANDOM: {
+                    Map<CacheLevel, List<Cacheable>> itemsByLevel = new HashMap<>();
+                    for (Cacheable cacheable : unique.values()) {
+                        recordAccess(cacheable.getId());
+                        removeItem(cacheable.getId());
+                        CacheLevel cacheLevel = levelListByStrategy().get(0);
+                        List<Cacheable> items = itemsByLevel.get(cacheLevel);
+                        if (items == null) {
+                            items = new ArrayList<>();
+                            itemsByLevel.put(cacheLevel, items);
+                        }
+                        items.add(cacheable);
+                    }
+                    for (Map.Entry<CacheLevel, List<Cacheable>> entry : itemsByLevel.entrySet()) {
+                        putAllByStrategy(entry.getValue(), Collections.singletonList(entry.getKey()));
+                    }
+                    break;
+                }
+                case TINY_LFU: { // every item is admitted by its own frequency
+                    for (Cacheable cacheable : unique.values()) {
+                        putItem(cacheable);
+                    }
+                    break;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Internal method. Add item in the segment. Must be called under the write lock.
+     */
+    private void putItem(Cacheable cacheable) throws CacheException {
+        recordAccess(cacheable.getId());
+        if (cacheStrategy == CacheStrategy.TINY_LFU) {
+            sketch.increment(cacheable.getId());
+            if (removeFromWindow(cacheable.getId()) == null) {
+                removeItem(cacheable.getId());
+            }
+            putInWindow(cacheable);
+        } else {
+            removeItem(cacheable.getId()); // remove item with the same id from the segment
+            putByStrategy(cacheable, levelListByStrategy()); // put item in segment.
+        }
+    }
+
+    /**
+     * Get item in the segment by id.
+     * For the random strategy the segment does not change, so readers share the lock.
+     * For the LRU strategy the hit on the top memory level is found under the shared lock too, it is recorded
+     * in the read buffer and the item becomes the newest one when the buffer is replayed by the next writer.
+     * Item found on the lower level is put on the top level under the exclusive lock.
+     *
+     * @param id item id.
+     * @return null if there is no item with the specified id in the segment.
+     * @throws CacheException if any level cannot reprocess item getting.
+     */
+    Cacheable get(long id) throws CacheException {
+        Cacheable result;
+        if (bufferedReads()) {
+            Lock readLock = lock.readLock();
+            readLock.lock();
+            try {
+                result = peekTop(id);
+            } finally {
+                readLock.unlock();
+            }
+            if (result != null) {
+                replayReadsIfFull();
+                return result;
+            }
+        }
+        if (sharedReads()) {
+            Lock readLock = lock.readLock();
+            readLock.lock();
+            try {
+                result = find(id);
+            } finally {
+                readLock.unlock();
+            }
+        } else {
+            Lock writeLock = lock.writeLock();
+            writeLock.lock();
+            try {
+                replayReads();
+                expire();
+                result = findAndRaise(id);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get item from the top levels that keep items in memory, without waiting for the lock.
+     * Item found below the top level is raised only if the top level has room for it, so no item is displaced
+     * and no blocking level is touched. Otherwise the caller must search the segment.
+     *
+     * @param id item id.
+     * @return completed future of the item, or of null if all levels keep items in memory and miss the item.
+     * Null if the item is not found in memory, it cannot be raised in memory or the segment is locked.
+     * The caller must search the segment by {@link #get(long)} then.
+     * @throws CacheException if any level cannot reprocess item getting.
+     */
+    CompletableFuture<Cacheable> getInline(long id) throws CacheException {
+        int levelCount = 0;
+        while ((levelCount < cacheLevelList.size()) && !cacheLevelList.get(levelCount).isBlocking()) {
+            levelCount++;
+        }
+        if ((levelCount == 0) && (cacheStrategy != CacheStrategy.TINY_LFU)) {
+            return null;
+        }
+        if (bufferedReads()) {
+            Lock readLock = lock.readLock();
+            if (!readLock.tryLock()) {
+                return null;
+            }
+            Cacheable result;
+            try {
+                result = peekTop(id);
+            } finally {
+                readLock.unlock();
+            }
+            if (result != null) {
+                replayReadsIfFull();
+                return CompletableFuture.completedFuture(result);
+            }
+        }
+        boolean sharedReads = sharedReads();
+        Lock segmentLock = sharedReads ? lock.readLock() : lock.writeLock();
+        if (!segmentLock.tryLock()) {
+            return null;
+        }
+        boolean searchedAll = levelCount == cacheLevelList.size(); // the miss is final and counted
+        Cacheable result;
+        try {
+            if (sharedReads) {
+                result = find(id, levelCount);
+            } else {
+                replayReads();
+                result = findAndRaise(id, levelCount, searchedAll);
+            }
+        } finally {
+            segmentLock.unlock();
+        }
+        return ((result != null) || searchedAll) ? CompletableFuture.completedFuture(result) : null;
+    }
+
+    /**
+     * @return false if the segment definitely does not contain the item.
+     * @throws CacheLevelException if any level cannot be asked.
+     */
+    boolean mightContain(long id) throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            if (isExpired(id, now())) {
+                return false;
+            }
+            if ((window != null) && window.containsKey(id)) {
+                return true;
+            }
+            for (CacheLevel cacheLevel : cacheLevelList) {
+                if (cacheLevel.mightContain(id)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Remove item from the segment.
+     *
+     * @param id item id.
+     * @return true if the item was removed, false if there was no such item.
+     * @throws CacheException if any level cannot reprocess item removing.
+     */
+    boolean remove(long id) throws CacheException {
+        return pull(id) != null;
+    }
+
+    /**
+     * Remove item from the segment.
+     *
+     * @param id item id.
+     * @return removed item, or null if there was no such item.
+     * @throws CacheException if any level cannot reprocess item removing.
+     */
+    Cacheable pull(long id) throws CacheException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            boolean expired = isExpired(id, now());
+            wheel.cancel(id);
+            Cacheable result = removeFromWindow(id);
+            for (int i = 0; (result == null) && (i < cacheLevelList.size()); i++) {
+                CacheLevel cacheLevel = cacheLevelList.get(i);
+                if (cacheLevel.mightContain(id)) {
+                    result = cacheLevel.pull(id);
+                }
+            }
+            removeCopy(id);
+            if ((result != null) && !expired) {
+                trace(TraceEvent.Type.REMOVE, -1, id);
+            }
+            return expired ? null : result; // expired item is removed, but it was not in the segment already
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot remove item with id = " + id, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get items in the segment by ids under one lock. Every level is asked once for all ids that are not found yet.
+     * For the LRU strategy items found on the lower levels are moved to the top level together.
+     *
+     * @param ids items ids.
+     * @param result map that receives found items by id.
+     * @throws CacheException if any level cannot reprocess items getting.
+     */
+    void getAll(long[] ids, Map<Long, Cacheable> result) throws CacheException {
+        boolean sharedReads = sharedReads();
+        Lock segmentLock = sharedReads ? lock.readLock() : lock.writeLock();
+        segmentLock.lock();
+        try {
+            if (!sharedReads) {
+                replayReads();
+                expire();
+            }
+            if (cacheStrategy == CacheStrategy.TINY_LFU) {
+                for (long id : ids) {
+                    Cacheable cacheable = findAndRaise(id);
+                    if (cacheable != null) {
+                        result.put(id, cacheable);
+                    }
+                }
+                return;
+            }
+            List<Cacheable> raised = new ArrayList<>();
+            int foundCount = 0;
+            long[] missing = ids;
+            long now = now();
+            if (wheel.size() > 0) { // items that expired after the last advance of the wheel are missing
+                missing = new long[ids.length];
+                int missingCount = 0;
+                for (long id : ids) {
+                    if (!isExpired(id, now)) {
+                        missing[missingCount++] = id;
+                    }
+                }
+                missing = Arrays.copyOf(missing, missingCount);
+            }
+            int levelNum = 0;
+            for (CacheLevel cacheLevel : cacheLevelList) {
+                long[] candidates = new long[missing.length];
+                int candidateCount = 0;
+                for (long id : missing) {
+                    if (cacheLevel.mightContain(id)) {
+                        candidates[candidateCount++] = id;
+                    }
+                }
+                LevelStatsCounter counter = levelStats[levelNum];
+                if (candidateCount > 0) {
+                    long start = System.nanoTime();
+                    Map<Long, Cacheable> found = cacheLevel.getAll(Arrays.copyOf(candidates, candidateCount));
+                    counter.recordGet(System.nanoTime() - start);
+                    foundCount += found.size();
+                    counter.recordHits(found.size());
+                    counter.recordMisses(missing.length - found.size());
+                    for (Cacheable cacheable : found.values()) {
+                        result.put(cacheable.getId(), cacheable);
+                        trace(TraceEvent.Type.HIT, cacheLevel.getOrder(), cacheable.getId());
+                        if (!sharedReads) {
+                            wheel.touch(cacheable.getId(), now);
+                            recordAccess(cacheable.getId());
+                        }
+                        if ((levelNum > 0) && (cacheStrategy == CacheStrategy.LEAST_RECENTLY_USED) && isPromoted(cacheable.getId())) {
+                            leave(cacheLevel, cacheable.getId());
+                            counter.recordPromotion();
+                            raised.add(cacheable);
+                        }
+                    }
+                    long[] stillMissing = new long[missing.length];
+                    int stillMissingCount = 0;
+                    for (long id : missing) {
+                        if (!found.containsKey(id)) {
+                            stillMissing[stillMissingCount++] = id;
+                        }
+                    }
+                    missing = Arrays.copyOf(stillMissing, stillMissingCount);
+                } else {
+                    counter.recordMisses(missing.length);
+                }
+                if (missing.length == 0) {
+                    break;
+                }
+                levelNum++;
+            }
+            hitCount.add(foundCount);
+            missCount.add(ids.length - foundCount);
+            if (trace != null) {
+                for (long id : ids) {
+                    if (!result.containsKey(id)) {
+                        trace(TraceEvent.Type.MISS, -1, id);
+                    }
+                }
+            }
+            if (!raised.isEmpty()) {
+                putAllByStrategy(raised, cacheLevelList);
+            }
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot get items with ids = " + Arrays.toString(ids), e);
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    /**
+     * Internal method. Searches levels from top to bottom without changing them.
+     */
+    private Cacheable find(long id) throws CacheException {
+        return find(id, cacheLevelList.size());
+    }
+
+    /**
+     * Internal method. Searches the specified quantity of top levels without changing them.
+     */
+    private Cacheable find(long id, int levelCount) throws CacheException {
+        boolean countMiss = levelCount == cacheLevelList.size(); // otherwise the caller searches the segment again
+        if (isExpired(id, now())) {
+            if (countMiss) {
+                missCount.increment();
+                trace(TraceEvent.Type.MISS, -1, id);
+            }
+            return null; // the item is removed by the next writer
+        }
+        int levelNum = 0;
+        for (CacheLevel cacheLevel : cacheLevelList.subList(0, levelCount)) {
+            try {
+                Cacheable cacheable = getFrom(levelNum, id);
+                if (cacheable != null) {
+                    hitCount.increment();
+                    trace(TraceEvent.Type.HIT, cacheLevel.getOrder(), id);
+                    return cacheable;
+                }
+            } catch (CacheLevelException e) {
+                throw new CacheException("Cannot get item with id = " + id, e);
+            }
+            levelNum++;
+        }
+        if (countMiss) {
+            missCount.increment();
+            trace(TraceEvent.Type.MISS, -1, id);
+        }
+        return null;
+    }
+
+    /**
+     * Internal method. Searches levels from top to bottom, the found item becomes the newest one.
+     * Top level updates the order by itself, item from the lower level is moved to the top level.
+     * For the TinyLFU strategy the access is counted, and the item from the lower level is admitted again.
+     */
+    private Cacheable findAndRaise(long id) throws CacheException {
+        return findAndRaise(id, cacheLevelList.size(), true);
+    }
+
+    /**
+     * Internal method. Searches the specified quantity of top levels, the found item becomes the newest one.
+     * If not all levels are searched, the item found below the top level is raised only when the top level has room
+     * for it, otherwise null is returned before anything is counted and the caller must search the whole segment.
+     * So the lower levels are not touched and no item is displaced.
+     *
+     * @param countMiss false if the miss must not be counted by the TinyLFU strategy and the statistics,
+     *                  because the lower levels will be searched later.
+     */
+    private Cacheable findAndRaise(long id, int levelCount, boolean countMiss) throws CacheException {
+        long now = now();
+        if (isExpired(id, now)) {
+            if (levelCount == cacheLevelList.size()) { // otherwise the lower levels must not be touched
+                removeExpired(new long[]{id});
+            }
+            if (countMiss) {
+                missCount.increment();
+                trace(TraceEvent.Type.MISS, -1, id);
+            }
+            return null;
+        }
+        wheel.touch(id, now);
+        if (cacheStrategy == CacheStrategy.TINY_LFU) {
+            Cacheable cacheable = window.get(id);
+            if (cacheable != null) {
+                sketch.increment(id);
+                recordAccess(id);
+                hitCount.increment();
+                trace(TraceEvent.Type.HIT, -1, id);
+                return cacheable;
+            }
+        }
+        boolean inline = levelCount < cacheLevelList.size();
+        int levelNum = 0;
+        for (CacheLevel cacheLevel : cacheLevelList.subList(0, levelCount)) {
+            Cacheable cacheable;
+            try {
+                if (inline && (levelNum > 0) && cacheLevel.mightContain(id) && !cacheLevelList.get(0).hasRoomFor(1)) {
+                    return null; // raising would displace items below the top level
+                }
+                cacheable = getFrom(levelNum, id);
+                if (cacheable != null) {
+                    if (inline && (levelNum > 0) && !fitsTop(cacheable)) {
+                        return null;
+                    }
+                    hitCount.increment();
+                    trace(TraceEvent.Type.HIT, cacheLevel.getOrder(), id);
+                    recordAccess(id);
+                    if (cacheStrategy == CacheStrategy.TINY_LFU) {
+                        sketch.increment(id);
+                    }
+                    if ((levelNum > 0) && isPromoted(id)) {
+                        List<CacheLevel> raiseLevels = cacheLevelList;
+                        if (inline) {
+                            cacheLevel.pull(id); // the top level has room, nothing is displaced
+                            raiseLevels = cacheLevelList.subList(0, levelNum + 1);
+                        } else {
+                            leave(cacheLevel, id);
+                        }
+                        levelStats[levelNum].recordPromotion();
+                        if (cacheStrategy == CacheStrategy.TINY_LFU) {
+                            admit(cacheable, raiseLevels);
+                        } else {
+                            putByStrategy(cacheable, levelListByStrategy(raiseLevels));
+                        }
+                    }
+                    return cacheable;
+                }
+            } catch (CacheLevelException | CacheException e) {
+                throw new CacheException("Cannot get item with id = " + id, e);
+            }
+            levelNum++;
+        }
+        if (countMiss) {
+            missCount.increment();
+            trace(TraceEvent.Type.MISS, -1, id);
+            if (cacheStrategy == CacheStrategy.TINY_LFU) {
+                sketch.increment(id);
+            }
+        }
+        return null; // return null if nothing was found
+    }
+
+    /**
+     * Internal method.
+     * @return true if the top level takes the item without displacing any item.
+     */
+    private boolean fitsTop(Cacheable cacheable) throws CacheLevelException {
+        CacheLevel topLevel = cacheLevelList.get(0);
+        int weight = topLevel.weigh(cacheable);
+        topLevel.releaseWeighed();
+        return topLevel.hasRoomFor(weight);
+    }
+
+    /**
+     * Internal method. Use strategy defined method of displace item from the cache levels if cache levels are full.
+     * Must be called under the write lock.
+     *
+     * @param cacheable        item that should be stored in the segment.
+     * @param levelsByStrategy levels that are using in shifting displaced items, the first one receives the item.
+     * @throws CacheException if any level cannot reprocess item adding.
+     */
+    private void putByStrategy(Cacheable cacheable, List<CacheLevel> levelsByStrategy) throws CacheException {
+        CacheLevel cacheLevel = null;
+        try {
+            cacheLevel = levelsByStrategy.get(0);
+            if (cacheLevel != null) {
+                if (dropCopy(cacheLevel, cacheable.getId())) { // displaced item reached the level of its copy
+                    return;
+                }
+                int weight = cacheLevel.weigh(cacheable);
+                if (weight > cacheLevel.maxSize()) { // item is heavier than the whole level, it goes to the next level
+                    cacheLevel.releaseWeighed();
+                    if (levelsByStrategy.size() > 1) {
+                        putByStrategy(cacheable, levelsByStrategy.subList(1, levelsByStrategy.size()));
+                    } else {
+                        lose(cacheLevel, cacheable);
+                    }
+                    return;
+                }
+                while (!cacheLevel.hasRoomFor(weight)) {                     // if level is full, strategy defined items must be displaced by the one that need to be saved
+                    Cacheable displacedData = cacheLevel.pullByStrategy(); // get the item that need to be shifted or removed
+                    if (displacedData == null) {
+                        break;
+                    }
+                    if (dropCopy(cacheLevel, displacedData.getId())) { // the upper copy stays
+                        continue;
+                    }
+                    if ((levelsByStrategy.size() > 1)                      // if it is not the last level, shift displaced data to next level
+                            && isAdmittedBelow(cacheLevel, levelsByStrategy.get(1), displacedData.getId())) {
+                        statsOf(cacheLevel).recordDisplacement(true);
+                        putByStrategy(displacedData, levelsByStrategy.subList(1, levelsByStrategy.size()));
+                    } else {                                               // on the last level, or not admitted below, displaced item is lost
+                        lose(cacheLevel, displacedData);
+                    }
+                }
+                putOn(cacheLevel, cacheable); // there is a free place on this level now
+            } else {
+                throw new CacheException("Cannot get level to put item on it", new NullPointerException());
+            }
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot put item with id = " + cacheable.getId() + " in level " + cacheLevel.getOrder(), e);
+        }
+    }
+
+    /**
+     * Internal method. Puts the group of items on the first level. Place for the whole group is freed at once,
+     * displaced items and items of the group that don't fit the level are moved to the next level together.
+     * On the last level they are lost. Must be called under the write lock.
+     *
+     * @param cacheables       items that should be stored, from the eldest to the newest.
+     * @param levelsByStrategy levels that are using in shifting displaced items, the first one receives the items.
+     * @throws CacheException if any level cannot reprocess items adding.
+     */
+    private void putAllByStrategy(List<Cacheable> cacheables, List<CacheLevel> levelsByStrategy) throws CacheException {
+        CacheLevel cacheLevel = levelsByStrategy.get(0);
+        if (copies != null) { // displaced items that reached the level of their copies
+            List<Cacheable> moved = new ArrayList<>(cacheables.size());
+            for (Cacheable cacheable : cacheables) {
+                if (!dropCopy(cacheLevel, cacheable.getId())) {
+                    moved.add(cacheable);
+                }
+            }
+            cacheables = moved;
+        }
+        try {
+            int maxSize = cacheLevel.maxSize();
+            List<Cacheable> displaced = new ArrayList<>();
+            int first = cacheables.size(); // the eldest items of the group would be displaced by the newest ones
+            long storedWeight = 0;
+            while (first > 0) {
+                int weight = cacheLevel.weigh(cacheables.get(first - 1));
+                if (storedWeight + weight > maxSize) {
+                    break;
+                }
+                storedWeight += weight;
+                first--;
+            }
+            if (first > 0) { // the last weighed item is not put on this level
+                cacheLevel.releaseWeighed();
+            }
+            List<Cacheable> stored = cacheables.subList(first, cacheables.size());
+            while (!cacheLevel.hasRoomFor(storedWeight)) {
+                Cacheable displacedData = cacheLevel.pullByStrategy();
+                if (displacedData == null) {
+                    break;
+                }
+                if (dropCopy(cacheLevel, displacedData.getId())) { // the upper copy stays
+                    continue;
+                }
+                if (levelsByStrategy.size() > 1) {
+                    if (!isAdmittedBelow(cacheLevel, levelsByStrategy.get(1), displacedData.getId())) {
+                        lose(cacheLevel, displacedData);
+                        continue;
+                    }
+                    statsOf(cacheLevel).recordDisplacement(true);
+                }
+                displaced.add(displacedData);
+            }
+            if (!stored.isEmpty()) {
+                long start = System.nanoTime();
+                cacheLevel.putAll(stored);
+                statsOf(cacheLevel).recordPut(stored.size(), System.nanoTime() - start);
+            }
+            displaced.addAll(cacheables.subList(0, first));
+            if (!displaced.isEmpty() && (levelsByStrategy.size() > 1)) {
+                putAllByStrategy(displaced, levelsByStrategy.subList(1, levelsByStrategy.size()));
+            } else {
+                for (Cacheable lost : displaced) {
+                    lose(cacheLevel, lost);
+                }
+            }
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot put " + cacheables.size() + " items in level " + cacheLevel.getOrder(), e);
+        }
+    }
+
+    /**
+     * Internal method. Puts the new item in the admission window. The eldest item of the full window
+     * is admitted to the levels. Must be called under the write lock.
+     */
+    private void putInWindow(Cacheable cacheable) throws CacheException {
+        if (weighted && ((++admissionCount % WEIGHTED_SKETCH_SIZE) == 0)) {
+            try {
+                sketch.ensureCapacity(size()); // the quantity of items that fit the weighted levels is known only by now
+            } catch (CacheLevelException e) {
+                throw new CacheException("Cannot count items of the segment", e);
+            }
+        }
+        if (windowSize == 0) {
+            admit(cacheable, cacheLevelList);
+            return;
+        }
+        window.put(cacheable.getId(), cacheable);
+        windowWeight += weighInWindow(cacheable);
+        while (windowWeight > windowSize) {
+            Cacheable candidate = removeFromWindow(window.keySet().iterator().next());
+            admit(candidate, cacheLevelList);
+        }
+    }
+
+    /**
+     * Internal method. Items of the window are weighed as the items of the top level.
+     */
+    private int weighInWindow(Cacheable cacheable) throws CacheException {
+        try {
+            int result = cacheLevelList.get(0).weigh(cacheable);
+            cacheLevelList.get(0).releaseWeighed(); // item is put on the level after it leaves the window
+            return result;
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot weigh item with id = " + cacheable.getId(), e);
+        }
+    }
+
+    /**
+     * Internal method. Must be called under the write lock.
+     * @return item removed from the admission window, or null if the window does not contain it.
+     */
+    private Cacheable removeFromWindow(long id) throws CacheException {
+        Cacheable result = (window == null) ? null : window.remove(id);
+        if (result != null) {
+            windowWeight -= weighInWindow(result);
+        }
+        return result;
+    }
+
+    /**
+     * Internal method. TinyLFU admission. If the level is full, the candidate displaces the eldest item
+     * only if the candidate is used more frequently, the displaced item is admitted to the next level.
+     * Otherwise the candidate is admitted to the next level. On the last level the loser is lost.
+     * Must be called under the write lock.
+     *
+     * @param candidate item that should be stored in the segment.
+     * @param levels    levels that the candidate can be stored on, the first one is tried first.
+     * @throws CacheException if any level cannot reprocess item adding.
+     */
+    private void admit(Cacheable candidate, List<CacheLevel> levels) throws CacheException {
+        CacheLevel cacheLevel = levels.get(0);
+        List<CacheLevel> nextLevels = levels.subList(1, levels.size());
+        if (dropCopy(cacheLevel, candidate.getId())) { // candidate reached the level of its copy
+            return;
+        }
+        try {
+            int weight = cacheLevel.weigh(candidate);
+            if (weight > cacheLevel.maxSize()) { // candidate is heavier than the whole level
+                cacheLevel.releaseWeighed();
+                if (!nextLevels.isEmpty()) {
+                    admit(candidate, nextLevels);
+                } else {
+                    lose(cacheLevel, candidate);
+                }
+                return;
+            }
+            while (!cacheLevel.hasRoomFor(weight)) {
+                Cacheable victim = cacheLevel.getByStrategy();
+                if ((victim != null) && (sketch.frequency(candidate.getId()) <= sketch.frequency(victim.getId()))) {
+                    cacheLevel.releaseWeighed();
+                    if (!nextLevels.isEmpty() && isAdmittedBelow(cacheLevel, nextLevels.get(0), candidate.getId())) {
+                        admit(candidate, nextLevels);
+                    } else {
+                        lose(cacheLevel, candidate);
+                    }
+                    return;
+                }
+                Cacheable displacedData = cacheLevel.pullByStrategy();
+                if (displacedData == null) {
+                    break;
+                }
+                if (dropCopy(cacheLevel, displacedData.getId())) { // the upper copy stays
+                    continue;
+                }
+                if (!nextLevels.isEmpty() && isAdmittedBelow(cacheLevel, nextLevels.get(0), displacedData.getId())) {
+                    statsOf(cacheLevel).recordDisplacement(true);
+                    admit(displacedData, nextLevels);
+                } else {
+                    lose(cacheLevel, displacedData);
+                }
+            }
+            putOn(cacheLevel, candidate);
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot put item with id = " + candidate.getId() + " in level " + cacheLevel.getOrder(), e);
+        }
+    }
+
+    /**
+     * Internal method. Counts the hit on the lower level. Must be called under the write lock.
+     * @return true if the item was hit often enough to be raised to the top level.
+     */
+    private boolean isPromoted(long id) {
+        if (promotionThreshold <= 1) {
+            return true;
+        }
+        if (promotionSketch == null) { // the TinyLFU sketch has counted the hit
+            return sketch.frequency(id) >= promotionThreshold;
+        }
+        promotionSketch.increment(id);
+        return promotionSketch.frequency(id) >= promotionThreshold;
+    }
+
+    /**
+     * Internal method. The item raised from the lower level leaves it, or keeps its copy there in the inclusive
+     * hierarchy. Item that has the copy already is moved, so it has two copies at most. The write-behind level
+     * displaces items by its own segment, so it keeps no copies. Must be called under the write lock.
+     */
+    private void leave(CacheLevel cacheLevel, long id) throws CacheLevelException {
+        if ((copies != null) && !(cacheLevel instanceof WriteBehindLevel) && !copies.containsKey(id)) {
+            copies.put(id, cacheLevel);
+        } else {
+            cacheLevel.pull(id); // there is a free place for displaced items on this level now
+        }
+    }
+
+    /**
+     * Internal method. In the inclusive hierarchy the item that reaches the level of its copy, or the copy displaced
+     * from that level, is dropped: the other copy stays in the segment. Must be called under the write lock.
+     *
+     * @return true if the level keeps the copy of the item, the item has one copy then.
+     */
+    private boolean dropCopy(CacheLevel cacheLevel, long id) {
+        if ((copies != null) && (copies.get(id) == cacheLevel)) {
+            copies.remove(id);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Internal method. Counts the put of the item or the hit on it by the admission filter. Must be called under the write lock.
+     */
+    private void recordAccess(long id) {
+        if (diskAdmission != null) {
+            diskAdmission.record(id);
+        }
+    }
+
+    /**
+     * Internal method. The item displaced from the memory level to the blocking level is written only if the admission
+     * filter admits it, the item that has the copy below is always moved to it. Must be called under the write lock.
+     *
+     * @return true if the displaced item should be moved to the next level, false if it should be lost.
+     */
+    private boolean isAdmittedBelow(CacheLevel cacheLevel, CacheLevel nextLevel, long id) {
+        if ((diskAdmission == null) || cacheLevel.isBlocking() || !nextLevel.isBlocking()
+                || ((copies != null) && copies.containsKey(id))) {
+            return true;
+        }
+        return diskAdmission.admit(id);
+    }
+
+    /**
+     * Internal method. Removes the lower copy of the item in the inclusive hierarchy. Must be called under the write lock.
+     */
+    private void removeCopy(long id) throws CacheLevelException {
+        CacheLevel copy = (copies == null) ? null : copies.remove(id);
+        if (copy != null) {
+            copy.pull(id);
+        }
+    }
+
+    /**
+     * Internal method. Gets the item from the level, the search is counted by the statistics of the level.
+     */
+    private Cacheable getFrom(int levelNum, long id) throws CacheLevelException {
+        CacheLevel cacheLevel = cacheLevelList.get(levelNum);
+        LevelStatsCounter counter = levelStats[levelNum];
+        Cacheable result = null;
+        if (cacheLevel.mightContain(id)) {
+            long start = System.nanoTime();
+            result = cacheLevel.get(id);
+            counter.recordGet(System.nanoTime() - start);
+        }
+        if (result != null) {
+            counter.recordHits(1);
+        } else {
+            counter.recordMisses(1);
+        }
+        return result;
+    }
+
+    /**
+     * Internal method. Puts the item on the level, the put is counted by the statistics of the level.
+     */
+    private void putOn(CacheLevel cacheLevel, Cacheable cacheable) throws CacheLevelException {
+        long start = System.nanoTime();
+        cacheLevel.put(cacheable);
+        statsOf(cacheLevel).recordPut(1, System.nanoTime() - start);
+    }
+
+    /**
+     * Internal method. The item displaced from the last level, or not admitted to it, leaves the segment.
+     */
+    private void lose(CacheLevel cacheLevel, Cacheable cacheable) {
+        statsOf(cacheLevel).recordDisplacement(false);
+        wheel.cancel(cacheable.getId());
+        if (members != null) {
+            members.remove(cacheable.getId());
+        }
+        trace(TraceEvent.Type.EVICT, cacheLevel.getOrder(), cacheable.getId());
+    }
+
+    /**
+     * Internal method. Records the event if the segment is traced, nothing is done otherwise.
+     */
+    private void trace(TraceEvent.Type type, int level, long id) {
+        if (trace != null) {
+            trace.record(type, segmentNum, level, id, 0);
+        }
+    }
+
+    private LevelStatsCounter statsOf(CacheLevel cacheLevel) {
+        for (int i = 0; i < levelStats.length; i++) {
+            if (cacheLevelList.get(i) == cacheLevel) {
+                return levelStats[i];
+            }
+        }
+        throw new IllegalArgumentException("Level " + cacheLevel.getOrder() + " does not belong to the segment");
+    }
+
+    /**
+     * Internal method.
+     * @return list of levels that are using in shifting displaced items from top levels to bottom.
+     */
+    private List<CacheLevel> levelListByStrategy() {
+        return levelListByStrategy(cacheLevelList);
+    }
+
+    /**
+     * Internal method.
+     * @param levels top levels of the segment that the item can be stored on.
+     * @return list of the specified levels that are using in shifting displaced items from top levels to bottom.
+     */
+    private List<CacheLevel> levelListByStrategy(List<CacheLevel> levels) {
+        List<CacheLevel> result = new ArrayList<>();
+        switch (cacheStrategy) {
+            case LEAST_RECENTLY_USED:
+            case TINY_LFU: {
+                result.addAll(levels);
+                break;
+            }
+            case RANDOM: {
+                CacheLevel randomCacheLevel = levels.get(ThreadLocalRandom.current().nextInt(levels.size()));
+                result.add(randomCacheLevel);
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Internal method. Remove item from the segment. Must be called under the write lock.
+     *
+     * @param id item id
+     * @return level order, that contained item that was removed. Returns -1 if item was not found.
+     * @throws CacheException if any level cannot reprocess item removing.
+     */
+    private int removeItem(long id) throws CacheException {
+        int result = -1;
+        try {
+            for (int i = 0; i < cacheLevelList.size(); i++) {
+                CacheLevel cacheLevel = cacheLevelList.get(i);
+                if (cacheLevel.mightContain(id) && (cacheLevel.pull(id) != null)) {
+                    result = i;
+                    break;
+                }
+            }
+            removeCopy(id);
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot remove item with id = " + id, e);
+        }
+        return result;
+    }
+
+    /**
+     * Removes the expired items at once. Otherwise they are removed by the next operations that change the segment.
+     *
+     * @throws CacheException if any level cannot reprocess items removing.
+     */
+    void cleanUp() throws CacheException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            replayReads();
+            expire();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Internal method.
+     * @return current time in milliseconds, never goes back.
+     */
+    private static long now() {
+        return (System.nanoTime() - START) / 1_000_000;
+    }
+
+    /**
+     * Internal method.
+     * @return true if the readers may share the lock, i.e. the strategy does not reorder items on get
+     * and no item expires by idleness.
+     */
+    private boolean sharedReads() {
+        return (cacheStrategy == CacheStrategy.RANDOM) && !idleExpiry;
+    }
+
+    /**
+     * Internal method.
+     * @return true if the hits on the top level are found under the shared lock and recorded in the read buffer,
+     * i.e. the strategy is LRU, the top level can be read without changes and no item expires by idleness.
+     */
+    private boolean bufferedReads() {
+        return (cacheStrategy == CacheStrategy.LEAST_RECENTLY_USED) && !idleExpiry && !cacheLevelList.get(0).isBlocking();
+    }
+
+    /**
+     * Internal method. Searches the top level without changing it, the hit is recorded in the read buffer.
+     * Must be called under the read lock.
+     *
+     * @return null if the item is not on the top level or it is expired, the caller must search the segment then.
+     */
+    private Cacheable peekTop(long id) throws CacheException {
+        if (isExpired(id, now())) {
+            return null;
+        }
+        CacheLevel cacheLevel = cacheLevelList.get(0);
+        Cacheable result;
+        long start = System.nanoTime();
+        try {
+            result = cacheLevel.peek(id);
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot get item with id = " + id, e);
+        }
+        if (result != null) {
+            levelStats[0].recordGet(System.nanoTime() - start);
+            levelStats[0].recordHits(1);
+            hitCount.increment();
+            trace(TraceEvent.Type.HIT, cacheLevel.getOrder(), id);
+            long index = readIndex.getAndIncrement();
+            readBuffer.set((int) index & READ_BUFFER_MASK, id);
+        }
+        return result;
+    }
+
+    /**
+     * Internal method. Replays the read buffer if it is half full and the segment is not locked,
+     * otherwise the next writer replays it.
+     */
+    private void replayReadsIfFull() throws CacheException {
+        if (readIndex.get() - readsDrained < READ_BUFFER_SIZE / 2) { // racy read, the writer checks it again
+            return;
+        }
+        Lock writeLock = lock.writeLock();
+        if (writeLock.tryLock()) {
+            try {
+                replayReads();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Internal method. Replays the hits recorded under the read lock, so the found items become the newest ones
+     * in the order of their hits. Hits overwritten in the full buffer are lost, their items just keep their places.
+     * Must be called under the write lock before the order of items is used.
+     */
+    private void replayReads() throws CacheException {
+        long end = readIndex.get();
+        if (end == readsDrained) {
+            return;
+        }
+        CacheLevel cacheLevel = cacheLevelList.get(0);
+        try {
+            for (long index = Math.max(readsDrained, end - READ_BUFFER_SIZE); index < end; index++) {
+                long id = readBuffer.get((int) index & READ_BUFFER_MASK);
+                if (cacheLevel.get(id) != null) { // get of the memory level makes the item the newest one
+                    recordAccess(id);
+                }
+            }
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot replay hits of level " + cacheLevel.getOrder(), e);
+        }
+        readsDrained = end;
+    }
+
+    private boolean isExpired(long id, long now) {
+        return (wheel.size() > 0) && wheel.isExpired(id, now);
+    }
+
+    /**
+     * Internal method. Sets the expiration of the item. Must be called under the write lock.
+     */
+    private void schedule(long id, long expireAfterWrite, long expireAfterAccess) {
+        if ((expireAfterWrite > 0) || (expireAfterAccess > 0)) {
+            wheel.schedule(id, now(), expireAfterWrite, expireAfterAccess);
+            if (expireAfterAccess > 0) {
+                idleExpiry = true;
+            }
+        } else {
+            wheel.cancel(id);
+        }
+    }
+
+    /**
+     * Internal method. Turns the timer wheel and removes the expired items from every level by one batch.
+     * Must be called under the write lock.
+     */
+    private void expire() throws CacheException {
+        long[] expired = wheel.advance(now());
+        if (expired.length > 0) {
+            removeExpired(expired);
+        }
+    }
+
+    /**
+     * Internal method. Removes the items from the admission window and levels. Must be called under the write lock.
+     */
+    private void removeExpired(long[] ids) throws CacheException {
+        try {
+            for (long id : ids) {
+                wheel.cancel(id);
+                removeFromWindow(id);
+                if (copies != null) {
+                    copies.remove(id); // copies are removed from all levels below
+                }
+                trace(TraceEvent.Type.EXPIRE, -1, id);
+                if (members != null) {
+                    members.remove(id);
+                }
+            }
+            for (CacheLevel cacheLevel : cacheLevelList) {
+                cacheLevel.removeAll(ids);
+            }
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot remove " + ids.length + " expired items", e);
+        }
+    }
+
+    /**
+     * @return quantity of items stored in the segment.
+     * @throws CacheLevelException if any level cannot be asked.
+     */
+    int size() throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            int result = (window == null) ? 0 : window.size();
+            for (CacheLevel cacheLevel : cacheLevelList) {
+                result += cacheLevel.size();
+            }
+            return (copies == null) ? result : result - copies.size(); // the item with the copy is counted once
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @param levelNum level number, starting from 0.
+     * @return quantity of items stored on the level of the segment.
+     * @throws CacheLevelException if the level cannot be asked.
+     */
+    int size(int levelNum) throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return cacheLevelList.get(levelNum).size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return quantity of items that can be stored in the segment.
+     * @throws CacheLevelException if any level cannot be asked.
+     */
+    int maxSize() throws CacheLevelException {
+        int result = windowSize;
+        for (CacheLevel cacheLevel : cacheLevelList) {
+            result += cacheLevel.maxSize();
+        }
+        return result;
+    }
+
+    /**
+     * @return total weight of items on all levels, their quantity if the levels are not weighted.
+     * @throws CacheLevelException if any level cannot be asked.
+     */
+    long weight() throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            long result = windowWeight;
+            for (CacheLevel cacheLevel : cacheLevelList) {
+                result += cacheLevel.weight();
+            }
+            return result;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    long hitCount() {
+        return hitCount.sum();
+    }
+
+    long missCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return statistics of the levels, the write-behind level is replaced by the levels that it writes to.
+     */
+    List<LevelStats> levelStats() {
+        List<LevelStats> result = new ArrayList<>(levelStats.length);
+        for (int i = 0; i < levelStats.length; i++) {
+            CacheLevel cacheLevel = cacheLevelList.get(i);
+            if (cacheLevel instanceof WriteBehindLevel) {
+                result.addAll(((WriteBehindLevel) cacheLevel).lowerLevelStats());
+            } else {
+                result.add(levelStats[i].snapshot());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if any level of the segment is weighted.
+     */
+    boolean isWeighted() {
+        return weighted;
+    }
+
+    /**
+     * @return true if the last level of the segment is full.
+     * @throws CacheLevelException if the level cannot be asked.
+     */
+    boolean isFull() throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            CacheLevel lastLevel = cacheLevelList.get(cacheLevelList.size() - 1);
+            return (lastLevel instanceof WriteBehindLevel) ? ((WriteBehindLevel) lastLevel).isLowerFull() : lastLevel.isFull();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Clears all levels of the segment.
+     * @throws CacheLevelException if any level cannot be cleared.
+     */
+    void clear() throws CacheLevelException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            for (CacheLevel cacheLevel : cacheLevelList) {
+                cacheLevel.clear();
+            }
+            readsDrained = readIndex.get();
+            wheel.clear();
+            if (copies != null) {
+                copies.clear();
+            }
+            if (window != null) {
+                window.clear();
+                windowWeight = 0;
+                sketch.clear();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the ids of the items of the segment to the set, the items are not read. Used by the cluster to find
+     * the items that move between its nodes.
+     *
+     * @param result ids of the items, expired items that are not removed yet may be included.
+     * @return false if any level does not know the ids of its items.
+     * @throws CacheLevelException if any level cannot be asked.
+     */
+    boolean ids(Set<Long> result) throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            if (window != null) {
+                result.addAll(window.keySet());
+            }
+            for (CacheLevel cacheLevel : cacheLevelList) {
+                long[] ids = cacheLevel.ids();
+                if (ids == null) {
+                    return false;
+                }
+                for (long id : ids) {
+                    result.add(id);
+                }
+            }
+            return true;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Moves all items of the segment to the map, the segment is empty after it. Expired items are dropped,
+     * items keep no expiration and access history. In the inclusive hierarchy the upper copy of the item is taken.
+     *
+     * @param result items by id, items that are already in the map are not replaced.
+     * @throws CacheException if any level cannot be drained.
+     */
+    void drain(Map<Long, Cacheable> result) throws CacheException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            long now = now();
+            if (window != null) {
+                for (Cacheable cacheable : window.values()) {
+                    if (!isExpired(cacheable.getId(), now)) {
+                        result.putIfAbsent(cacheable.getId(), cacheable);
+                    }
+                }
+            }
+            for (CacheLevel cacheLevel : cacheLevelList) {
+                if (cacheLevel instanceof WriteBehindLevel) {
+                    ((WriteBehindLevel) cacheLevel).drain(result);
+                    continue;
+                }
+                Cacheable cacheable;
+                while ((cacheable = cacheLevel.pullByStrategy()) != null) {
+                    if (!isExpired(cacheable.getId(), now)) {
+                        result.putIfAbsent(cacheable.getId(), cacheable);
+                    }
+                }
+            }
+            readsDrained = readIndex.get();
+            wheel.clear();
+            if (copies != null) {
+                copies.clear();
+            }
+            if (window != null) {
+                window.clear();
+                windowWeight = 0;
+                sketch.clear();
+            }
+        } catch (CacheLevelException e) {
+            throw new CacheException("Cannot drain segment", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Closes all levels of the segment. Every level is closed even if some of them fail.
+     * @throws CacheLevelException if any level cannot be closed.
+     */
+    void close() throws CacheLevelException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            CacheLevelException failure = null;
+            try {
+                removeCopies();
+            } catch (CacheLevelException e) {
+                failure = e;
+            }
+            for (CacheLevel cacheLevel : cacheLevelList) {
+                try {
+                    cacheLevel.close();
+                } catch (CacheLevelException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Internal method. Removes the lower copies of the items in the inclusive hierarchy, so the persistent levels
+     * keep every item once after restart. Must be called under the write lock.
+     */
+    private void removeCopies() throws CacheLevelException {
+        if ((copies == null) || copies.isEmpty()) {
+            return;
+        }
+        Map<CacheLevel, List<Long>> idsByLevel = new HashMap<>();
+        for (Map.Entry<Long, CacheLevel> entry : copies.entrySet()) {
+            List<Long> ids = idsByLevel.get(entry.getValue());
+            if (ids == null) {
+                ids = new ArrayList<>();
+                idsByLevel.put(entry.getValue(), ids);
+            }
+            ids.add(entry.getKey());
+        }
+        copies.clear();
+        for (Map.Entry<CacheLevel, List<Long>> entry : idsByLevel.entrySet()) {
+            long[] ids = new long[entry.getValue().size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = entry.getValue().get(i);
+            }
+            entry.getKey().removeAll(ids);
+        }
+    }
+}
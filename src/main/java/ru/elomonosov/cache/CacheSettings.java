@@ -0,0 +1,433 @@
+package ru.elomonosov.cache;
+
+import ru.elomonosov.serializer.BinarySerializer;
+import ru.elomonosov.serializer.CacheSerializer;
+import ru.elomonosov.serializer.CompressingSerializer;
+import ru.elomonosov.serializer.Compression;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional parameters of the cache. Default settings give the cache with one segment,
+ * which keeps items on the disk levels in the {@link BinarySerializer} format.
+ */
+public class CacheSettings {
+
+    /**
+     * Default executor of the asynchronous operations, daemon threads are created when needed.
+     */
+    static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadNum = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "cache-async-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private int concurrencyLevel = 1;
+
+    private CacheSerializer serializer = new BinarySerializer();
+
+    private Compression compression = Compression.NONE;
+
+    private int compressionThreshold = CompressingSerializer.DEFAULT_THRESHOLD;
+
+    private Path directory;
+
+    private List<Path> fileDirectories = Collections.emptyList();
+
+    private Executor executor = DEFAULT_EXECUTOR;
+
+    private CacheLoader loader;
+
+    private long expireAfterWrite;
+
+    private long expireAfterAccess;
+
+    private int writeBehindQueueSize;
+
+    private int writeBehindBatchSize = 64;
+
+    private long writeBehindDelay;
+
+    private Backpressure backpressure = Backpressure.BLOCK;
+
+    private Hierarchy hierarchy = Hierarchy.EXCLUSIVE;
+
+    private int promotionThreshold = 1;
+
+    private AdmissionPolicy diskAdmission;
+
+    private InetSocketAddress remoteAddress;
+
+    private int remotePoolSize = 2;
+
+    private String remoteClientName;
+
+    private Weigher weigher;
+
+    private String statsMBeanName;
+
+    private int traceBufferSize;
+
+    private int traceSampling = 1;
+
+    public int getConcurrencyLevel() {
+        return concurrencyLevel;
+    }
+
+    /**
+     * @param concurrencyLevel expected quantity of concurrently working threads. Rounded up to a power of two,
+     *                         but not more than the size of the smallest level.
+     */
+    public void setConcurrencyLevel(int concurrencyLevel) {
+        if (!(concurrencyLevel > 0)) {
+            throw new IllegalArgumentException("Concurrency level must be more than 0");
+        }
+        this.concurrencyLevel = concurrencyLevel;
+    }
+
+    public CacheSerializer getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * @param serializer serializer of items for the levels that keep items out of the java heap.
+     */
+    public void setSerializer(CacheSerializer serializer) {
+        if (serializer == null) {
+            throw new IllegalArgumentException("Serializer must be not null");
+        }
+        this.serializer = serializer;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression compression of the items on the disk levels (file, memory mapped). Other levels keep
+     *                    items uncompressed. Persistent cache written with any compression is reopened with any
+     *                    compression except NONE, the cache written without compression - only with NONE.
+     */
+    public void setCompression(Compression compression) {
+        if (compression == null) {
+            throw new IllegalArgumentException("Compression must be not null");
+        }
+        this.compression = compression;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold serialized items smaller than that quantity of bytes are not compressed.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("Compression threshold must be not less than 0");
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param directory directory of the persistent cache. File levels keep items in it, closed cache created again
+     *                  with the same directory and levels gets its items back. If null, file levels are temporary.
+     */
+    public void setDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    public List<Path> getFileDirectories() {
+        return fileDirectories;
+    }
+
+    /**
+     * @param fileDirectories root directories of the file levels, typically one per device. If set, every file level
+     *                        is split into shards, one per directory, and batch operations use the devices in parallel.
+     *                        Persistent cache keeps the shards in the same relative directories under every root
+     *                        and its layout is kept in the cache directory. Empty (default) - file levels are not sharded.
+     */
+    public void setFileDirectories(List<Path> fileDirectories) {
+        if (fileDirectories == null) {
+            throw new IllegalArgumentException("File directories must be not null");
+        }
+        this.fileDirectories = Collections.unmodifiableList(new ArrayList<>(fileDirectories));
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param executor executor of the asynchronous operations that may wait for the I/O of the lower levels.
+     */
+    public void setExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must be not null");
+        }
+        this.executor = executor;
+    }
+
+    public CacheLoader getLoader() {
+        return loader;
+    }
+
+    /**
+     * @param loader loader of the items that are absent in the cache. If set, get and getAll of the cache load
+     *               missing items and put them in the cache. If null, get returns null for the missing item.
+     */
+    public void setLoader(CacheLoader loader) {
+        this.loader = loader;
+    }
+
+    public long getExpireAfterWrite() {
+        return expireAfterWrite;
+    }
+
+    /**
+     * @param expireAfterWrite milliseconds that the item lives after it is stored, 0 means that items don't expire by age.
+     *                         Expiration times are kept in memory, items of the reopened persistent cache don't expire
+     *                         until they are stored again.
+     */
+    public void setExpireAfterWrite(long expireAfterWrite) {
+        if (expireAfterWrite < 0) {
+            throw new IllegalArgumentException("Expire after write must be not less than 0");
+        }
+        this.expireAfterWrite = expireAfterWrite;
+    }
+
+    public long getExpireAfterAccess() {
+        return expireAfterAccess;
+    }
+
+    /**
+     * @param expireAfterAccess milliseconds that the item lives after the last get or put, 0 means that items
+     *                          don't expire by idleness. With the random strategy readers don't share the lock then.
+     */
+    public void setExpireAfterAccess(long expireAfterAccess) {
+        if (expireAfterAccess < 0) {
+            throw new IllegalArgumentException("Expire after access must be not less than 0");
+        }
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    public int getWriteBehindQueueSize() {
+        return writeBehindQueueSize;
+    }
+
+    /**
+     * @param writeBehindQueueSize quantity of displaced items that every segment may keep in memory until they are
+     *                             written to the first blocking level (file, memory mapped) and below.
+     *                             0 means that the displaced items are written by the put.
+     */
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        if (writeBehindQueueSize < 0) {
+            throw new IllegalArgumentException("Write-behind queue size must be not less than 0");
+        }
+        this.writeBehindQueueSize = writeBehindQueueSize;
+    }
+
+    public int getWriteBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+    /**
+     * @param writeBehindBatchSize quantity of queued items that are written together. Writing starts at once
+     *                             when the batch is collected.
+     */
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        if (!(writeBehindBatchSize > 0)) {
+            throw new IllegalArgumentException("Write-behind batch size must be more than 0");
+        }
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    public long getWriteBehindDelay() {
+        return writeBehindDelay;
+    }
+
+    /**
+     * @param writeBehindDelay milliseconds that the queued item may wait for the batch to be collected.
+     *                         0 means that the writing starts at once.
+     */
+    public void setWriteBehindDelay(long writeBehindDelay) {
+        if (writeBehindDelay < 0) {
+            throw new IllegalArgumentException("Write-behind delay must be not less than 0");
+        }
+        this.writeBehindDelay = writeBehindDelay;
+    }
+
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * @param backpressure behavior of the put when the write-behind queue is full.
+     */
+    public void setBackpressure(Backpressure backpressure) {
+        if (backpressure == null) {
+            throw new IllegalArgumentException("Backpressure must be not null");
+        }
+        this.backpressure = backpressure;
+    }
+
+    public Hierarchy getHierarchy() {
+        return hierarchy;
+    }
+
+    /**
+     * @param hierarchy relation of the items on the levels: EXCLUSIVE (default) - item is kept on one level,
+     *                  INCLUSIVE - item raised from the lower level keeps its copy there.
+     */
+    public void setHierarchy(Hierarchy hierarchy) {
+        if (hierarchy == null) {
+            throw new IllegalArgumentException("Hierarchy must be not null");
+        }
+        this.hierarchy = hierarchy;
+    }
+
+    public int getPromotionThreshold() {
+        return promotionThreshold;
+    }
+
+    /**
+     * @param promotionThreshold recent hits on the lower levels after which the item is raised to the top level,
+     *                           from 1 (default, every hit raises the item) to 15. Hits are counted by the frequency
+     *                           sketch, the counts are halved after ten times as many accesses as the segment keeps items.
+     */
+    public void setPromotionThreshold(int promotionThreshold) {
+        if ((promotionThreshold < 1) || (promotionThreshold > 15)) {
+            throw new IllegalArgumentException("Promotion threshold must be from 1 to 15");
+        }
+        this.promotionThreshold = promotionThreshold;
+    }
+
+    public AdmissionPolicy getDiskAdmission() {
+        return diskAdmission;
+    }
+
+    /**
+     * @param diskAdmission policy that decides which items displaced from the memory levels are written to the blocking
+     *                      level below them, e.g. {@link FrequencyAdmissionPolicy} or {@link GhostAdmissionPolicy}.
+     *                      Other items are lost. If null (default), every displaced item is written.
+     */
+    public void setDiskAdmission(AdmissionPolicy diskAdmission) {
+        this.diskAdmission = diskAdmission;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * @param remoteAddress address of the {@link ru.elomonosov.level.CacheServer} that keeps the items of the remote level.
+     *                      Must be set if the cache has the remote level.
+     */
+    public void setRemoteAddress(InetSocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    public int getRemotePoolSize() {
+        return remotePoolSize;
+    }
+
+    /**
+     * @param remotePoolSize maximal quantity of connections to the server per segment, 2 by default.
+     *                       Connections are opened when they are needed.
+     */
+    public void setRemotePoolSize(int remotePoolSize) {
+        if (remotePoolSize < 1) {
+            throw new IllegalArgumentException("Remote pool size must be more than 0");
+        }
+        this.remotePoolSize = remotePoolSize;
+    }
+
+    public String getRemoteClientName() {
+        return remoteClientName;
+    }
+
+    /**
+     * @param remoteClientName name of the cache on the cache server, every segment is the client named by it and
+     *                         the segment number. The cache created again with the same name, e.g. after the restart
+     *                         of the process, clears and displaces the items put by the previous one. If null (default),
+     *                         the names are random, so the items of the previous cache are only found by id.
+     */
+    public void setRemoteClientName(String remoteClientName) {
+        this.remoteClientName = remoteClientName;
+    }
+
+    public Weigher getWeigher() {
+        return weigher;
+    }
+
+    /**
+     * @param weigher weigher of the items in memory. If set, level sizes are the total weights of items instead of
+     *                their quantity: memory levels weigh items by the weigher, off-heap, memory mapped and file levels
+     *                by their serialized size in bytes. If null, every item weighs 1.
+     */
+    public void setWeigher(Weigher weigher) {
+        this.weigher = weigher;
+    }
+
+    public String getStatsMBeanName() {
+        return statsMBeanName;
+    }
+
+    /**
+     * @param statsMBeanName name of the cache in JMX. If set, the statistics of the cache are registered
+     *                       in the platform MBean server as ru.elomonosov.cache:type=Cache,name="statsMBeanName"
+     *                       until the cache is closed. If null, the statistics are available only by Cache.stats().
+     */
+    public void setStatsMBeanName(String statsMBeanName) {
+        this.statsMBeanName = statsMBeanName;
+    }
+
+    public int getTraceBufferSize() {
+        return traceBufferSize;
+    }
+
+    /**
+     * @param traceBufferSize quantity of the last operations (get, put, remove, eviction, expiration, load) that are
+     *                        kept in memory as binary events, see Cache.traceEvents(). Rounded up to a power of two.
+     *                        0 means that the operations are not traced.
+     */
+    public void setTraceBufferSize(int traceBufferSize) {
+        if (traceBufferSize < 0) {
+            throw new IllegalArgumentException("Trace buffer size must be not less than 0");
+        }
+        this.traceBufferSize = traceBufferSize;
+    }
+
+    public int getTraceSampling() {
+        return traceSampling;
+    }
+
+    /**
+     * @param traceSampling one of that quantity of operations is traced, rounded up to a power of two.
+     *                      1 means that every operation is traced.
+     */
+    public void setTraceSampling(int traceSampling) {
+        if (!(traceSampling > 0)) {
+            throw new IllegalArgumentException("Trace sampling must be more than 0");
+        }
+        this.traceSampling = traceSampling;
+    }
+}
@@ -0,0 +1,54 @@
+package ru.elomonosov.cache;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the cache statistics. Hit and miss are counted by the get of the cache: the item is found
+ * on any level or in the admission window, or it is not found at all. Statistics of every level are summed
+ * over all segments, items waiting in the write-behind queue are counted by the levels when they are written.
+ */
+public final class CacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final List<LevelStats> levels;
+
+    CacheStats(long hitCount, long missCount, List<LevelStats> levels) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.levels = Collections.unmodifiableList(levels);
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return part of the gets that found the item, 0 if there were no gets.
+     */
+    public double getHitRate() {
+        long requestCount = hitCount + missCount;
+        return (requestCount == 0) ? 0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * @return statistics of the levels, sorted from first to last.
+     */
+    public List<LevelStats> getLevels() {
+        return levels;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Cache: hits=").append(hitCount).append(", misses=").append(missCount);
+        for (LevelStats level : levels) {
+            sb.append("\n").append(level);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,18 @@
+package ru.elomonosov.cache;
+
+import java.util.List;
+
+/**
+ * Management interface of the cache statistics. Registered in the platform MBean server
+ * if the cache has the MBean name, see {@link CacheSettings#setStatsMBeanName(String)}.
+ */
+public interface CacheStatsMXBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    List<LevelStats> getLevels();
+}
@@ -12,5 +12,12 @@ public enum CacheStrategy {
     /**
      * Random item will be discarded first.
      */
-    RANDOM
+    RANDOM,
+
+    /**
+     * Least recently used item will be discarded first, but only if the new item is used more frequently.
+     * Otherwise the new item is discarded. Frequency of items is estimated by the sketch of recent accesses,
+     * new items are kept in the small admission window, so they are not rejected before they are used again.
+     */
+    TINY_LFU
 }
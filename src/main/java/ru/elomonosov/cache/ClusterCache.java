@@ -0,0 +1,540 @@
+package ru.elomonosov.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cache partitioned between several node caches, every node keeps its own levels. Items are routed to the nodes
+ * by consistent hashing: every node takes several points (virtual nodes) on the hash ring, the item is kept
+ * by the nodes of the first points that follow the hash of its id. If the replication is set, the item is kept
+ * by several successive nodes, and the get reads the next node when the previous one misses the item.
+ * <p>
+ * When a node is added or removed only the items whose nodes changed move: the added node takes the items
+ * of its ring arcs from their nodes, the removed node gives its items to the nodes that follow it. The ids are
+ * enumerated by the level indexes without reading the items, the moved items are removed from their old nodes
+ * only after the new nodes got them, other items keep their expiration and access history. A node with levels
+ * that do not know their ids (remote ones) is drained and filled again. Membership changes wait for
+ * the operations in progress and block the new ones.
+ */
+public final class ClusterCache implements AutoCloseable {
+
+    /**
+     * Points of every node on the hash ring, more points give more even distribution of items.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int virtualNodes;
+    private final int replicas;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(); // operations share the lock, membership changes take it
+    private final Map<String, Cache> nodes = new LinkedHashMap<>();
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Constructs the cluster of the nodes, nodes must be empty or keep the items routed by the same ring.
+     *
+     * @param nodes        node caches by node name.
+     * @param replicas     quantity of nodes that keep every item, 1 if items are not replicated.
+     * @param virtualNodes points of every node on the hash ring.
+     */
+    ClusterCache(Map<String, Cache> nodes, int replicas, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Cluster must have a node");
+        }
+        if (replicas < 1) {
+            throw new IllegalArgumentException("Replicas must be more than 0");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Virtual nodes must be more than 0");
+        }
+        this.replicas = replicas;
+        this.virtualNodes = virtualNodes;
+        for (Map.Entry<String, Cache> entry : nodes.entrySet()) {
+            this.nodes.put(entry.getKey(), entry.getValue());
+            addPoints(entry.getKey());
+        }
+    }
+
+    /**
+     * Add item in the cache on the nodes of its id.
+     *
+     * @param cacheable item that should be stored in the cache.
+     * @throws CacheException if any node cannot reprocess item adding.
+     */
+    public void put(Cacheable cacheable) throws CacheException {
+        if (cacheable == null) {
+            return;
+        }
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            for (String node : owners(cacheable.getId())) {
+                nodes.get(node).put(cacheable);
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Get item in the cache by id. Nodes of the id are asked in the ring order, the item found on a replica
+     * is put again on the nodes that missed it.
+     *
+     * @param id item id.
+     * @return null if there is no item with the specified id on its nodes.
+     * @throws CacheException if any node cannot reprocess item getting.
+     */
+    public Cacheable get(long id) throws CacheException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            List<String> owners = owners(id);
+            for (int i = 0; i < owners.size(); i++) {
+                Cacheable result = nodes.get(owners.get(i)).get(id);
+                if (result != null) {
+                    for (int j = 0; j < i; j++) { // repair the replicas that lost the item
+                        nodes.get(owners.get(j)).put(result);
+                    }
+                    return result;
+                }
+            }
+            return null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Remove item from all its nodes.
+     *
+     * @param id item id.
+     * @return true if any node kept the item.
+     * @throws CacheException if any node cannot reprocess item removing.
+     */
+    public boolean remove(long id) throws CacheException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            boolean result = false;
+            for (String node : owners(id)) {
+                result |= nodes.get(node).remove(id);
+            }
+            return result;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Add items in the cache. Items are grouped by node, every node gets its items by one batch.
+     *
+     * @param cacheables items that should be stored in the cache, from the eldest to the newest.
+     * @throws CacheException if any node cannot reprocess items adding.
+     */
+    public void putAll(Collection<? extends Cacheable> cacheables) throws CacheException {
+        if ((cacheables == null) || cacheables.isEmpty()) {
+            return;
+        }
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            route(cacheables);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Get items in the cache by ids. Ids are grouped by node, every node is asked once for its ids,
+     * ids missed by the node are asked from their next replica.
+     *
+     * @param ids items ids.
+     * @return found items by id, ids that are absent in the cache are not included.
+     * @throws CacheException if any node cannot reprocess items getting.
+     */
+    public Map<Long, Cacheable> getAll(long[] ids) throws CacheException {
+        Map<Long, Cacheable> result = new HashMap<>();
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            List<List<String>> owners = new ArrayList<>(ids.length);
+            for (long id : ids) {
+                owners.add(owners(id));
+            }
+            for (int replica = 0; replica < replicas; replica++) {
+                Map<String, List<Long>> idsByNode = new HashMap<>();
+                for (int i = 0; i < ids.length; i++) {
+                    if ((replica < owners.get(i).size()) && !result.containsKey(ids[i])) {
+                        String node = owners.get(i).get(replica);
+                        List<Long> nodeIds = idsByNode.get(node);
+                        if (nodeIds == null) {
+                            nodeIds = new ArrayList<>();
+                            idsByNode.put(node, nodeIds);
+                        }
+                        nodeIds.add(ids[i]);
+                    }
+                }
+                if (idsByNode.isEmpty()) {
+                    break;
+                }
+                for (Map.Entry<String, List<Long>> entry : idsByNode.entrySet()) {
+                    long[] nodeIds = new long[entry.getValue().size()];
+                    for (int i = 0; i < nodeIds.length; i++) {
+                        nodeIds[i] = entry.getValue().get(i);
+                    }
+                    result.putAll(nodes.get(entry.getKey()).getAll(nodeIds));
+                }
+            }
+            return result;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the node to the cluster. The node takes the items of its ring arcs from the nodes that kept them,
+     * the items are removed from the nodes that do not keep them anymore after the added node got them.
+     * Other items stay on their nodes untouched. If the items cannot be moved, the node is not added.
+     *
+     * @param name  name of the node, its points on the ring are defined by the name.
+     * @param cache node cache, it must be empty.
+     * @throws CacheException if the items cannot be moved between the nodes.
+     */
+    public void addNode(String name, Cache cache) throws CacheException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            if (nodes.containsKey(name)) {
+                throw new IllegalArgumentException("Node " + name + " is in the cluster already");
+            }
+            nodes.put(name, cache);
+            addPoints(name);
+            Map<String, List<Long>> lost = new HashMap<>(); // ids that the nodes do not keep by the new ring
+            boolean added = false;
+            try {
+                Map<Long, Cacheable> moved = new LinkedHashMap<>();
+                for (Map.Entry<String, Cache> entry : nodes.entrySet()) {
+                    if (entry.getKey().equals(name)) {
+                        continue;
+                    }
+                    List<Long> taken = new ArrayList<>(); // only the ids of the new node arcs are read
+                    List<Long> nodeLost = new ArrayList<>();
+                    for (long id : ids(entry.getValue())) {
+                        List<String> owners = owners(id);
+                        if (owners.contains(name)) {
+                            if (!moved.containsKey(id)) {
+                                taken.add(id);
+                            }
+                            if (!owners.contains(entry.getKey())) {
+                                nodeLost.add(id);
+                            }
+                        }
+                    }
+                    for (Map.Entry<Long, Cacheable> item : entry.getValue().getAll(toArray(taken)).entrySet()) {
+                        moved.putIfAbsent(item.getKey(), item.getValue());
+                    }
+                    lost.put(entry.getKey(), nodeLost);
+                }
+                cache.putAll(moved.values());
+                added = true;
+            } finally {
+                if (!added) { // the old nodes keep their items, the ring is restored
+                    removePoints(name);
+                    nodes.remove(name);
+                }
+            }
+            for (Map.Entry<String, List<Long>> entry : lost.entrySet()) {
+                Cache node = nodes.get(entry.getKey());
+                for (long id : entry.getValue()) {
+                    node.remove(id);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the node from the cluster. Its items are copied to the nodes that follow its ring points,
+     * the node cache is closed. If the items cannot be copied, the node stays in the cluster.
+     *
+     * @param name name of the node.
+     * @throws CacheException if the items cannot be moved or the node cannot be closed.
+     */
+    public void removeNode(String name) throws CacheException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            Cache cache = nodes.get(name);
+            if (cache == null) {
+                throw new IllegalArgumentException("Node " + name + " is not in the cluster");
+            }
+            if (nodes.size() == 1) {
+                throw new IllegalStateException("The last node cannot be removed");
+            }
+            Map<Long, List<String>> oldOwners = new HashMap<>();
+            for (long id : ids(cache)) {
+                oldOwners.put(id, owners(id));
+            }
+            removePoints(name);
+            boolean removed = false;
+            try {
+                Map<Long, Cacheable> items = cache.getAll(toArray(oldOwners.keySet()));
+                Map<String, List<Cacheable>> itemsByNode = new HashMap<>(); // only the owners that did not keep the items
+                for (Cacheable cacheable : items.values()) {
+                    for (String node : owners(cacheable.getId())) {
+                        if (!oldOwners.get(cacheable.getId()).contains(node)) {
+                            List<Cacheable> nodeItems = itemsByNode.get(node);
+                            if (nodeItems == null) {
+                                nodeItems = new ArrayList<>();
+                                itemsByNode.put(node, nodeItems);
+                            }
+                            nodeItems.add(cacheable);
+                        }
+                    }
+                }
+                for (Map.Entry<String, List<Cacheable>> entry : itemsByNode.entrySet()) {
+                    nodes.get(entry.getKey()).putAll(entry.getValue());
+                }
+                removed = true;
+            } finally {
+                if (!removed) {
+                    addPoints(name);
+                }
+            }
+            nodes.remove(name);
+            cache.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return names of the nodes in the order of their adding.
+     */
+    public List<String> nodes() {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return new ArrayList<>(nodes.keySet());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return names of the nodes that keep the item, the first one is asked first.
+     */
+    public List<String> nodesOf(long id) {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return owners(id);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return quantity of items on all nodes, replicas are counted on every node.
+     * @throws CacheException if any node cannot be asked.
+     */
+    public int size() throws CacheException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            int result = 0;
+            for (Cache cache : nodes.values()) {
+                result += cache.size();
+            }
+            return result;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return total capacity of the nodes.
+     * @throws CacheException if any node cannot be asked.
+     */
+    public int maxSize() throws CacheException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            int result = 0;
+            for (Cache cache : nodes.values()) {
+                result += cache.maxSize();
+            }
+            return result;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Clears all nodes.
+     * @throws CacheException if any node cannot be cleared.
+     */
+    public void clear() throws CacheException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            for (Cache cache : nodes.values()) {
+                cache.clear();
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Closes all nodes. Every node is closed even if some of them fail.
+     * @throws CacheException if any node cannot be closed.
+     */
+    @Override
+    public void close() throws CacheException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            CacheException failure = null;
+            for (Cache cache : nodes.values()) {
+                try {
+                    cache.close();
+                } catch (CacheException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Internal method. Puts the items on their nodes by the current ring, every node gets its items by one batch.
+     */
+    private void route(Collection<? extends Cacheable> cacheables) throws CacheException {
+        Map<String, List<Cacheable>> itemsByNode = new HashMap<>();
+        for (Cacheable cacheable : cacheables) {
+            if (cacheable == null) {
+                continue;
+            }
+            for (String node : owners(cacheable.getId())) {
+                List<Cacheable> nodeItems = itemsByNode.get(node);
+                if (nodeItems == null) {
+                    nodeItems = new ArrayList<>();
+                    itemsByNode.put(node, nodeItems);
+                }
+                nodeItems.add(cacheable);
+            }
+        }
+        for (Map.Entry<String, List<Cacheable>> entry : itemsByNode.entrySet()) {
+            nodes.get(entry.getKey()).putAll(entry.getValue());
+        }
+    }
+
+    /**
+     * Internal method.
+     * @return nodes that keep the item, not more than the quantity of replicas.
+     */
+    private List<String> owners(long id) {
+        return successors(mix(id), replicas);
+    }
+
+    /**
+     * Internal method.
+     * @return different nodes of the first points at the hash or after it, the ring is closed.
+     */
+    private List<String> successors(long hash, int count) {
+        count = Math.min(count, nodes.size());
+        List<String> result = new ArrayList<>(count);
+        for (String node : ring.tailMap(hash, true).values()) {
+            if (result.size() == count) {
+                return result;
+            }
+            if (!result.contains(node)) {
+                result.add(node);
+            }
+        }
+        for (String node : ring.values()) {
+            if (result.size() == count) {
+                break;
+            }
+            if (!result.contains(node)) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Internal method.
+     * @return ids of the items of the node. The node with the levels that do not know the ids of their items
+     * is drained and filled again, its items lose their expiration and access history.
+     */
+    private static Set<Long> ids(Cache cache) throws CacheException {
+        Set<Long> result = cache.ids();
+        if (result == null) {
+            Map<Long, Cacheable> items = new LinkedHashMap<>();
+            cache.drain(items);
+            cache.putAll(items.values());
+            result = items.keySet();
+        }
+        return result;
+    }
+
+    private static long[] toArray(Collection<Long> ids) {
+        long[] result = new long[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    private void addPoints(String name) {
+        for (long point : points(name)) {
+            ring.putIfAbsent(point, name); // collisions of 64-bit points are negligible, the first node keeps the point
+        }
+    }
+
+    private void removePoints(String name) {
+        for (long point : points(name)) {
+            if (name.equals(ring.get(point))) {
+                ring.remove(point);
+            }
+        }
+    }
+
+    /**
+     * Internal method.
+     * @return points of the node on the ring, they depend on the name only.
+     */
+    private long[] points(String name) {
+        long nameHash = 0xCBF29CE484222325L; // FNV-1a of the name
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            nameHash = (nameHash ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        long[] result = new long[virtualNodes];
+        for (int i = 0; i < virtualNodes; i++) {
+            result[i] = mix(nameHash + i * 0x9E3779B97F4A7C15L);
+        }
+        return result;
+    }
+
+    /**
+     * Internal method. Finalizer of the MurmurHash3, spreads close values over the whole ring.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,41 @@
+package ru.elomonosov.cache;
+
+/**
+ * Admits the displaced item if it was used often enough recently. Puts and hits are counted by the frequency sketch,
+ * the counts are halved after ten times as many accesses as the segment keeps items. With the default
+ * frequency 2 the item that was put and never read is not written.
+ */
+public class FrequencyAdmissionPolicy implements AdmissionPolicy {
+
+    private final int minFrequency;
+
+    public FrequencyAdmissionPolicy() {
+        this(2);
+    }
+
+    /**
+     * @param minFrequency recent puts and hits of the item that make it worth writing, from 1 to 15.
+     */
+    public FrequencyAdmissionPolicy(int minFrequency) {
+        if ((minFrequency < 1) || (minFrequency > 15)) {
+            throw new IllegalArgumentException("Admission frequency must be from 1 to 15");
+        }
+        this.minFrequency = minFrequency;
+    }
+
+    @Override
+    public AdmissionFilter newFilter(int capacity) {
+        final FrequencySketch sketch = new FrequencySketch(capacity);
+        return new AdmissionFilter() {
+            @Override
+            public void record(long id) {
+                sketch.increment(id);
+            }
+
+            @Override
+            public boolean admit(long id) {
+                return sketch.frequency(id) >= minFrequency;
+            }
+        };
+    }
+}
@@ -0,0 +1,111 @@
+package ru.elomonosov.cache;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch of item access frequency. Every item has four 4-bit counters in the table of longs,
+ * frequency is the minimum of them, so the estimate is never lower than the real count (up to 15).
+ * When the quantity of accesses reaches the sample size, all counters are halved, so the old history fades.
+ * Not thread safe.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size; // accesses counted since the last aging
+
+    /**
+     * @param maximumSize quantity of items that can be stored in the cache.
+     */
+    FrequencySketch(int maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * Enlarges the table for the larger quantity of items, the counted frequencies are lost then.
+     *
+     * @param maximumSize quantity of items that can be stored in the cache.
+     */
+    void ensureCapacity(int maximumSize) {
+        int capacity = Math.max(1, Math.min(maximumSize, 1 << 30));
+        int tableSize = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        if ((table == null) || (tableSize > table.length)) {
+            table = new long[tableSize];
+            tableMask = table.length - 1;
+            sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+            size = 0;
+        }
+    }
+
+    /**
+     * @return estimated quantity of recent accesses to the item, from 0 to 15.
+     */
+    int frequency(long id) {
+        int hash = spread(id);
+        int start = (hash & 3) << 2;
+        int result = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+            result = Math.min(result, count);
+        }
+        return result;
+    }
+
+    /**
+     * Counts the access to the item. Halves all counters when the sample size is reached.
+     */
+    void increment(long id) {
+        int hash = spread(id);
+        int start = (hash & 3) << 2; // every item uses its own quarter of counters in each long
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && (++size == sampleSize)) {
+            reset();
+        }
+    }
+
+    void clear() {
+        Arrays.fill(table, 0L);
+        size = 0;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) { // counter is not saturated
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long result = (hash + SEEDS[i]) * SEEDS[i];
+        result += result >>> 32;
+        return ((int) result) & tableMask;
+    }
+
+    private static int spread(long id) {
+        long hash = (id ^ (id >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (hash ^ (hash >>> 33));
+    }
+}
@@ -0,0 +1,53 @@
+package ru.elomonosov.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Second chance admission. The displaced item is not written for the first time, its id is kept in the ghost list
+ * of recently lost items instead. If the item is displaced again while its id is in the list, it was used
+ * after the loss, so it is written.
+ */
+public class GhostAdmissionPolicy implements AdmissionPolicy {
+
+    private final double ghostRatio;
+
+    public GhostAdmissionPolicy() {
+        this(1);
+    }
+
+    /**
+     * @param ghostRatio size of the ghost list relative to the quantity of items that the segment can keep.
+     */
+    public GhostAdmissionPolicy(double ghostRatio) {
+        if (!(ghostRatio > 0)) {
+            throw new IllegalArgumentException("Ghost ratio must be more than 0");
+        }
+        this.ghostRatio = ghostRatio;
+    }
+
+    @Override
+    public AdmissionFilter newFilter(int capacity) {
+        final int ghostSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacity * ghostRatio));
+        final Map<Long, Boolean> ghosts = new LinkedHashMap<Long, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > ghostSize;
+            }
+        };
+        return new AdmissionFilter() {
+            @Override
+            public void record(long id) {
+            }
+
+            @Override
+            public boolean admit(long id) {
+                if (ghosts.remove(id) != null) {
+                    return true;
+                }
+                ghosts.put(id, Boolean.TRUE);
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,19 @@
+package ru.elomonosov.cache;
+
+/**
+ * Relation of the items on the levels of the segment.
+ */
+public enum Hierarchy {
+    /**
+     * Item is kept on one level only. Item raised from the lower level is removed from it, so its displacement
+     * from the top levels writes it to the lower level again.
+     */
+    EXCLUSIVE,
+
+    /**
+     * Item raised from the lower level keeps its copy there. Displaced item that reaches the level of its copy
+     * is dropped instead of written again, the copy displaced from the lower level is dropped too.
+     * Random strategy and the levels written behind keep items exclusively.
+     */
+    INCLUSIVE
+}
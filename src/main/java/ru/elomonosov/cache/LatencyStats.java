@@ -0,0 +1,117 @@
+package ru.elomonosov.cache;
+
+/**
+ * Snapshot of the latency histogram of the level operation. Latencies are counted in buckets with
+ * four sub-buckets for every power of two nanoseconds, so the percentile is accurate to 25%.
+ */
+public final class LatencyStats {
+
+    static final int BUCKET_COUNT = 248; // up to 2^62 nanoseconds
+
+    private static final long[] EMPTY = new long[BUCKET_COUNT];
+
+    static final LatencyStats NONE = new LatencyStats(EMPTY, 0);
+
+    private final long[] counts;
+    private final long count;
+    private final long totalNanos;
+
+    LatencyStats(long[] counts, long totalNanos) {
+        this.counts = counts;
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        this.count = count;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * @return index of the bucket that counts the specified latency.
+     */
+    static int bucketOf(long nanos) {
+        if (nanos < 4) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return ((exponent - 1) << 2) | (int) ((nanos >>> (exponent - 2)) & 3);
+    }
+
+    /**
+     * @return the highest latency that is counted by the bucket.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int shift = (bucket >>> 2) - 1;
+        return (((4L + (bucket & 3)) << shift) + (1L << shift)) - 1;
+    }
+
+    /**
+     * @return quantity of the measured operations.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMeanNanos() {
+        return (count == 0) ? 0 : totalNanos / count;
+    }
+
+    public long getMedianNanos() {
+        return percentileNanos(0.5);
+    }
+
+    public long get99thPercentileNanos() {
+        return percentileNanos(0.99);
+    }
+
+    public long get999thPercentileNanos() {
+        return percentileNanos(0.999);
+    }
+
+    public long getMaxNanos() {
+        return percentileNanos(1);
+    }
+
+    /**
+     * @param percentile part of the operations, from 0 to 1.
+     * @return latency that the specified part of the operations did not exceed, 0 if nothing was measured.
+     */
+    public long percentileNanos(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(counts.length - 1);
+    }
+
+    /**
+     * @return latencies of both snapshots together.
+     */
+    LatencyStats plus(LatencyStats other) {
+        long[] result = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            result[i] = counts[i] + other.counts[i];
+        }
+        return new LatencyStats(result, totalNanos + other.totalNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", mean=" + getMeanNanos() + "ns, p50=" + getMedianNanos() + "ns, p99="
+                + get99thPercentileNanos() + "ns, max=" + getMaxNanos() + "ns";
+    }
+}
@@ -0,0 +1,109 @@
+package ru.elomonosov.cache;
+
+/**
+ * Snapshot of the statistics of one cache level, summed over all segments of the cache.
+ * <p>
+ * Hit and miss are counted by the level that was searched for the item. Item displaced from the level is
+ * counted as demotion if it goes to the next level, or as eviction if it is lost. Item found on the lower level
+ * and raised to the top one is counted as promotion of the lower level.
+ */
+public final class LevelStats {
+
+    private final int order;
+    private final String levelType;
+    private final long hitCount;
+    private final long missCount;
+    private final long putCount;
+    private final long evictionCount;
+    private final long promotionCount;
+    private final long demotionCount;
+    private final LatencyStats getLatency;
+    private final LatencyStats putLatency;
+
+    LevelStats(int order, String levelType, long hitCount, long missCount, long putCount, long evictionCount,
+               long promotionCount, long demotionCount, LatencyStats getLatency, LatencyStats putLatency) {
+        this.order = order;
+        this.levelType = levelType;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.evictionCount = evictionCount;
+        this.promotionCount = promotionCount;
+        this.demotionCount = demotionCount;
+        this.getLatency = getLatency;
+        this.putLatency = putLatency;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * @return simple class name of the level.
+     */
+    public String getLevelType() {
+        return levelType;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return part of the searches that found the item on this level, 0 if the level was not searched.
+     */
+    public double getHitRate() {
+        long requestCount = hitCount + missCount;
+        return (requestCount == 0) ? 0 : (double) hitCount / requestCount;
+    }
+
+    public long getPutCount() {
+        return putCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getPromotionCount() {
+        return promotionCount;
+    }
+
+    public long getDemotionCount() {
+        return demotionCount;
+    }
+
+    /**
+     * @return latency of get from the level, a batch get is measured as one operation.
+     */
+    public LatencyStats getGetLatency() {
+        return getLatency;
+    }
+
+    /**
+     * @return latency of put on the level, a batch put is measured as one operation.
+     */
+    public LatencyStats getPutLatency() {
+        return putLatency;
+    }
+
+    /**
+     * @return statistics of the same level of both segments together.
+     */
+    LevelStats plus(LevelStats other) {
+        return new LevelStats(order, levelType, hitCount + other.hitCount, missCount + other.missCount,
+                putCount + other.putCount, evictionCount + other.evictionCount, promotionCount + other.promotionCount,
+                demotionCount + other.demotionCount, getLatency.plus(other.getLatency), putLatency.plus(other.putLatency));
+    }
+
+    @Override
+    public String toString() {
+        return "Level " + order + " (" + levelType + "): hits=" + hitCount + ", misses=" + missCount + ", puts=" + putCount
+                + ", evictions=" + evictionCount + ", promotions=" + promotionCount + ", demotions=" + demotionCount
+                + ", get [" + getLatency + "], put [" + putLatency + "]";
+    }
+}
@@ -0,0 +1,75 @@
+package ru.elomonosov.cache;
+
+import ru.elomonosov.level.CacheLevel;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one level of the segment. Readers that share the segment lock count concurrently,
+ * so the counters are striped and the histogram buckets are atomic. Thread safe.
+ */
+final class LevelStatsCounter {
+
+    private final CacheLevel cacheLevel;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder putCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder promotionCount = new LongAdder();
+    private final LongAdder demotionCount = new LongAdder();
+
+    private final AtomicLongArray getLatency = new AtomicLongArray(LatencyStats.BUCKET_COUNT);
+    private final LongAdder getNanos = new LongAdder();
+    private final AtomicLongArray putLatency = new AtomicLongArray(LatencyStats.BUCKET_COUNT);
+    private final LongAdder putNanos = new LongAdder();
+
+    LevelStatsCounter(CacheLevel cacheLevel) {
+        this.cacheLevel = cacheLevel;
+    }
+
+    void recordHits(int count) {
+        hitCount.add(count);
+    }
+
+    void recordMisses(int count) {
+        missCount.add(count);
+    }
+
+    void recordGet(long nanos) {
+        getLatency.incrementAndGet(LatencyStats.bucketOf(nanos));
+        getNanos.add(nanos);
+    }
+
+    void recordPut(int count, long nanos) {
+        putCount.add(count);
+        putLatency.incrementAndGet(LatencyStats.bucketOf(nanos));
+        putNanos.add(nanos);
+    }
+
+    /**
+     * @param demoted true if the displaced item goes to the next level, false if it is lost.
+     */
+    void recordDisplacement(boolean demoted) {
+        (demoted ? demotionCount : evictionCount).increment();
+    }
+
+    void recordPromotion() {
+        promotionCount.increment();
+    }
+
+    LevelStats snapshot() {
+        return new LevelStats(cacheLevel.getOrder(), cacheLevel.getClass().getSimpleName(), hitCount.sum(),
+                missCount.sum(), putCount.sum(), evictionCount.sum(), promotionCount.sum(), demotionCount.sum(),
+                latency(getLatency, getNanos), latency(putLatency, putNanos));
+    }
+
+    private static LatencyStats latency(AtomicLongArray buckets, LongAdder nanos) {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new LatencyStats(counts, nanos.sum());
+    }
+}
@@ -0,0 +1,195 @@
+package ru.elomonosov.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel of the item expiration times, in milliseconds. Every wheel is an array of buckets,
+ * bucket of the lower wheel spans 64 milliseconds, bucket of every next wheel spans 64 buckets of the previous one.
+ * Timer is put in the bucket of the lowest wheel that covers its delay, so scheduling and cancelling take O(1).
+ * When the time goes, only the passed buckets are visited: expired timers are collected, the others move
+ * to the lower wheels. Timers of the last wheel (more than 12 days) wait in the overflow bucket.
+ * Not thread safe.
+ */
+final class TimerWheel {
+
+    private static final int[] SHIFTS = {6, 12, 18, 24, 30};  // log2 of the bucket span
+    private static final int[] BUCKETS = {64, 64, 64, 64, 1}; // buckets of every wheel
+
+    private static final long[] NONE = new long[0];
+
+    /**
+     * Expiration time of the item, linked in the bucket list.
+     */
+    private static final class Timer {
+
+        long id;
+        long time;            // when the item expires
+        long writeDeadline;   // time to live limit, Long.MAX_VALUE if the item may live while it is accessed
+        long timeToIdle;      // 0 if the access does not prolong the item
+        Timer previous;
+        Timer next;
+    }
+
+    private final Timer[][] wheels = new Timer[BUCKETS.length][];
+
+    private final Map<Long, Timer> timers = new HashMap<>();
+
+    private long now;
+
+    /**
+     * @param now current time in milliseconds.
+     */
+    TimerWheel(long now) {
+        this.now = now;
+        for (int i = 0; i < wheels.length; i++) {
+            wheels[i] = new Timer[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                Timer sentinel = new Timer();
+                sentinel.previous = sentinel;
+                sentinel.next = sentinel;
+                wheels[i][j] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * Sets the expiration of the item, previous one is replaced.
+     *
+     * @param timeToLive milliseconds from now that the item may live, 0 if the item is expired only by idleness.
+     * @param timeToIdle milliseconds that the item may live after the last access, 0 if the access does not prolong it.
+     */
+    void schedule(long id, long now, long timeToLive, long timeToIdle) {
+        Timer timer = timers.get(id);
+        if (timer == null) {
+            timer = new Timer();
+            timer.id = id;
+            timers.put(id, timer);
+        } else {
+            unlink(timer);
+        }
+        timer.writeDeadline = (timeToLive > 0) ? now + timeToLive : Long.MAX_VALUE;
+        timer.timeToIdle = timeToIdle;
+        timer.time = (timeToIdle > 0) ? Math.min(timer.writeDeadline, now + timeToIdle) : timer.writeDeadline;
+        link(timer);
+    }
+
+    /**
+     * Prolongs the item that expires by idleness.
+     */
+    void touch(long id, long now) {
+        Timer timer = timers.get(id);
+        if ((timer != null) && (timer.timeToIdle > 0)) {
+            long time = Math.min(timer.writeDeadline, now + timer.timeToIdle);
+            if (time != timer.time) {
+                unlink(timer);
+                timer.time = time;
+                link(timer);
+            }
+        }
+    }
+
+    /**
+     * Removes the expiration of the item, so it never expires.
+     */
+    void cancel(long id) {
+        Timer timer = timers.remove(id);
+        if (timer != null) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * @return true if the item expires not later than the specified time.
+     */
+    boolean isExpired(long id, long now) {
+        Timer timer = timers.get(id);
+        return (timer != null) && (timer.time <= now);
+    }
+
+    /**
+     * @return quantity of items that have the expiration.
+     */
+    int size() {
+        return timers.size();
+    }
+
+    /**
+     * Moves the wheels to the specified time.
+     *
+     * @param now current time in milliseconds.
+     * @return ids of the expired items, their timers are removed.
+     */
+    long[] advance(long now) {
+        long previous = this.now;
+        this.now = now;
+        long[] result = NONE;
+        int count = 0;
+        for (int i = 0; i < wheels.length; i++) {
+            long previousTicks = previous >>> SHIFTS[i];
+            long ticks = now >>> SHIFTS[i];
+            if (ticks <= previousTicks) {
+                break; // upper wheels turn slower, so they have not turned either
+            }
+            Timer[] wheel = wheels[i];
+            int mask = wheel.length - 1;
+            long steps = Math.min(ticks - previousTicks + 1, wheel.length);
+            for (long tick = previousTicks; tick < previousTicks + steps; tick++) {
+                Timer sentinel = wheel[(int) (tick & mask)];
+                Timer timer = sentinel.next;
+                sentinel.previous = sentinel; // the bucket is detached, rescheduled timers go to the other buckets
+                sentinel.next = sentinel;
+                while (timer != sentinel) {
+                    Timer next = timer.next;
+                    if (timer.time <= now) {
+                        timers.remove(timer.id);
+                        if (count == result.length) {
+                            result = Arrays.copyOf(result, Math.max(16, count << 1));
+                        }
+                        result[count++] = timer.id;
+                    } else {
+                        link(timer);
+                    }
+                    timer = next;
+                }
+            }
+        }
+        return (count == result.length) ? result : Arrays.copyOf(result, count);
+    }
+
+    void clear() {
+        timers.clear();
+        for (Timer[] wheel : wheels) {
+            for (Timer sentinel : wheel) {
+                sentinel.previous = sentinel;
+                sentinel.next = sentinel;
+            }
+        }
+    }
+
+    /**
+     * Internal method. Puts the timer in the bucket of the lowest wheel that covers its delay.
+     */
+    private void link(Timer timer) {
+        long delay = timer.time - now;
+        Timer sentinel = wheels[wheels.length - 1][0];
+        for (int i = 0; i < wheels.length - 1; i++) {
+            if (delay < (1L << SHIFTS[i + 1])) {
+                sentinel = wheels[i][(int) ((timer.time >>> SHIFTS[i]) & (wheels[i].length - 1))];
+                break;
+            }
+        }
+        timer.previous = sentinel.previous;
+        timer.next = sentinel;
+        sentinel.previous.next = timer;
+        sentinel.previous = timer;
+    }
+
+    private static void unlink(Timer timer) {
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.previous = null;
+        timer.next = null;
+    }
+}
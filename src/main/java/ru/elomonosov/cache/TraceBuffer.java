@@ -0,0 +1,95 @@
+package ru.elomonosov.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preallocated ring of binary trace events, the newest events overwrite the eldest ones. Recording does not
+ * allocate, format or write anything: it takes the next slot and stores four longs in it. Every event may be
+ * sampled, so only the part of the operations is recorded.
+ * <p>
+ * Slot keeps the stamp (sequence + 1, 0 while the slot is written), time, id and the packed type, segment,
+ * level and value. Dump reads the stamp before and after the fields, so the slot overwritten meanwhile is skipped.
+ * Thread safe.
+ */
+final class TraceBuffer {
+
+    private static final int SLOT = 4;
+    private static final TraceEvent.Type[] TYPES = TraceEvent.Type.values();
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final int sampleMask;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param capacity quantity of the kept events, rounded up to a power of two.
+     * @param sampling one of that quantity of events is recorded, rounded up to a power of two.
+     */
+    TraceBuffer(int capacity, int sampling) {
+        int size = powerOfTwo(capacity);
+        this.slots = new AtomicLongArray(size * SLOT);
+        this.mask = size - 1;
+        this.sampleMask = powerOfTwo(sampling) - 1;
+    }
+
+    private static int powerOfTwo(int value) {
+        return (value <= 1) ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * @return true if the next event should be recorded.
+     */
+    boolean sample() {
+        return (sampleMask == 0) || ((ThreadLocalRandom.current().nextInt() & sampleMask) == 0);
+    }
+
+    /**
+     * Records the event if it is sampled.
+     */
+    void record(TraceEvent.Type type, int segment, int level, long id, int value) {
+        if (sample()) {
+            recordSampled(type, segment, level, id, value);
+        }
+    }
+
+    /**
+     * Records the event that is already sampled by {@link #sample()}.
+     */
+    void recordSampled(TraceEvent.Type type, int segment, int level, long id, int value) {
+        long seq = sequence.getAndIncrement();
+        int base = (int) (seq & mask) * SLOT;
+        slots.set(base, 0);
+        slots.set(base + 1, System.nanoTime());
+        slots.set(base + 2, id);
+        slots.set(base + 3, ((long) type.ordinal() << 56) | ((long) (segment & 0xffff) << 40)
+                | ((long) (level & 0xff) << 32) | (value & 0xffffffffL));
+        slots.set(base, seq + 1);
+    }
+
+    /**
+     * @return kept events, from the eldest to the newest.
+     */
+    List<TraceEvent> events() {
+        long last = sequence.get();
+        long first = Math.max(0, last - (mask + 1));
+        List<TraceEvent> result = new ArrayList<>((int) (last - first));
+        for (long seq = first; seq < last; seq++) {
+            int base = (int) (seq & mask) * SLOT;
+            if (slots.get(base) != seq + 1) {
+                continue; // not written yet or already overwritten
+            }
+            long time = slots.get(base + 1);
+            long id = slots.get(base + 2);
+            long packed = slots.get(base + 3);
+            if (slots.get(base) == seq + 1) {
+                result.add(new TraceEvent(seq, time, TYPES[(int) (packed >>> 56)], (short) (packed >>> 40),
+                        (byte) (packed >>> 32), id, (int) packed));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,87 @@
+package ru.elomonosov.cache;
+
+/**
+ * Operation of the cache recorded by the trace buffer, see {@link CacheSettings#setTraceBufferSize(int)}.
+ */
+public final class TraceEvent {
+
+    public enum Type {
+        /**
+         * Item was found, the level is the order of the level that kept it, -1 for the admission window.
+         */
+        HIT,
+        MISS,
+        PUT,
+        REMOVE,
+        /**
+         * Item was displaced from the last level, or not admitted to it, the level is its order.
+         */
+        EVICT,
+        EXPIRE,
+        /**
+         * Missing item was loaded, the value is the duration of the load in microseconds.
+         */
+        LOAD
+    }
+
+    private final long sequence;
+    private final long nanoTime;
+    private final Type type;
+    private final int segment;
+    private final int level;
+    private final long id;
+    private final int value;
+
+    TraceEvent(long sequence, long nanoTime, Type type, int segment, int level, long id, int value) {
+        this.sequence = sequence;
+        this.nanoTime = nanoTime;
+        this.type = type;
+        this.segment = segment;
+        this.level = level;
+        this.id = id;
+        this.value = value;
+    }
+
+    /**
+     * @return number of the event in the order of recording, gaps are the events that were overwritten.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return time of the event by {@link System#nanoTime()}.
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return number of the segment that keeps the item, -1 if the event is not recorded by the segment.
+     */
+    public int getSegment() {
+        return segment;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + nanoTime + " " + type + " id=" + id + " segment=" + segment + " level=" + level
+                + ((type == Type.LOAD) ? " " + value + "us" : "");
+    }
+}
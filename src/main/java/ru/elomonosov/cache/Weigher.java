@@ -0,0 +1,15 @@
+package ru.elomonosov.cache;
+
+/**
+ * Weight of the item, e.g. its size in bytes. If the cache has the weigher, the sizes of its memory levels
+ * are the total weights of items they can keep, instead of the quantities of items.
+ * The weigher must return the same weight for the same item.
+ */
+public interface Weigher {
+
+    /**
+     * @param cacheable item that is stored in the cache.
+     * @return weight of the item, more than 0.
+     */
+    int weigh(Cacheable cacheable);
+}
@@ -0,0 +1,483 @@
+package ru.elomonosov.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.elomonosov.level.AbstractCacheLevel;
+import ru.elomonosov.level.CacheLevel;
+import ru.elomonosov.level.CacheLevelException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Level that stands for the blocking lower levels of the segment. Items displaced to it are put in the bounded queue
+ * and written to the lower levels by the executor, so the put waits only for the upper levels.
+ * Queued items are found by get until they are written.
+ * <p>
+ * Lower levels are kept by their own segment with its own lock, so the writing never locks the upper levels.
+ * Ids of the written items are kept by the level, so the upper levels check them without waiting for the writing.
+ * If any lower level does not know the ids of its items (remote level), the lower segment is asked under its lock.
+ */
+final class WriteBehindLevel extends AbstractCacheLevel implements CacheLevel {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindLevel.class);
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "cache-write-behind-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final CacheSegment lowerSegment;
+    private final Executor executor;
+    private final int queueSize;
+    private final int batchSize;
+    private final long delay;
+    private final Backpressure backpressure;
+
+    /**
+     * Queued item. Every put queues the new entry, so the item raised and displaced again is told from its older entry.
+     */
+    private static final class Entry {
+
+        final Cacheable cacheable;
+
+        Entry(Cacheable cacheable) {
+            this.cacheable = cacheable;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> pending = new ConcurrentHashMap<>(); // the newest entry of every queued item
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();  // order of writing
+    private final Set<Long> lowerIds; // ids of the items of the lower levels, null if the lower levels don't know them
+
+    private final ReentrantLock flushLock = new ReentrantLock(); // guards the batch taken from the queue, not its writing
+    private final Condition notFull = flushLock.newCondition();
+    private final ReentrantLock writeLock = new ReentrantLock(); // batches are written one by one
+    private final AtomicBoolean flushRunning = new AtomicBoolean();
+    private final AtomicBoolean timerScheduled = new AtomicBoolean();
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } finally {
+                flushRunning.set(false);
+                if (!queue.isEmpty()) { // items queued while the flag was set
+                    scheduleFlush(false);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param lowerSegment segment with the lower levels.
+     * @param order        order of the first lower level.
+     * @param settings     settings of the write-behind queue and its executor.
+     */
+    WriteBehindLevel(CacheSegment lowerSegment, int order, CacheSettings settings) {
+        super(order);
+        this.lowerSegment = lowerSegment;
+        this.executor = settings.getExecutor();
+        this.queueSize = settings.getWriteBehindQueueSize();
+        this.batchSize = settings.getWriteBehindBatchSize();
+        this.delay = settings.getWriteBehindDelay();
+        this.backpressure = settings.getBackpressure();
+        this.lowerIds = lowerIds(lowerSegment);
+        lowerSegment.setMembers(lowerIds);
+    }
+
+    /**
+     * Internal method.
+     * @return ids of the items stored on the lower levels, or null if any level does not know the ids.
+     */
+    private static Set<Long> lowerIds(CacheSegment lowerSegment) {
+        Set<Long> result = ConcurrentHashMap.newKeySet();
+        try {
+            for (CacheLevel cacheLevel : lowerSegment.levels()) {
+                long[] ids = cacheLevel.ids();
+                if (ids == null) {
+                    return null;
+                }
+                for (long id : ids) {
+                    result.add(id);
+                }
+            }
+        } catch (CacheLevelException e) {
+            throw new IllegalArgumentException("Cannot get ids of the lower levels", e);
+        }
+        return result;
+    }
+
+    /**
+     * Queues the item. If the queue is full, waits for the free place or writes the queue by itself,
+     * depending on the backpressure policy.
+     */
+    @Override
+    public void put(Cacheable cacheable) throws CacheLevelException {
+        if (pending.size() >= queueSize) {
+            if (backpressure == Backpressure.CALLER_RUNS) {
+                flush();
+            } else {
+                awaitFreePlace();
+            }
+        }
+        Entry entry = new Entry(cacheable);
+        pending.put(cacheable.getId(), entry);
+        queue.add(entry);
+        scheduleFlush(false);
+    }
+
+    @Override
+    public void putAll(List<Cacheable> cacheables) throws CacheLevelException {
+        for (Cacheable cacheable : cacheables) {
+            put(cacheable);
+        }
+    }
+
+    @Override
+    public Cacheable get(long id) throws CacheLevelException {
+        Entry entry = pending.get(id); // item is removed from the queue only after it is written
+        Cacheable result = (entry == null) ? null : entry.cacheable;
+        if (result == null) {
+            try {
+                result = lowerSegment.get(id);
+            } catch (CacheException e) {
+                throw new CacheLevelException("Cannot get item [id " + id + "] from the lower levels", e);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Long, Cacheable> getAll(long[] ids) throws CacheLevelException {
+        Map<Long, Cacheable> result = new HashMap<>();
+        long[] lowerIds = new long[ids.length];
+        int lowerCount = 0;
+        for (long id : ids) {
+            Entry entry = pending.get(id);
+            if (entry != null) {
+                result.put(id, entry.cacheable);
+            } else {
+                lowerIds[lowerCount++] = id;
+            }
+        }
+        try {
+            lowerSegment.getAll(Arrays.copyOf(lowerIds, lowerCount), result);
+        } catch (CacheException e) {
+            throw new CacheLevelException("Cannot get items from the lower levels", e);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean mightContain(long id) throws CacheLevelException {
+        if (pending.containsKey(id)) {
+            return true;
+        }
+        return (lowerIds != null) ? lowerIds.contains(id) : lowerSegment.mightContain(id);
+    }
+
+    @Override
+    public Cacheable getByStrategy() throws CacheLevelException {
+        Entry eldest = eldestQueued();
+        return (eldest == null) ? null : eldest.cacheable;
+    }
+
+    /**
+     * Removes the item from the queue and from the lower levels. Item that is being written is removed
+     * from the lower levels by the writing, see {@link #flush()}.
+     */
+    @Override
+    public Cacheable pull(long id) throws CacheLevelException {
+        try {
+            Entry queued = pending.remove(id);
+            Cacheable stored = ((lowerIds == null) || lowerIds.contains(id)) ? lowerSegment.pull(id) : null;
+            forget(id);
+            return (queued != null) ? queued.cacheable : stored;
+        } catch (CacheException e) {
+            throw new CacheLevelException("Cannot remove item [id " + id + "] from the lower levels", e);
+        }
+    }
+
+    @Override
+    public Cacheable pullByStrategy() throws CacheLevelException {
+        Entry eldest = eldestQueued();
+        return (eldest == null) ? null : pull(eldest.cacheable.getId());
+    }
+
+    /**
+     * @return ids of the queued items and of the items of the lower levels, or null if any lower level
+     * does not know the ids.
+     */
+    @Override
+    public long[] ids() throws CacheLevelException {
+        if (lowerIds == null) {
+            return null;
+        }
+        Set<Long> ids = new HashSet<>(pending.keySet());
+        ids.addAll(lowerIds);
+        long[] result = new long[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    @Override
+    public int size() throws CacheLevelException {
+        return pending.size() + lowerSegment.size();
+    }
+
+    @Override
+    public int maxSize() throws CacheLevelException {
+        return lowerSegment.maxSize();
+    }
+
+    /**
+     * @return false, queued item displaces items of the lower levels when it is written.
+     */
+    @Override
+    public boolean isFull() throws CacheLevelException {
+        return false;
+    }
+
+    /**
+     * @return true, queued item makes room for itself on the lower levels when it is written.
+     */
+    @Override
+    public boolean hasRoomFor(long weight) throws CacheLevelException {
+        return true;
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return lowerSegment.isWeighted();
+    }
+
+    /**
+     * @return weight of the written items if the lower levels are weighted, queued items are weighed when they are written.
+     */
+    @Override
+    public long weight() throws CacheLevelException {
+        return lowerSegment.isWeighted() ? lowerSegment.weight() : size();
+    }
+
+    /**
+     * @return true if the last lower level is full.
+     */
+    boolean isLowerFull() throws CacheLevelException {
+        return lowerSegment.isFull();
+    }
+
+    @Override
+    public void clear() throws CacheLevelException {
+        flushLock.lock();
+        try {
+            pending.clear();
+            queue.clear();
+            lowerSegment.clear();
+            if (lowerIds != null) {
+                lowerIds.clear();
+            }
+            notFull.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the queued items and the items of the lower levels to the map, the level is empty after it.
+     *
+     * @param result items by id, items that are already in the map are not replaced.
+     * @throws CacheException if the lower levels cannot be drained.
+     */
+    void drain(Map<Long, Cacheable> result) throws CacheException {
+        flushLock.lock();
+        try {
+            for (Entry entry : pending.values()) {
+                result.putIfAbsent(entry.cacheable.getId(), entry.cacheable);
+            }
+            pending.clear();
+            queue.clear();
+            notFull.signalAll();
+            lowerSegment.drain(result);
+            if (lowerIds != null) {
+                lowerIds.clear();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the queued items and closes the lower levels.
+     */
+    @Override
+    public void close() throws CacheLevelException {
+        flush();
+        lowerSegment.close();
+    }
+
+    List<CacheLevel> lowerLevels() {
+        return lowerSegment.levels();
+    }
+
+    List<LevelStats> lowerLevelStats() {
+        return lowerSegment.levelStats();
+    }
+
+    private void forget(long id) {
+        if (lowerIds != null) {
+            lowerIds.remove(id);
+        }
+    }
+
+    /**
+     * Internal method.
+     * @return the eldest queued item, null if the queue is empty. Items pulled or queued again are skipped.
+     */
+    private Entry eldestQueued() {
+        for (Entry entry : queue) {
+            if (pending.get(entry.cacheable.getId()) == entry) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Internal method. Waits until the flusher frees a place in the queue. If the wait makes no progress
+     * and no batch is written, the flusher is not run by the executor, e.g. it waits behind the caller
+     * in the saturated executor, so the caller writes the queue by itself.
+     */
+    private void awaitFreePlace() throws CacheLevelException {
+        while (pending.size() >= queueSize) {
+            scheduleFlush(true);
+            boolean signalled;
+            flushLock.lock();
+            try {
+                signalled = (pending.size() < queueSize) || notFull.await(10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CacheLevelException("Interrupted while waiting for the write-behind queue", e);
+            } finally {
+                flushLock.unlock();
+            }
+            if (!signalled && !writeLock.isLocked()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Internal method. Starts the writing at once if the batch is collected or there is no delay,
+     * otherwise after the delay. If the executor rejects the flusher, the caller writes the queue by itself.
+     */
+    private void scheduleFlush(boolean now) {
+        if (now || (delay == 0) || (pending.size() >= Math.min(batchSize, queueSize))) {
+            if (!flushRunning.getAndSet(true)) {
+                try {
+                    executor.execute(flusher);
+                } catch (RejectedExecutionException e) {
+                    flushRunning.set(false);
+                    logger.warn("Executor rejected the writing of level " + order + ", the queue is written by the caller.", e);
+                    flush();
+                }
+            }
+        } else if (!timerScheduled.getAndSet(true)) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timerScheduled.set(false);
+                    scheduleFlush(true);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Internal method. Writes the queued items to the lower levels by batches, from the eldest to the newest.
+     * Written item is removed from the queue after it is written, so get finds it in the queue or on the level.
+     * The queue is locked only while the batch is taken from it and while the written items are removed from it,
+     * so pull does not wait for the writing. Item pulled or queued again while its batch was written is removed
+     * from the lower levels, the upper levels or the queue keep the newer one.
+     * If the batch cannot be written, its items are lost as the items displaced from the last level.
+     */
+    private void flush() {
+        writeLock.lock();
+        try {
+            while (true) {
+                List<Entry> batch = nextBatch();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                List<Cacheable> cacheables = new ArrayList<>(batch.size());
+                for (Entry entry : batch) {
+                    cacheables.add(entry.cacheable);
+                    if (lowerIds != null) {
+                        lowerIds.add(entry.cacheable.getId()); // before the writing, so the item is always found by mightContain
+                    }
+                }
+                try {
+                    lowerSegment.putAll(cacheables);
+                } catch (CacheException e) {
+                    logger.error("Cannot write " + batch.size() + " items to level " + order + ", they are lost.", e);
+                }
+                List<Long> staleIds = new ArrayList<>();
+                flushLock.lock();
+                try {
+                    for (Entry entry : batch) {
+                        if (!pending.remove(entry.cacheable.getId(), entry)) {
+                            staleIds.add(entry.cacheable.getId());
+                        }
+                    }
+                    notFull.signalAll();
+                } finally {
+                    flushLock.unlock();
+                }
+                for (long id : staleIds) {
+                    try {
+                        lowerSegment.pull(id);
+                        forget(id);
+                    } catch (CacheException e) {
+                        logger.error("Cannot remove item [id " + id + "] pulled while it was written to level " + order + ".", e);
+                    }
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Internal method.
+     * @return the eldest queued items that are not pulled or queued again, empty list if there are no such items.
+     */
+    private List<Entry> nextBatch() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        flushLock.lock();
+        try {
+            while (batch.size() < batchSize) {
+                Entry entry = queue.poll();
+                if (entry == null) {
+                    break;
+                }
+                if (pending.get(entry.cacheable.getId()) == entry) { // not pulled or queued again
+                    batch.add(entry);
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+        return batch;
+    }
+}
@@ -1,17 +1,68 @@
 package ru.elomonosov.level;
 
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.serializer.CacheSerializer;
+
+import java.io.IOException;
 
 /**
  * Level of the cache must keep info about it order in the cache. Cache order determine the behavior of the cachche level when item is displaced.
  */
 public abstract class AbstractCacheLevel implements CacheLevel {
 
+    /**
+     * Initial capacity of the index of the weighted level, it grows with the quantity of items.
+     */
+    protected static final int WEIGHTED_EXPECTED_SIZE = 1024;
+
     protected final int order;
 
+    private Cacheable weighed; // item serialized by the last weigh, its data is reused by the put
+    private byte[] weighedData;
+
     public AbstractCacheLevel(int order) {
         this.order = order;
     }
 
+    /**
+     * Serializes the item for the weigh. The data is kept until the item is put or {@link #releaseWeighed()} is called.
+     */
+    protected byte[] serializeWeighed(Cacheable cacheable, CacheSerializer serializer) throws CacheLevelException {
+        byte[] data = serialize(cacheable, serializer);
+        weighed = cacheable;
+        weighedData = data;
+        return data;
+    }
+
+    /**
+     * Serializes the item for the put. The data of the last weigh is reused if the same item was weighed.
+     */
+    protected byte[] serialize(Cacheable cacheable, CacheSerializer serializer) throws CacheLevelException {
+        byte[] data = weighedData;
+        if (cacheable != weighed) {
+            try {
+                data = serializer.serialize(cacheable);
+            } catch (IOException e) {
+                throw new CacheLevelException("Cannot serialize item [id " + cacheable.getId() + "]", e);
+            }
+        }
+        releaseWeighed();
+        return data;
+    }
+
+    @Override
+    public void releaseWeighed() {
+        weighed = null;
+        weighedData = null;
+    }
+
+    /**
+     * @return quantity of items that the index of the level should keep without resize.
+     */
+    protected static int expectedSize(int maxSize, boolean weighted) {
+        return weighted ? Math.min(maxSize, WEIGHTED_EXPECTED_SIZE) : maxSize;
+    }
+
     @Override
     public int getOrder() {
         return  order;
@@ -2,25 +2,149 @@ package ru.elomonosov.level;
 
 import ru.elomonosov.cache.Cacheable;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public interface CacheLevel {
 
     void put(Cacheable cacheable) throws CacheLevelException;
 
+    /**
+     * Puts the group of items. The level must have a free place for all of them.
+     *
+     * @param cacheables items from the eldest to the newest.
+     */
+    default void putAll(List<Cacheable> cacheables) throws CacheLevelException {
+        for (Cacheable cacheable : cacheables) {
+            put(cacheable);
+        }
+    }
+
     Cacheable get(long id) throws CacheLevelException;
 
+    /**
+     * Gets the item without changing the level, so several readers may call it concurrently while no writer works.
+     *
+     * @return null if the item is absent or the level cannot be read without changes.
+     */
+    default Cacheable peek(long id) throws CacheLevelException {
+        return null;
+    }
+
+    /**
+     * Gets the group of items, as {@link #get(long)} does for every id.
+     *
+     * @return found items by id, absent ids are not included.
+     */
+    default Map<Long, Cacheable> getAll(long[] ids) throws CacheLevelException {
+        Map<Long, Cacheable> result = new HashMap<>();
+        for (long id : ids) {
+            Cacheable cacheable = get(id);
+            if (cacheable != null) {
+                result.put(id, cacheable);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cheap membership check that does not read the item and does not change the order of items.
+     *
+     * @return false if the level definitely does not contain the item, so it need not be asked for it.
+     */
+    default boolean mightContain(long id) throws CacheLevelException {
+        return true;
+    }
+
+    /**
+     * Ids of the stored items, read from the index of the level without reading the items.
+     *
+     * @return ids in no particular order, or null if the level does not know the ids of its items.
+     */
+    default long[] ids() throws CacheLevelException {
+        return null;
+    }
+
     Cacheable getByStrategy() throws CacheLevelException;
 
     Cacheable pull(long id) throws CacheLevelException;
 
     Cacheable pullByStrategy() throws CacheLevelException;
 
+    /**
+     * Removes the group of items without reading them.
+     *
+     * @return quantity of removed items.
+     */
+    default int removeAll(long[] ids) throws CacheLevelException {
+        int result = 0;
+        for (long id : ids) {
+            if (mightContain(id) && (pull(id) != null)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
     int size() throws CacheLevelException;
 
+    /**
+     * @return capacity of the level: quantity of items, or total weight of items if the level is weighted.
+     */
     int maxSize() throws CacheLevelException;
 
     boolean isFull() throws CacheLevelException;
 
+    /**
+     * @return true if the capacity of the level is the total weight of items, not their quantity.
+     */
+    default boolean isWeighted() {
+        return false;
+    }
+
+    /**
+     * @return weight of the item on this level, 1 if the level is not weighted.
+     */
+    default int weigh(Cacheable cacheable) throws CacheLevelException {
+        return 1;
+    }
+
+    /**
+     * Releases the data that the last weigh kept for the put, called if the weighed item is not put on the level.
+     */
+    default void releaseWeighed() {
+    }
+
+    /**
+     * @return total weight of the stored items, their quantity if the level is not weighted.
+     */
+    default long weight() throws CacheLevelException {
+        return size();
+    }
+
+    /**
+     * @return true if the items of the specified total weight can be put without displacing other items.
+     */
+    default boolean hasRoomFor(long weight) throws CacheLevelException {
+        return weight() + weight <= maxSize();
+    }
+
     int getOrder();
 
+    /**
+     * @return false if the level keeps items in the process memory, so its operations never wait for the I/O.
+     */
+    default boolean isBlocking() {
+        return true;
+    }
+
     void clear() throws CacheLevelException;
+
+    /**
+     * Releases resources of the level. Persistent level saves its items, so they are available after restart.
+     * Level must not be used after closing.
+     */
+    default void close() throws CacheLevelException {
+    }
 }
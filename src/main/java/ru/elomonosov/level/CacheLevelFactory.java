@@ -1,6 +1,13 @@
 package ru.elomonosov.level;
 
 import ru.elomonosov.cache.CacheStrategy;
+import ru.elomonosov.cache.Weigher;
+import ru.elomonosov.serializer.BinarySerializer;
+import ru.elomonosov.serializer.CacheSerializer;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.List;
 
 public final class CacheLevelFactory {
 
@@ -10,18 +17,115 @@ public final class CacheLevelFactory {
 
     }
 
+    /**
+     * @throws IllegalArgumentException if the level is remote, it is created by {@link #getRemoteLevel}.
+     */
     public CacheLevel getCacheLevel(CacheStrategy cacheStrategy, Level level, int maxSize, int order) {
+        return getCacheLevel(cacheStrategy, level, maxSize, order, new BinarySerializer());
+    }
+
+    /**
+     * @param serializer serializer of items for the levels that keep items out of the java heap.
+     * @throws IllegalArgumentException if the level is remote, it is created by {@link #getRemoteLevel}.
+     */
+    public CacheLevel getCacheLevel(CacheStrategy cacheStrategy, Level level, int maxSize, int order, CacheSerializer serializer) {
+        try {
+            return getCacheLevel(cacheStrategy, level, maxSize, order, serializer, null);
+        } catch (CacheLevelException e) {
+            throw new IllegalStateException("Temporary level cannot fail on creation", e);
+        }
+    }
+
+    /**
+     * @param serializer serializer of items for the levels that keep items out of the java heap.
+     * @param directory  directory of the persistent level, null for the temporary level. Used by the file level only.
+     * @throws CacheLevelException if the persistent level cannot be opened.
+     * @throws IllegalArgumentException if the level is remote, it is created by {@link #getRemoteLevel}.
+     */
+    public CacheLevel getCacheLevel(CacheStrategy cacheStrategy, Level level, int maxSize, int order, CacheSerializer serializer, Path directory) throws CacheLevelException {
+        return getCacheLevel(cacheStrategy, level, maxSize, order, serializer, directory, null);
+    }
+
+    /**
+     * @param serializer serializer of items for the levels that keep items out of the java heap.
+     * @param directory  directory of the persistent level, null for the temporary level. Used by the file level only.
+     * @param weigher    weigher of items for the memory level, null if the level counts items. If set, maxSize is
+     *                   the total weight of items, other levels weigh items by their serialized size.
+     * @throws CacheLevelException if the persistent level cannot be opened.
+     * @throws IllegalArgumentException if the level is remote, it is created by {@link #getRemoteLevel}.
+     */
+    public CacheLevel getCacheLevel(CacheStrategy cacheStrategy, Level level, int maxSize, int order, CacheSerializer serializer, Path directory, Weigher weigher) throws CacheLevelException {
         CacheLevel result = null;
+        boolean weighted = weigher != null;
         switch (level) {
             case MEMORY: {
-                result = new InMemoryLevel(cacheStrategy, maxSize, order);
+                result = new InMemoryLevel(cacheStrategy, maxSize, order, weigher);
+                break;
+            }
+            case OFF_HEAP: {
+                result = new OffHeapLevel(cacheStrategy, maxSize, order, serializer, weighted);
                 break;
             }
             case FILE: {
-                result = new InFileLevel(cacheStrategy, maxSize, order);
+                result = (directory == null)
+                        ? new InFileLevel(cacheStrategy, maxSize, order, serializer, weighted)
+                        : new InFileLevel(cacheStrategy, maxSize, order, serializer, directory, weighted);
                 break;
             }
+            case MMAP: {
+                result = new MappedFileLevel(cacheStrategy, maxSize, order, serializer, weighted);
+                break;
+            }
+            case REMOTE: {
+                throw new IllegalArgumentException("Remote level needs the server address, see getRemoteLevel");
+            }
         }
         return result;
     }
+
+    /**
+     * Creates the file level that spreads items between the directories, see {@link ShardedFileLevel}.
+     *
+     * @param serializer  serializer of items.
+     * @param directories directories of the shards, one shard per directory.
+     * @param persistent  true if the shards keep items in the directories, false if they create temporary directories in them.
+     * @param weigher     weigher of items, null if the level counts items. If set, items are weighed by their serialized size.
+     * @throws CacheLevelException if a directory of the persistent level cannot be opened.
+     */
+    public CacheLevel getShardedFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer,
+                                          List<Path> directories, boolean persistent, Weigher weigher) throws CacheLevelException {
+        return new ShardedFileLevel(cacheStrategy, maxSize, order, serializer, directories, persistent, weigher != null);
+    }
+
+    /**
+     * Creates the level that keeps items on the server, see {@link RemoteLevel}.
+     *
+     * @param address    address of the {@link CacheServer}.
+     * @param serializer serializer of items.
+     * @param poolSize   maximal quantity of connections to the server.
+     * @param shares     quantity of levels that share the server in the cache.
+     * @param shareNum   number of this level among them, from 0.
+     * @throws CacheLevelException if the server is not available.
+     */
+    public CacheLevel getRemoteLevel(InetSocketAddress address, int order, CacheSerializer serializer, int poolSize,
+                                     int shares, int shareNum) throws CacheLevelException {
+        return getRemoteLevel(address, order, serializer, poolSize, shares, shareNum, null);
+    }
+
+    /**
+     * Creates the level that keeps items on the server, see {@link RemoteLevel}.
+     *
+     * @param address    address of the {@link CacheServer}.
+     * @param serializer serializer of items.
+     * @param poolSize   maximal quantity of connections to the server.
+     * @param shares     quantity of levels that share the server in the cache.
+     * @param shareNum   number of this level among them, from 0.
+     * @param client     name of the level on the server, it owns the items put by the levels with the same name.
+     *                   Null for the random name.
+     * @throws CacheLevelException if the server is not available.
+     */
+    public CacheLevel getRemoteLevel(InetSocketAddress address, int order, CacheSerializer serializer, int poolSize,
+                                     int shares, int shareNum, String client) throws CacheLevelException {
+        return new RemoteLevel(address, order, serializer, poolSize, shares, shareNum, client);
+    }
 }
@@ -0,0 +1,492 @@
+package ru.elomonosov.level;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.elomonosov.cache.CacheStrategy;
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.cache.Weigher;
+import ru.elomonosov.serializer.CacheSerializer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server that hosts one ordinary level for the remote levels of several processes, see {@link RemoteLevel}.
+ * Items are kept as they were serialized by the clients, the server never deserializes them, so it needs
+ * no classes of the items. Every connection is served by its own thread, the operations on the level
+ * are done one by one. The level displaces its items by itself when the clients put more than it can keep.
+ * <p>
+ * Items are shared by id, but the server remembers the client that put every item. Clear and the displacement
+ * by strategy requested by the client touch only the items it put, so the clients don't remove the items of each other.
+ * The client is kept with the item, so the server opened with the directory knows the clients of the stored items.
+ */
+public class CacheServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheServer.class);
+
+    /**
+     * Item of the client as it was serialized, and the client that put it.
+     */
+    private static final class RawItem implements Cacheable {
+
+        private static final long serialVersionUID = 1L;
+
+        final long id;
+        final String owner;
+        final byte[] data;
+
+        RawItem(long id, String owner, byte[] data) {
+            this.id = id;
+            this.owner = owner;
+            this.data = data;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+    }
+
+    /**
+     * Keeps raw items on the levels that keep serialized items: id, length and UTF-8 bytes of the client name,
+     * followed by the data of the client.
+     */
+    private static final CacheSerializer RAW_SERIALIZER = new CacheSerializer() {
+        @Override
+        public byte[] serialize(Cacheable cacheable) throws IOException {
+            RawItem item = (RawItem) cacheable;
+            byte[] owner = item.owner.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer result = ByteBuffer.allocate(12 + owner.length + item.data.length);
+            result.putLong(item.id).putInt(owner.length).put(owner).put(item.data);
+            return result.array();
+        }
+
+        @Override
+        public Cacheable deserialize(byte[] data, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            int ownerLength = (length < 12) ? -1 : buffer.getInt(offset + 8);
+            if ((ownerLength < 0) || (ownerLength > length - 12)) {
+                throw new IOException("Truncated raw item");
+            }
+            long id = buffer.getLong();
+            String owner = new String(data, offset + 12, ownerLength, StandardCharsets.UTF_8);
+            return new RawItem(id, owner, Arrays.copyOfRange(data, offset + 12 + ownerLength, offset + length));
+        }
+    };
+
+    /**
+     * Weighs raw items of the memory level as the other levels do, by their serialized size.
+     */
+    private static final Weigher RAW_WEIGHER = new Weigher() {
+        @Override
+        public int weigh(Cacheable cacheable) {
+            RawItem item = (RawItem) cacheable;
+            return 12 + item.owner.getBytes(StandardCharsets.UTF_8).length + item.data.length;
+        }
+    };
+
+    /**
+     * Quantity of items read at once when the clients of the stored items are loaded.
+     */
+    private static final int LOAD_CHUNK_SIZE = 1024;
+
+    private final CacheLevel cacheLevel;
+
+    private final ReentrantLock lock = new ReentrantLock(); // levels are not thread safe
+
+    private final Map<String, LinkedHashSet<Long>> clients = new HashMap<>(); // ids put by every client, from the eldest put, guarded by the lock
+    private final Map<Long, String> owners = new HashMap<>();                 // client that put the item, guarded by the lock
+
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private final AtomicInteger connectionNum = new AtomicInteger();
+
+    private ServerSocket serverSocket;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates the server with the temporary level.
+     *
+     * @param level    type of the hosted level, any but remote.
+     * @param maxSize  quantity of items that the level can keep, or their total serialized size if the level is weighted.
+     * @param weighted true if items are weighed by their serialized size.
+     */
+    public CacheServer(CacheStrategy cacheStrategy, Level level, int maxSize, boolean weighted) {
+        try {
+            this.cacheLevel = createLevel(cacheStrategy, level, maxSize, weighted, null);
+        } catch (CacheLevelException e) {
+            throw new IllegalStateException("Temporary level cannot fail on creation", e);
+        }
+    }
+
+    /**
+     * Creates the server with the persistent file level.
+     *
+     * @param directory directory of the level, items kept in it are available at once.
+     * @throws CacheLevelException if the directory cannot be opened.
+     */
+    public CacheServer(CacheStrategy cacheStrategy, int maxSize, boolean weighted, Path directory) throws CacheLevelException {
+        this.cacheLevel = createLevel(cacheStrategy, Level.FILE, maxSize, weighted, directory);
+        try {
+            loadOwners();
+        } catch (CacheLevelException | RuntimeException e) {
+            cacheLevel.close();
+            throw e;
+        }
+    }
+
+    private static CacheLevel createLevel(CacheStrategy cacheStrategy, Level level, int maxSize, boolean weighted, Path directory) throws CacheLevelException {
+        if (level == Level.REMOTE) {
+            throw new IllegalArgumentException("Server cannot host the remote level");
+        }
+        return CacheLevelFactory.INSTANCE.getCacheLevel(cacheStrategy, level, maxSize, 0, RAW_SERIALIZER, directory,
+                weighted ? RAW_WEIGHER : null);
+    }
+
+    /**
+     * Starts accepting the connections.
+     *
+     * @param address address to listen, port 0 for any free port.
+     * @throws CacheLevelException if the address cannot be bound.
+     */
+    public synchronized void start(InetSocketAddress address) throws CacheLevelException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Server is started already");
+        }
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(address);
+        } catch (IOException e) {
+            throw new CacheLevelException("Cannot listen " + address, e);
+        }
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "cache-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Cache server listens {}.", getAddress());
+    }
+
+    /**
+     * @return address that the server listens.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * Stops the server, closes the connections and the level. Persistent level saves its items.
+     *
+     * @throws CacheLevelException if the level cannot be closed.
+     */
+    public void close() throws CacheLevelException {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        lock.lock();
+        try {
+            cacheLevel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("Cannot accept connection", e);
+                }
+                return;
+            }
+            connections.add(socket);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "cache-server-connection-" + connectionNum.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Internal method. Answers the requests of the connection until it is closed. Responses are flushed
+     * when no more requests are received, so the pipelined requests are answered by one write.
+     */
+    private void serve(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), RemoteProtocol.BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), RemoteProtocol.BUFFER_SIZE))) {
+            RemoteProtocol.Payload payload = new RemoteProtocol.Payload();
+            String client = ""; // until the client says hello
+            while (true) {
+                ByteBuffer request = RemoteProtocol.readFrame(in);
+                int requestId = request.getInt();
+                byte operation = request.get();
+                byte status = RemoteProtocol.OK;
+                try {
+                    if (operation == RemoteProtocol.HELLO) {
+                        client = RemoteProtocol.readString(request);
+                    }
+                    handle(operation, request, payload.start(), client);
+                } catch (CacheLevelException | IOException | RuntimeException e) {
+                    logger.error("Cannot do operation " + operation, e);
+                    status = RemoteProtocol.ERROR;
+                    RemoteProtocol.writeString(payload.start(), e.toString());
+                }
+                RemoteProtocol.writeFrame(out, requestId, status, payload);
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            // connection is closed by the client or by the server
+        } catch (IOException e) {
+            logger.error("Connection failed", e);
+        } finally {
+            connections.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void handle(byte operation, ByteBuffer request, DataOutputStream out, String client) throws CacheLevelException, IOException {
+        lock.lock();
+        try {
+            switch (operation) {
+                case RemoteProtocol.HELLO: {
+                    out.writeInt(cacheLevel.maxSize());
+                    out.writeBoolean(cacheLevel.isWeighted());
+                    break;
+                }
+                case RemoteProtocol.PUT: {
+                    long id = request.getLong();
+                    store(Collections.singletonList(new RawItem(id, client, RemoteProtocol.readData(request))), client);
+                    break;
+                }
+                case RemoteProtocol.PUT_ALL: {
+                    int count = request.getInt();
+                    List<Cacheable> items = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        long id = request.getLong();
+                        items.add(new RawItem(id, client, RemoteProtocol.readData(request)));
+                    }
+                    store(items, client);
+                    break;
+                }
+                case RemoteProtocol.GET: {
+                    writeFound(out, cacheLevel.get(request.getLong()));
+                    break;
+                }
+                case RemoteProtocol.GET_ALL: {
+                    Map<Long, Cacheable> found = cacheLevel.getAll(readIds(request));
+                    out.writeInt(found.size());
+                    for (Cacheable cacheable : found.values()) {
+                        writeItem(out, cacheable);
+                    }
+                    break;
+                }
+                case RemoteProtocol.GET_BY_STRATEGY: {
+                    long[] ids = idsOf(client, 1);
+                    writeFound(out, (ids.length == 0) ? null : cacheLevel.get(ids[0]));
+                    break;
+                }
+                case RemoteProtocol.PULL: {
+                    long id = request.getLong();
+                    disown(id);
+                    writeFound(out, cacheLevel.pull(id));
+                    break;
+                }
+                case RemoteProtocol.PULL_BY_STRATEGY: {
+                    long[] ids = idsOf(client, 1);
+                    if (ids.length > 0) {
+                        disown(ids[0]);
+                    }
+                    writeFound(out, (ids.length == 0) ? null : cacheLevel.pull(ids[0]));
+                    break;
+                }
+                case RemoteProtocol.REMOVE_ALL: {
+                    long[] ids = readIds(request);
+                    for (long id : ids) {
+                        disown(id);
+                    }
+                    out.writeInt(cacheLevel.removeAll(ids));
+                    break;
+                }
+                case RemoteProtocol.STATS: {
+                    out.writeInt(cacheLevel.size());
+                    out.writeLong(cacheLevel.weight());
+                    break;
+                }
+                case RemoteProtocol.CLEAR: {
+                    long[] ids = idsOf(client, Integer.MAX_VALUE);
+                    for (long id : ids) {
+                        disown(id);
+                    }
+                    cacheLevel.removeAll(ids);
+                    break;
+                }
+                default: {
+                    throw new IOException("Unknown operation " + operation);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal method. Replaces the items with the same ids and displaces the eldest items, so the level keeps
+     * not more than its max size. Items that don't fit the level are lost. Must be called under the lock.
+     *
+     * @param items  items from the eldest to the newest.
+     * @param client client that puts the items.
+     */
+    private void store(List<Cacheable> items, String client) throws CacheLevelException {
+        long[] ids = new long[items.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = items.get(i).getId();
+            disown(ids[i]);
+        }
+        cacheLevel.removeAll(ids);
+        int first = items.size();
+        long weight = 0;
+        while (first > 0) { // the eldest items of the group would be displaced by the newest ones
+            int itemWeight = cacheLevel.weigh(items.get(first - 1));
+            if (weight + itemWeight > cacheLevel.maxSize()) {
+                break;
+            }
+            weight += itemWeight;
+            first--;
+        }
+        if (first > 0) { // the last weighed item is lost
+            cacheLevel.releaseWeighed();
+        }
+        while (!cacheLevel.hasRoomFor(weight)) { // displaced items are lost
+            Cacheable displaced = cacheLevel.pullByStrategy();
+            if (displaced == null) {
+                break;
+            }
+            disown(displaced.getId());
+        }
+        if (first < items.size()) {
+            cacheLevel.putAll(items.subList(first, items.size()));
+            for (int i = first; i < ids.length; i++) {
+                own(ids[i], client);
+            }
+        }
+    }
+
+    /**
+     * Internal method. Remembers the client that put the item. Must be called under the lock.
+     */
+    private void own(long id, String client) {
+        LinkedHashSet<Long> clientIds = clients.get(client);
+        if (clientIds == null) {
+            clientIds = new LinkedHashSet<>();
+            clients.put(client, clientIds);
+        }
+        clientIds.add(id);
+        owners.put(id, client);
+    }
+
+    /**
+     * Internal method. Reads the clients of the items kept by the persistent level, so the clients that say hello
+     * with the same names own their items again.
+     */
+    private void loadOwners() throws CacheLevelException {
+        long[] ids = cacheLevel.ids();
+        for (int from = 0; from < ids.length; from += LOAD_CHUNK_SIZE) {
+            long[] chunk = Arrays.copyOfRange(ids, from, Math.min(ids.length, from + LOAD_CHUNK_SIZE));
+            for (Cacheable cacheable : cacheLevel.getAll(chunk).values()) {
+                RawItem item = (RawItem) cacheable;
+                own(item.id, item.owner);
+            }
+        }
+        logger.info("Cache server loaded {} items of {} clients.", owners.size(), clients.size());
+    }
+
+    /**
+     * Internal method. Must be called under the lock.
+     * @return ids of the items put by the client, from the eldest put, not more than the limit.
+     */
+    private long[] idsOf(String client, int limit) {
+        LinkedHashSet<Long> clientIds = clients.get(client);
+        if (clientIds == null) {
+            return new long[0];
+        }
+        long[] result = new long[Math.min(limit, clientIds.size())];
+        Iterator<Long> iterator = clientIds.iterator();
+        for (int i = 0; i < result.length; i++) {
+            result[i] = iterator.next();
+        }
+        return result;
+    }
+
+    /**
+     * Internal method. Forgets the client that put the item, it is removed from the level. Must be called under the lock.
+     */
+    private void disown(long id) {
+        String client = owners.remove(id);
+        if (client != null) {
+            LinkedHashSet<Long> clientIds = clients.get(client);
+            clientIds.remove(id);
+            if (clientIds.isEmpty()) {
+                clients.remove(client);
+            }
+        }
+    }
+
+    private static long[] readIds(ByteBuffer request) {
+        long[] result = new long[request.getInt()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = request.getLong();
+        }
+        return result;
+    }
+
+    private static void writeFound(DataOutputStream out, Cacheable cacheable) throws IOException {
+        out.writeBoolean(cacheable != null);
+        if (cacheable != null) {
+            writeItem(out, cacheable);
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, Cacheable cacheable) throws IOException {
+        RawItem item = (RawItem) cacheable;
+        out.writeLong(item.id);
+        out.writeInt(item.data.length);
+        out.write(item.data);
+    }
+}
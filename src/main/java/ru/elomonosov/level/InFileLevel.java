@@ -4,120 +4,589 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.elomonosov.cache.CacheStrategy;
 import ru.elomonosov.cache.Cacheable;
-import ru.elomonosov.util.ClassNameUtil;
+import ru.elomonosov.serializer.BinarySerializer;
+import ru.elomonosov.serializer.CacheSerializer;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class InFileLevel implements CacheLevel {
+/**
+ * Level that keeps items in the file system. Items are appended to the large segment files, the index in memory
+ * keeps segment, offset and length of every item. Item is read with one positioned read.
+ * <p>
+ * Record of the item is the header (id and payload length) followed by the serialized item.
+ * Removed items are not erased, their space is counted as dead. When more than a half of a closed segment is dead,
+ * the background compactor copies live items to the new file that replaces the segment.
+ * <p>
+ * Level created with the directory is persistent. Removed item is marked by the record without payload (tombstone).
+ * On close the index and the order of items are written to the manifest. Level opened with the same directory
+ * loads the manifest, or scans the segments if the level was not closed.
+ */
+public class InFileLevel extends AbstractCacheLevel implements CacheLevel {
 
-    private static final Logger logger = LoggerFactory.getLogger(ClassNameUtil.getCurrentClassName());
+    private static final Logger logger = LoggerFactory.getLogger(InFileLevel.class);
 
-    private Map<Long, Path> cachePaths;
+    static final long SEGMENT_SIZE = 64L << 20;
 
-    int maxSize;
+    private static final int HEADER_SIZE = 12; // id (long) + payload length (int)
 
-    int order;
+    private static final int TOMBSTONE = -1; // payload length of the removed item record
 
-    CacheStrategy cacheStrategy;
+    private static final int MAX_BATCH_IO = 1 << 20; // bytes of one write or read of the batch
+
+    private static final int MAX_READ_GAP = 4096; // records closer than this are read by one read
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String COMPACTED_SUFFIX = ".compacted";
+
+    private static final String MANIFEST = "index";
+
+    private static final String LOCK = "lock";
+
+    private static final int MANIFEST_MAGIC = 0x43414348;
+
+    private static final int MANIFEST_VERSION = 1;
+
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "cache-file-level-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Index of stored items, keeps segment number, record offset, payload length and access stamp for every id.
+     */
+    private static final class RecordIndex extends LongHashIndex {
+
+        private int[] segments;
+        private long[] offsets;
+        private int[] lengths;
+        private long[] stamps;    // value of the clock at the last put or access
+        private long totalLength; // sum of payload lengths
+        private AtomicLong clock = new AtomicLong(); // shared by the shards of the sharded level
+
+        RecordIndex(int expectedSize, boolean accessOrder) {
+            super(expectedSize, accessOrder);
+        }
+
+        @Override
+        protected void growValues(int capacity) {
+            segments = (segments == null) ? new int[capacity] : Arrays.copyOf(segments, capacity);
+            offsets = (offsets == null) ? new long[capacity] : Arrays.copyOf(offsets, capacity);
+            lengths = (lengths == null) ? new int[capacity] : Arrays.copyOf(lengths, capacity);
+            stamps = (stamps == null) ? new long[capacity] : Arrays.copyOf(stamps, capacity);
+        }
+
+        @Override
+        protected void moveValue(int from, int to) {
+            segments[to] = segments[from];
+            offsets[to] = offsets[from];
+            lengths[to] = lengths[from];
+            stamps[to] = stamps[from];
+        }
+
+        @Override
+        protected void clearValue(int position) {
+            lengths[position] = 0;
+        }
+
+        @Override
+        int add(long key) {
+            int position = super.add(key);
+            stamps[position] = clock.incrementAndGet();
+            return position;
+        }
+
+        @Override
+        void touch(int position) {
+            super.touch(position);
+            stamps[position] = clock.incrementAndGet();
+        }
+
+        void setLength(int position, int length) {
+            totalLength += length - lengths[position];
+            lengths[position] = length;
+        }
+
+        @Override
+        void removeAt(int position) {
+            totalLength -= lengths[position];
+            super.removeAt(position);
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            totalLength = 0;
+        }
+    }
+
+    /**
+     * One file of the log.
+     */
+    private static final class LogSegment {
+
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long deadBytes;
+        boolean compacting;
+
+        LogSegment(int number, Path path, boolean create) throws IOException {
+            this.number = number;
+            this.path = path;
+            this.channel = create
+                    ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private final CacheStrategy cacheStrategy;
+
+    private final CacheSerializer serializer;
+
+    private final int maxSize;
+
+    private final long segmentSize;
+
+    private final boolean weighted;
+
+
+    private final RecordIndex index;
+
+    private final SortedMap<Integer, LogSegment> logSegments = new TreeMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // guards the level against the compactor
+
+    private final boolean persistent;
+
+    private final Path temporaryBase;
+
+    private Path directory; // temporary directory is created on the first put
+
+    private FileChannel lockChannel;
+
+    private FileLock directoryLock;
+
+    private LogSegment active;
+
+    private int nextSegmentNumber;
+
+    private boolean closed;
 
     public InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order) {
+        this(cacheStrategy, maxSize, order, new BinarySerializer());
+    }
+
+    public InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer) {
+        this(cacheStrategy, maxSize, order, serializer, false);
+    }
+
+    /**
+     * @param maxSize  total serialized size of items that the level can keep, or their quantity if the level is not weighted.
+     * @param weighted true if items are weighed by their serialized size.
+     */
+    public InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, boolean weighted) {
+        this(cacheStrategy, maxSize, order, serializer, weighted, SEGMENT_SIZE);
+    }
+
+    InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, long segmentSize) {
+        this(cacheStrategy, maxSize, order, serializer, false, segmentSize);
+    }
+
+    InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, boolean weighted, long segmentSize) {
+        this(cacheStrategy, maxSize, order, serializer, weighted, segmentSize, null, expectedSize(maxSize, weighted));
+    }
+
+    /**
+     * Creates the temporary level.
+     *
+     * @param temporaryBase directory where the temporary directory of the level is created, null for the tmp
+     *                      directory in the working directory.
+     * @param expectedSize  quantity of items that the index keeps without resize.
+     */
+    InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, boolean weighted, long segmentSize,
+                Path temporaryBase, int expectedSize) {
+        super(order);
+        this.cacheStrategy = cacheStrategy;
+        this.serializer = serializer;
         this.maxSize = maxSize;
-        this.order = order;
+        this.weighted = weighted;
+        this.segmentSize = segmentSize;
+        this.index = new RecordIndex(expectedSize, cacheStrategy != CacheStrategy.RANDOM);
+        this.persistent = false;
+        this.temporaryBase = temporaryBase;
+    }
+
+    /**
+     * Opens the persistent level. Items kept in the directory are available at once.
+     *
+     * @param directory directory of the level, it is created if not exists. Only one level can use the directory.
+     * @throws CacheLevelException if the directory cannot be opened.
+     */
+    public InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, Path directory) throws CacheLevelException {
+        this(cacheStrategy, maxSize, order, serializer, directory, false);
+    }
+
+    /**
+     * Opens the persistent level. Items kept in the directory are available at once.
+     *
+     * @param maxSize   total serialized size of items that the level can keep, or their quantity if the level is not weighted.
+     * @param directory directory of the level, it is created if not exists. Only one level can use the directory.
+     * @param weighted  true if items are weighed by their serialized size.
+     * @throws CacheLevelException if the directory cannot be opened.
+     */
+    public InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, Path directory, boolean weighted) throws CacheLevelException {
+        this(cacheStrategy, maxSize, order, serializer, directory, weighted, SEGMENT_SIZE);
+    }
+
+    InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, Path directory, long segmentSize) throws CacheLevelException {
+        this(cacheStrategy, maxSize, order, serializer, directory, false, segmentSize);
+    }
+
+    InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, Path directory, boolean weighted, long segmentSize) throws CacheLevelException {
+        this(cacheStrategy, maxSize, order, serializer, directory, weighted, segmentSize, expectedSize(maxSize, weighted));
+    }
+
+    /**
+     * Opens the persistent level.
+     *
+     * @param expectedSize quantity of items that the index keeps without resize.
+     */
+    InFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, Path directory, boolean weighted, long segmentSize,
+                int expectedSize) throws CacheLevelException {
+        super(order);
         this.cacheStrategy = cacheStrategy;
-        switch (cacheStrategy) {
-            case LEAST_RECENTLY_USED:
-            {
-                this.cachePaths = new LinkedHashMap<>();
-                break;
+        this.serializer = serializer;
+        this.maxSize = maxSize;
+        this.weighted = weighted;
+        this.segmentSize = segmentSize;
+        this.index = new RecordIndex(expectedSize, cacheStrategy != CacheStrategy.RANDOM);
+        this.persistent = true;
+        this.directory = directory;
+        this.temporaryBase = null;
+        try {
+            open();
+        } catch (IOException | CacheLevelException e) {
+            for (LogSegment logSegment : logSegments.values()) {
+                try {
+                    logSegment.channel.close();
+                } catch (IOException ignored) {
+                }
             }
+            releaseDirectory();
+            throw new CacheLevelException("Cannot open level " + order + " in " + directory, e);
         }
     }
 
     @Override
     public void put(Cacheable cacheable) throws CacheLevelException {
-        Path oldPath = cachePaths.get(cacheable.getId());
-        if (oldPath != null) {
-            // remove
-        } else {
-            try {
-                Path path = Files.createTempFile(Paths.get(System.getProperty("user.dir"), "tmp"), "cache", ".tmp");
-                try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile())))) {
-                    out.writeObject(cacheable);
+        byte[] data = serialize(cacheable, serializer);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            int position = index.indexOf(cacheable.getId());
+            if (position != LongHashIndex.NIL) {
+                markDead(position);
+                index.touch(position);
+            } else {
+                position = index.add(cacheable.getId());
+            }
+            long offset = append(cacheable.getId(), ByteBuffer.wrap(data));
+            index.segments[position] = active.number;
+            index.offsets[position] = offset;
+            index.setLength(position, data.length);
+        } catch (IOException e) {
+            dropUnwritten(new long[]{cacheable.getId()}, e);
+            throw new CacheLevelException("Cannot write item [id " + cacheable.getId() + "]", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Puts the group of items. Records are written to the active segment by a few large writes.
+     */
+    @Override
+    public void putAll(List<Cacheable> cacheables) throws CacheLevelException {
+        byte[][] data = new byte[cacheables.size()][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = serialize(cacheables.get(i), serializer);
+        }
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            int i = 0;
+            while (i < data.length) {
+                int recordSize = HEADER_SIZE + data[i].length;
+                if ((active == null) || ((active.size > 0) && (active.size + recordSize > segmentSize))) {
+                    rollSegment();
                 }
-                cachePaths.put(cacheable.getId(), path);
+                int end = i;
+                long batchSize = 0;
+                do { // records that fit the active segment and the batch buffer
+                    batchSize += HEADER_SIZE + data[end].length;
+                    end++;
+                } while ((end < data.length) && (batchSize + HEADER_SIZE + data[end].length <= MAX_BATCH_IO)
+                        && (active.size + batchSize + HEADER_SIZE + data[end].length <= segmentSize));
 
-            } catch (IOException e) {
-                throw new CacheLevelException("", e);
+                ByteBuffer buffer = ByteBuffer.allocate((int) batchSize);
+                for (int j = i; j < end; j++) {
+                    long id = cacheables.get(j).getId();
+                    int position = index.indexOf(id);
+                    if (position != LongHashIndex.NIL) {
+                        markDead(position);
+                        index.touch(position);
+                    } else {
+                        position = index.add(id);
+                    }
+                    index.segments[position] = active.number;
+                    index.offsets[position] = active.size + buffer.position();
+                    index.setLength(position, data[j].length);
+                    buffer.putLong(id).putInt(data[j].length).put(data[j]);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    active.channel.write(buffer, active.size + buffer.position());
+                }
+                active.size += batchSize;
+                i = end;
+            }
+        } catch (IOException e) {
+            long[] ids = new long[cacheables.size()]; // records of the group may be not written
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = cacheables.get(i).getId();
             }
+            dropUnwritten(ids, e);
+            throw new CacheLevelException("Cannot write " + cacheables.size() + " items", e);
+        } finally {
+            writeLock.unlock();
         }
     }
 
     @Override
     public Cacheable get(long id) throws CacheLevelException {
-        Path path = cachePaths.get(id);
-        Cacheable result;
-        if (path == null) {
-            result = null;
+        Cacheable result = null;
+        if (cacheStrategy != CacheStrategy.RANDOM) { // order is changed
+            Lock writeLock = lock.writeLock();
+            writeLock.lock();
+            try {
+                int position = index.indexOf(id);
+                if (position != LongHashIndex.NIL) {
+                    index.touch(position);
+                    result = read(position);
+                }
+            } finally {
+                writeLock.unlock();
+            }
         } else {
+            Lock readLock = lock.readLock();
+            readLock.lock();
             try {
-                try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
-                    result = (Cacheable) in.readObject();
+                int position = index.indexOf(id);
+                if (position != LongHashIndex.NIL) {
+                    result = read(position);
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                throw new CacheLevelException("", e);
+            } finally {
+                readLock.unlock();
             }
         }
         return result;
     }
 
+    /**
+     * Checks the index in memory, so the miss takes neither the write lock nor the disk read.
+     */
     @Override
-    public Cacheable getByStrategy() throws CacheLevelException {
-        Cacheable result;
-        Long id = keyByStrategy();
-        if (id == null) {
-            result = null;
-        } else {
-            result = get(id);
+    public boolean mightContain(long id) throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return index.containsKey(id);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public long[] ids() throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return index.keys();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the group of items. Records are read in the file order, records of the same segment
+     * that lie close to each other are read by one read.
+     */
+    @Override
+    public Map<Long, Cacheable> getAll(long[] ids) throws CacheLevelException {
+        Map<Long, Cacheable> result = new HashMap<>();
+        Lock levelLock = (cacheStrategy != CacheStrategy.RANDOM) ? lock.writeLock() : lock.readLock();
+        levelLock.lock();
+        try {
+            List<Integer> positions = new ArrayList<>(ids.length);
+            for (long id : ids) {
+                int position = index.indexOf(id);
+                if (position != LongHashIndex.NIL) {
+                    if (cacheStrategy != CacheStrategy.RANDOM) {
+                        index.touch(position);
+                    }
+                    positions.add(position);
+                }
+            }
+            Collections.sort(positions, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    int result = Integer.compare(index.segments[first], index.segments[second]);
+                    return (result != 0) ? result : Long.compare(index.offsets[first], index.offsets[second]);
+                }
+            });
+
+            int i = 0;
+            while (i < positions.size()) {
+                int first = positions.get(i);
+                long start = index.offsets[first];
+                long end = start + HEADER_SIZE + index.lengths[first];
+                int last = i + 1;
+                while (last < positions.size()) { // join the close records of the same segment
+                    int next = positions.get(last);
+                    long nextEnd = index.offsets[next] + HEADER_SIZE + index.lengths[next];
+                    if ((index.segments[next] != index.segments[first]) || (index.offsets[next] - end > MAX_READ_GAP)
+                            || (nextEnd - start > MAX_BATCH_IO)) {
+                        break;
+                    }
+                    end = Math.max(end, nextEnd);
+                    last++;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+                readFully(logSegments.get(index.segments[first]), buffer, start);
+                for (int j = i; j < last; j++) {
+                    int position = positions.get(j);
+                    int offset = (int) (index.offsets[position] - start) + HEADER_SIZE;
+                    result.put(index.keyAt(position), serializer.deserialize(buffer.array(), offset, index.lengths[position]));
+                }
+                i = last;
+            }
+        } catch (IOException e) {
+            throw new CacheLevelException("Cannot read " + ids.length + " items", e);
+        } finally {
+            levelLock.unlock();
         }
         return result;
     }
 
+    @Override
+    public Cacheable getByStrategy() throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return index.isEmpty() ? null : read(positionByStrategy());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
     @Override
     public Cacheable pull(long id) throws CacheLevelException {
-        Cacheable result = get(id);
-        if (result != null) {
-            try {
-                Files.delete(cachePaths.get(id));
-                cachePaths.remove(id);
-            } catch (IOException e) {
-                throw new CacheLevelException("", e);
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            int position = index.indexOf(id);
+            Cacheable result = null;
+            if (position != LongHashIndex.NIL) {
+                result = read(position);
+                release(position);
             }
+            return result;
+        } finally {
+            writeLock.unlock();
         }
-        return result;
     }
 
     @Override
     public Cacheable pullByStrategy() throws CacheLevelException {
-        Cacheable result;
-        Long id = keyByStrategy();
-        if (id == null) {
-            result = null;
-        } else {
-            result = pull(id);
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            Cacheable result = null;
+            if (!index.isEmpty()) {
+                int position = positionByStrategy();
+                result = read(position);
+                release(position);
+            }
+            return result;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the group of items without reading them. Tombstones of the persistent level are written
+     * by a few large writes, segments that become mostly dead are compacted and deleted by the compactor.
+     */
+    @Override
+    public int removeAll(long[] ids) throws CacheLevelException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            long[] removed = new long[ids.length];
+            int count = 0;
+            for (long id : ids) {
+                int position = index.indexOf(id);
+                if (position != LongHashIndex.NIL) {
+                    markDead(position);
+                    index.removeAt(position);
+                    removed[count++] = id;
+                }
+            }
+            if (persistent) {
+                writeTombstones(removed, count);
+            }
+            return count;
+        } catch (IOException e) {
+            throw new CacheLevelException("Cannot write tombstones of " + ids.length + " items", e);
+        } finally {
+            writeLock.unlock();
         }
-        return result;
     }
 
     @Override
     public int size() throws CacheLevelException {
-        return cachePaths.size();
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return index.size();
+        } finally {
+            readLock.unlock();
+        }
     }
 
     @Override
@@ -127,46 +596,663 @@ public class InFileLevel implements CacheLevel {
 
     @Override
     public boolean isFull() throws CacheLevelException {
-        return cachePaths.size() == maxSize();
+        return weight() >= maxSize();
     }
 
     @Override
-    public int getOrder() {
-        return order;
+    public boolean isWeighted() {
+        return weighted;
     }
 
+    /**
+     * @return serialized size of the item if the level is weighted. The item is serialized once for the weigh and the put.
+     */
+    @Override
+    public int weigh(Cacheable cacheable) throws CacheLevelException {
+        if (!weighted) {
+            return 1;
+        }
+        byte[] data = serializeWeighed(cacheable, serializer);
+        return data.length;
+    }
+
+    @Override
+    public long weight() throws CacheLevelException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return weighted ? index.totalLength : index.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+
+    /**
+     * Clears the level and deletes its segments. Temporary directory is deleted too.
+     */
     @Override
     public void clear() throws CacheLevelException {
-        if (!cachePaths.isEmpty()) {
-            try {
-                for(Path path : cachePaths.values() ) {
-                    Files.delete(path);
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            index.clear();
+            for (LogSegment logSegment : logSegments.values()) {
+                if (logSegment.compacting) {
+                    Files.deleteIfExists(compactedPath(logSegment.number)); // compactor drops the copy of the removed segment
+                }
+                logSegment.delete();
+            }
+            logSegments.clear();
+            active = null;
+            if ((directory != null) && !persistent) {
+                Files.deleteIfExists(directory);
+                directory = null;
+            }
+        } catch (IOException e) {
+            throw new CacheLevelException("Cannot clear level " + order, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Closes segment files. Persistent level writes the manifest, so the next level opened with the directory
+     * gets all items without scanning the segments. Temporary level deletes its files.
+     */
+    @Override
+    public void close() throws CacheLevelException {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (!persistent) {
+                clear();
+            } else {
+                writeManifest();
+                for (LogSegment logSegment : logSegments.values()) {
+                    logSegment.channel.close();
                 }
-                cachePaths.clear();
-            } catch (IOException e) {
-                throw new CacheLevelException("", e);
             }
+            closed = true;
+        } catch (IOException e) {
+            throw new CacheLevelException("Cannot close level " + order, e);
+        } finally {
+            releaseDirectory();
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return quantity of segment files of the level.
+     */
+    int segmentCount() {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return logSegments.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the access stamps of the items comparable with the stamps of the other levels that share the clock.
+     * Must be called before the level is used.
+     *
+     * @param clock clock of the access stamps, it is advanced to the stamps of this level.
+     */
+    void shareClock(AtomicLong clock) {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            if (clock.get() < index.clock.get()) {
+                clock.set(index.clock.get());
+            }
+            index.clock = clock;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return access stamp of the item that is displaced by the LRU strategy, {@link Long#MAX_VALUE} if the level is empty.
+     */
+    long eldestStamp() {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            int position = index.eldest();
+            return (position == LongHashIndex.NIL) ? Long.MAX_VALUE : index.stamps[position];
+        } finally {
+            readLock.unlock();
         }
     }
 
-    private long keyByStrategy() {
-        long result = 0;
+    private int positionByStrategy() {
+        int result = 0;
         switch (cacheStrategy) {
-            case LEAST_RECENTLY_USED: {
-                Iterator<Long> iterator = cachePaths.keySet().iterator();
-                result = iterator.next();
+            case LEAST_RECENTLY_USED:
+            case TINY_LFU: {
+                result = index.eldest();
                 break;
             }
             case RANDOM: {
-                int randomKeyNum = new Random().nextInt(cachePaths.size());
-                Iterator<Long> iterator = cachePaths.keySet().iterator();
-                for (int i = 0; i < randomKeyNum; i++) {
-                    iterator.next();
-                }
-                result = iterator.next();
+                result = index.randomPosition();
                 break;
             }
         }
         return result;
     }
+
+    /**
+     * Internal method. Reads the item, one positioned read of the payload.
+     */
+    private Cacheable read(int position) throws CacheLevelException {
+        long id = index.keyAt(position);
+        try {
+            ByteBuffer data = readPayload(logSegments.get(index.segments[position]), index.offsets[position], index.lengths[position]);
+            return serializer.deserialize(data.array(), 0, data.limit());
+        } catch (IOException e) {
+            throw new CacheLevelException("Cannot read item [id " + id + "]", e);
+        }
+    }
+
+    private static ByteBuffer readPayload(LogSegment logSegment, long recordOffset, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(logSegment, data, recordOffset + HEADER_SIZE);
+        data.flip();
+        return data;
+    }
+
+    private static void readFully(LogSegment logSegment, ByteBuffer buffer, long offset) throws IOException {
+        long start = offset - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (logSegment.channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Segment " + logSegment.path + " is truncated");
+            }
+        }
+    }
+
+    /**
+     * Internal method. Appends the record to the active segment. Must be called under the write lock.
+     *
+     * @param data payload, null for the tombstone.
+     * @return offset of the record in the active segment.
+     */
+    private long append(long id, ByteBuffer data) throws IOException {
+        int length = (data == null) ? TOMBSTONE : data.remaining();
+        int recordSize = HEADER_SIZE + Math.max(length, 0);
+        if ((active == null) || ((active.size > 0) && (active.size + recordSize > segmentSize))) {
+            rollSegment();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(id).putInt(length).flip();
+        ByteBuffer[] record = (data == null) ? new ByteBuffer[]{header} : new ByteBuffer[]{header, data};
+        long offset = active.size;
+        long written = 0;
+        while (written < recordSize) {
+            active.channel.position(offset + written);
+            written += active.channel.write(record);
+        }
+        active.size += recordSize;
+        if (data == null) {
+            active.deadBytes += recordSize; // tombstone is needed only until the older segments are compacted
+        }
+        return offset;
+    }
+
+    private void rollSegment() throws IOException {
+        if (directory == null) {
+            Path base = (temporaryBase != null) ? temporaryBase : Paths.get(System.getProperty("user.dir"), "tmp");
+            Files.createDirectories(base);
+            directory = Files.createTempDirectory(base, "cache");
+        }
+        if (active != null) {
+            scheduleCompaction(active);
+        }
+        int number = nextSegmentNumber++;
+        active = new LogSegment(number, segmentPath(number), true);
+        logSegments.put(number, active);
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("%010d", number) + SEGMENT_SUFFIX);
+    }
+
+    private Path compactedPath(int number) {
+        return directory.resolve(String.format("%010d", number) + COMPACTED_SUFFIX);
+    }
+
+    /**
+     * Internal method. Removes the item from the index, its record becomes dead. Must be called under the write lock.
+     */
+    private void release(int position) throws CacheLevelException {
+        long id = index.keyAt(position);
+        markDead(position);
+        index.removeAt(position);
+        if (persistent) {
+            try {
+                append(id, null);
+            } catch (IOException e) {
+                throw new CacheLevelException("Cannot write tombstone of item [id " + id + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Internal method. Appends tombstones of the items by a few large writes. Must be called under the write lock.
+     */
+    private void writeTombstones(long[] ids, int count) throws IOException {
+        int i = 0;
+        while (i < count) {
+            if ((active == null) || ((active.size > 0) && (active.size + HEADER_SIZE > segmentSize))) {
+                rollSegment();
+            }
+            long batchSize = Math.min((long) (count - i) * HEADER_SIZE,
+                    Math.min(MAX_BATCH_IO, Math.max(HEADER_SIZE, (segmentSize - active.size) / HEADER_SIZE * HEADER_SIZE)));
+            ByteBuffer buffer = ByteBuffer.allocate((int) batchSize);
+            while (buffer.hasRemaining()) {
+                buffer.putLong(ids[i++]).putInt(TOMBSTONE);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                active.channel.write(buffer, active.size + buffer.position());
+            }
+            active.size += batchSize;
+            active.deadBytes += batchSize; // tombstone is needed only until the older segments are compacted
+        }
+    }
+
+    /**
+     * Internal method. Removes the items whose records were not written. Persistent level writes their tombstones,
+     * so the replaced records are not loaded again by the scan. Must be called under the write lock.
+     *
+     * @param failure error of the write, the error of the tombstones is added to it.
+     */
+    private void dropUnwritten(long[] ids, IOException failure) {
+        for (long id : ids) {
+            int position = index.indexOf(id);
+            if (position != LongHashIndex.NIL) {
+                index.removeAt(position);
+            }
+        }
+        if (persistent) {
+            try {
+                writeTombstones(ids, ids.length);
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+                logger.error("Cannot write tombstones of " + ids.length + " items, they may be loaded again if the level is not closed", e);
+            }
+        }
+    }
+
+    private void markDead(int position) {
+        LogSegment logSegment = logSegments.get(index.segments[position]);
+        logSegment.deadBytes += HEADER_SIZE + index.lengths[position];
+        if (logSegment != active) {
+            scheduleCompaction(logSegment);
+        }
+    }
+
+    private void scheduleCompaction(final LogSegment logSegment) {
+        if (!logSegment.compacting && (logSegment.deadBytes * 2 > logSegment.size)) {
+            logSegment.compacting = true;
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact(logSegment);
+                }
+            });
+        }
+    }
+
+    /**
+     * Copies live items of the closed segment and of the older neighbour segments whose items fit the same segment
+     * to the new file. The file replaces the newest of these segments under its number and the older ones are deleted,
+     * so the scan applies the records in the same order. Tombstone is copied too, if the item is not stored again
+     * and its record may be kept in the older segment.
+     * <p>
+     * Records are read and copied without the level lock, the write lock is taken only to choose the segments
+     * and to swap the files and the index entries of the items that still point to the copied records.
+     * Copy of the item that was put or removed meanwhile is dead.
+     */
+    private void compact(LogSegment logSegment) {
+        List<LogSegment> sources = new ArrayList<>();
+        boolean olderSegmentExists;
+        Path compactedPath;
+        FileChannel copy;
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            if (closed || (logSegments.get(logSegment.number) != logSegment)) {
+                return; // level was cleared or closed
+            }
+            sources.add(logSegment);
+            long liveBytes = logSegment.size - logSegment.deadBytes;
+            SortedMap<Integer, LogSegment> older = logSegments.headMap(logSegment.number);
+            while (!older.isEmpty()) {
+                LogSegment previous = older.get(older.lastKey());
+                if (previous.compacting || (liveBytes + previous.size - previous.deadBytes > segmentSize)) {
+                    break;
+                }
+                previous.compacting = true;
+                liveBytes += previous.size - previous.deadBytes;
+                sources.add(0, previous);
+                older = logSegments.headMap(previous.number);
+            }
+            olderSegmentExists = !older.isEmpty();
+            compactedPath = compactedPath(logSegment.number);
+            copy = FileChannel.open(compactedPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            for (LogSegment source : sources) {
+                source.compacting = false;
+            }
+            logger.error("Cannot compact segment " + logSegment.path, e);
+            return;
+        } finally {
+            writeLock.unlock();
+        }
+
+        Lock readLock = lock.readLock();
+        boolean swapped = false;
+        try {
+            int[] numbers = new int[64]; // copied items, their segments and offsets, and their offsets in the copy
+            long[] ids = new long[64];
+            long[] offsets = new long[64];
+            long[] newOffsets = new long[64];
+            int count = 0;
+            long copySize = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            for (LogSegment source : sources) {
+                long offset = 0;
+                while (offset < source.size) {
+                    header.clear();
+                    readFully(source, header, offset);
+                    header.flip();
+                    long id = header.getLong();
+                    int length = header.getInt();
+                    boolean live;
+                    readLock.lock();
+                    try {
+                        int position = index.indexOf(id);
+                        live = (length == TOMBSTONE)
+                                ? (position == LongHashIndex.NIL) && olderSegmentExists
+                                : (position != LongHashIndex.NIL) && (index.segments[position] == source.number) && (index.offsets[position] == offset);
+                    } finally {
+                        readLock.unlock();
+                    }
+                    if (live) {
+                        header.rewind();
+                        ByteBuffer[] record = (length == TOMBSTONE)
+                                ? new ByteBuffer[]{header} : new ByteBuffer[]{header, readPayload(source, offset, length)};
+                        int recordSize = HEADER_SIZE + Math.max(length, 0);
+                        long written = 0;
+                        while (written < recordSize) {
+                            copy.position(copySize + written);
+                            written += copy.write(record);
+                        }
+                        if (length != TOMBSTONE) {
+                            if (count == ids.length) {
+                                numbers = Arrays.copyOf(numbers, count * 2);
+                                ids = Arrays.copyOf(ids, count * 2);
+                                offsets = Arrays.copyOf(offsets, count * 2);
+                                newOffsets = Arrays.copyOf(newOffsets, count * 2);
+                            }
+                            numbers[count] = source.number;
+                            ids[count] = id;
+                            offsets[count] = offset;
+                            newOffsets[count] = copySize;
+                            count++;
+                        }
+                        copySize += recordSize;
+                    }
+                    offset += HEADER_SIZE + Math.max(length, 0);
+                }
+            }
+            copy.close();
+
+            writeLock.lock();
+            try {
+                if (closed || (logSegments.get(logSegment.number) != logSegment)) {
+                    return; // level was cleared or closed
+                }
+                LogSegment compacted = null;
+                if (copySize > 0) {
+                    Files.move(compactedPath, logSegment.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    swapped = true;
+                    compacted = new LogSegment(logSegment.number, logSegment.path, false);
+                    compacted.size = copySize;
+                    compacted.deadBytes = copySize;
+                    for (int i = 0; i < count; i++) {
+                        int position = index.indexOf(ids[i]);
+                        if ((position != LongHashIndex.NIL) && (index.segments[position] == numbers[i]) && (index.offsets[position] == offsets[i])) {
+                            index.segments[position] = compacted.number;
+                            index.offsets[position] = newOffsets[i];
+                            compacted.deadBytes -= HEADER_SIZE + index.lengths[position];
+                        }
+                    }
+                }
+                for (LogSegment source : sources) {
+                    logSegments.remove(source.number);
+                    if (source == logSegment) {
+                        source.channel.close(); // file is replaced by the copy
+                    } else {
+                        source.delete();
+                    }
+                }
+                if (compacted != null) {
+                    logSegments.put(compacted.number, compacted);
+                } else {
+                    Files.deleteIfExists(logSegment.path);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            writeLock.lock();
+            try {
+                for (LogSegment source : sources) {
+                    if (!closed && (logSegments.get(source.number) == source)) { // segment was not deleted by clear
+                        source.compacting = swapped; // segment is compacted again only if its file was not replaced
+                    }
+                }
+                if (!closed && (logSegments.get(logSegment.number) == logSegment)) {
+                    logger.error("Cannot compact segment " + logSegment.path, e);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            try {
+                copy.close();
+                if (!swapped) {
+                    Files.deleteIfExists(compactedPath);
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot delete " + compactedPath, e);
+            }
+        }
+    }
+
+    /**
+     * Internal method. Locks the directory and loads the level from the manifest or from the segments.
+     */
+    private void open() throws IOException, CacheLevelException {
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            directoryLock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) { // locked by this process
+            directoryLock = null;
+        }
+        if (directoryLock == null) {
+            throw new IOException("Directory " + directory + " is used by another process");
+        }
+
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                numbers.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + COMPACTED_SUFFIX)) {
+            for (Path path : stream) {
+                Files.delete(path); // copy of the segment was not swapped before the level was stopped
+            }
+        }
+        Collections.sort(numbers);
+        for (int number : numbers) {
+            LogSegment logSegment = new LogSegment(number, segmentPath(number), false);
+            logSegment.size = logSegment.channel.size();
+            logSegments.put(number, logSegment);
+            nextSegmentNumber = number + 1;
+        }
+
+        Path manifest = directory.resolve(MANIFEST);
+        boolean loaded = Files.exists(manifest) && readManifest(manifest);
+        Files.deleteIfExists(manifest); // manifest is valid only until the next change of the level
+        if (!loaded) {
+            index.clear();
+            for (LogSegment logSegment : logSegments.values()) {
+                logSegment.deadBytes = 0;
+                scan(logSegment);
+            }
+        }
+        if (!logSegments.isEmpty()) {
+            active = logSegments.get(logSegments.lastKey());
+        }
+        while (weighted ? (index.totalLength > maxSize) : (index.size() > maxSize)) { // level was created with the larger size
+            release(positionByStrategy());
+        }
+        for (LogSegment logSegment : logSegments.values()) {
+            if (logSegment != active) {
+                scheduleCompaction(logSegment);
+            }
+        }
+        logger.info("Level {} opened in {}, {} items.", order, directory, index.size());
+    }
+
+    /**
+     * Internal method. Reads headers of the segment records and applies them to the index.
+     * Incomplete record at the end of the segment (the level was not closed) is cut off.
+     */
+    private void scan(LogSegment logSegment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long offset = 0;
+        while (offset + HEADER_SIZE <= logSegment.size) {
+            header.clear();
+            readFully(logSegment, header, offset);
+            header.flip();
+            long id = header.getLong();
+            int length = header.getInt();
+            if ((length < TOMBSTONE) || (offset + HEADER_SIZE + Math.max(length, 0) > logSegment.size)) {
+                break;
+            }
+            int position = index.indexOf(id);
+            if (position != LongHashIndex.NIL) {
+                logSegments.get(index.segments[position]).deadBytes += HEADER_SIZE + index.lengths[position];
+            }
+            if (length == TOMBSTONE) {
+                logSegment.deadBytes += HEADER_SIZE;
+                if (position != LongHashIndex.NIL) {
+                    index.removeAt(position);
+                }
+            } else {
+                if (position == LongHashIndex.NIL) {
+                    position = index.add(id);
+                } else {
+                    index.touch(position);
+                }
+                index.segments[position] = logSegment.number;
+                index.offsets[position] = offset;
+                index.setLength(position, length);
+            }
+            offset += HEADER_SIZE + Math.max(length, 0);
+        }
+        if (offset < logSegment.size) {
+            logger.warn("Segment {} is truncated at {}, incomplete record is removed.", logSegment.path, offset);
+            logSegment.channel.truncate(offset);
+            logSegment.size = offset;
+        }
+    }
+
+    /**
+     * Internal method. Writes segment sizes and index entries from the eldest to the newest one.
+     */
+    private void writeManifest() throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(MANIFEST_VERSION);
+            out.writeInt(logSegments.size());
+            for (LogSegment logSegment : logSegments.values()) {
+                out.writeInt(logSegment.number);
+                out.writeLong(logSegment.size);
+                out.writeLong(logSegment.deadBytes);
+            }
+            out.writeInt(index.size());
+            for (int position = index.eldest(); position != LongHashIndex.NIL; position = index.newerThan(position)) {
+                out.writeLong(index.keyAt(position));
+                out.writeInt(index.segments[position]);
+                out.writeLong(index.offsets[position]);
+                out.writeInt(index.lengths[position]);
+            }
+        }
+        Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Internal method.
+     * @return false if the manifest does not match the segments.
+     */
+    private boolean readManifest(Path manifest) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            if ((in.readInt() != MANIFEST_MAGIC) || (in.readInt() != MANIFEST_VERSION)) {
+                return false;
+            }
+            int segmentCount = in.readInt();
+            if (segmentCount != logSegments.size()) {
+                return false;
+            }
+            for (int i = 0; i < segmentCount; i++) {
+                LogSegment logSegment = logSegments.get(in.readInt());
+                if ((logSegment == null) || (logSegment.size != in.readLong())) {
+                    return false;
+                }
+                logSegment.deadBytes = in.readLong();
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int position = index.add(in.readLong());
+                index.segments[position] = in.readInt();
+                index.offsets[position] = in.readLong();
+                index.setLength(position, in.readInt());
+            }
+            return true;
+        } catch (EOFException e) {
+            logger.warn("Manifest {} is truncated.", manifest);
+            return false;
+        }
+    }
+
+    private void releaseDirectory() {
+        try {
+            if (directoryLock != null) {
+                directoryLock.release();
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot release lock of " + directory, e);
+        } finally {
+            directoryLock = null;
+            lockChannel = null;
+        }
+    }
 }
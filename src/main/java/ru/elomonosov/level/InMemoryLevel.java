@@ -1,33 +1,58 @@
 package ru.elomonosov.level;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import ru.elomonosov.cache.CacheStrategy;
 import ru.elomonosov.cache.Cacheable;
-import ru.elomonosov.util.ClassNameUtil;
+import ru.elomonosov.cache.Weigher;
 
-import java.util.*;
+import java.util.Arrays;
 
 
 public class InMemoryLevel extends AbstractCacheLevel implements CacheLevel {
 
+    /**
+     * Map of stored items that keeps the weight of every item.
+     */
+    private static final class WeightMap extends LongObjectMap<Cacheable> {
+
+        private int[] weights;
+
+        WeightMap(int expectedSize, boolean accessOrder) {
+            super(expectedSize, accessOrder);
+        }
+
+        @Override
+        protected void growValues(int capacity) {
+            super.growValues(capacity);
+            weights = (weights == null) ? new int[capacity] : Arrays.copyOf(weights, capacity);
+        }
+
+        @Override
+        protected void moveValue(int from, int to) {
+            super.moveValue(from, to);
+            weights[to] = weights[from];
+        }
+    }
+
     protected class CacheData {
 
         final CacheStrategy cacheStrategy;
         final int maxSize;
-        Map<Long, Cacheable> cacheMap; // not final because of deserialization needs
+        WeightMap cacheMap; // not final because of deserialization needs
+        long weight;        // total weight of the stored items
 
         CacheData(CacheStrategy cacheStrategy, int maxSize) {
             this.maxSize = maxSize;
             this.cacheStrategy = cacheStrategy;
 
+            int expectedSize = expectedSize(maxSize, weigher != null);
             switch (cacheStrategy) {
-                case LEAST_RECENTLY_USED: {
-                    cacheMap = new LinkedHashMap<>(maxSize, 1F, true);
+                case LEAST_RECENTLY_USED:
+                case TINY_LFU: {
+                    cacheMap = new WeightMap(expectedSize, true);
                     break;
                 }
                 case RANDOM: {
-                    cacheMap = new HashMap<>();
+                    cacheMap = new WeightMap(expectedSize, false);
                     break;
                 }
                 default: {
@@ -38,7 +63,7 @@ public class InMemoryLevel extends AbstractCacheLevel implements CacheLevel {
         }
 
         boolean isFull() {
-            return (cacheMap.size() == maxSize);
+            return (weight >= maxSize);
         }
 
         int size() {
@@ -47,81 +72,74 @@ public class InMemoryLevel extends AbstractCacheLevel implements CacheLevel {
 
         void clear() {
             cacheMap.clear();
+            weight = 0;
         }
 
         void put(Cacheable cacheable) throws CacheLevelException {
-            logger.info("Putting item id[{}].", cacheable.getId());
+            int itemWeight = weigh(cacheable);
+            int position = cacheMap.indexOf(cacheable.getId());
+            if (position != LongHashIndex.NIL) {
+                weight -= cacheMap.weights[position];
+            }
             cacheMap.put(cacheable.getId(), cacheable);
-            logger.info("Item saved, level size is {}", cacheMap.size());
+            position = cacheMap.indexOf(cacheable.getId());
+            cacheMap.weights[position] = itemWeight;
+            weight += itemWeight;
         }
 
         Cacheable get(long id) throws CacheLevelException {
-            Cacheable result = cacheMap.get(id);
-            logger.info("Item was {}found.", (result == null) ? "not " : "");
-            return result;
+            return cacheMap.get(id);
+        }
+
+        Cacheable peek(long id) {
+            return cacheMap.peek(id);
+        }
+
+        boolean contains(long id) {
+            return cacheMap.containsKey(id);
+        }
+
+        long[] ids() {
+            return cacheMap.keys();
         }
 
         Cacheable getByStrategy() {
             Cacheable result;
-            if (isFull()) {
+            if (cacheMap.isEmpty()) {
                 result = null;
-                logger.info("Level is empty, nothing was found.");
             } else {
-                result = cacheMap.get(keyByStrategy());
+                result = cacheMap.valueAt(positionByStrategy());
             }
             return result;
         }
 
-        long keyByStrategy() {
-            long result = 0;
+        /**
+         * @return position of the item that must be displaced first. The level must not be empty.
+         */
+        int positionByStrategy() {
+            int result = 0;
             switch (cacheStrategy) {
-                case LEAST_RECENTLY_USED: {
-                    Iterator<Long> iterator = cacheMap.keySet().iterator();
-                    result = iterator.next();
+                case LEAST_RECENTLY_USED:
+                case TINY_LFU: {
+                    result = cacheMap.eldest();
                     break;
                 }
                 case RANDOM: {
-                    int randomKeyNum = new Random().nextInt(cacheMap.size());
-                    Iterator<Long> iterator = cacheMap.keySet().iterator();
-
-                    for (int i = 0; i < randomKeyNum; i++) {
-                        iterator.next();
-                    }
-                    result = iterator.next();
+                    result = cacheMap.randomPosition();
                     break;
                 }
             }
             return result;
         }
 
-        Cacheable removeByStrategy() {
-            Cacheable result;
-            if (isFull()) {
-                logger.info("Level is empty, nothing removed.");
-                result = null;
-            } else {
-                result = cacheMap.remove(keyByStrategy());
-                if (result != null) {
-                    logger.info("Item id[{}] removed, level size is {}.", result.getId(), cacheMap.size());
-                } else {
-                    logger.info("Item not found, nothing removed.");
-                    result = null;
-                }
-            }
-            return result;
-        }
-
         boolean remove(long id) {
             boolean result;
-            if (isFull()) {
-                logger.info("Level is empty, nothing removed.");
+            if (cacheMap.isEmpty()) {
                 result = false;
             } else {
-                if (cacheMap.remove(id) != null) {
-                    logger.info("Item id[{}] removed, level size is {}.", id, cacheMap.size());
+                if (pull(id) != null) {
                     result = true;
                 } else {
-                    logger.info("Item not found, nothing removed.");
                     result = false;
                 }
             }
@@ -131,14 +149,14 @@ public class InMemoryLevel extends AbstractCacheLevel implements CacheLevel {
         Cacheable pull(long id) {
             Cacheable result;
             if (cacheMap.isEmpty()) {
-                logger.info("The level is empty, nothing was found.");
                 return null;
             } else {
-                result = cacheMap.remove(id);
-                if (result != null) {
-                    logger.info("Item id[{}] has been pulled.", id);
-                } else {
-                    logger.info("Level does not contain item [id {}].", id);
+                int position = cacheMap.indexOf(id);
+                result = null;
+                if (position != LongHashIndex.NIL) {
+                    result = cacheMap.valueAt(position);
+                    weight -= cacheMap.weights[position];
+                    cacheMap.removeAt(position);
                 }
             }
             return result;
@@ -147,24 +165,34 @@ public class InMemoryLevel extends AbstractCacheLevel implements CacheLevel {
         Cacheable pullByStrategy() {
             Cacheable result;
             if (cacheMap.isEmpty()) {
-                logger.info("The level is empty, nothing was found");
                 result = null;
             } else {
-                result = cacheMap.remove(keyByStrategy());
-                logger.info("Item [id {}] was pulled, level size is {} now.", result.getId(), cacheMap.size());
+                int position = positionByStrategy();
+                result = cacheMap.valueAt(position);
+                weight -= cacheMap.weights[position];
+                cacheMap.removeAt(position);
             }
             return result;
         }
     }
 
-    private static final Logger logger = LoggerFactory.getLogger(ClassNameUtil.getCurrentClassName());
+    private final Weigher weigher;
 
     protected final CacheData cacheData;
 
     private final int maxSize;
 
     public InMemoryLevel(CacheStrategy cacheStrategy, int maxSize, int order) {
+        this(cacheStrategy, maxSize, order, null);
+    }
+
+    /**
+     * @param maxSize total weight of items that the level can keep, or their quantity if the weigher is null.
+     * @param weigher weigher of items, null if the level counts items.
+     */
+    public InMemoryLevel(CacheStrategy cacheStrategy, int maxSize, int order, Weigher weigher) {
         super(order);
+        this.weigher = weigher;
         this.cacheData = new CacheData(cacheStrategy, maxSize);
         this.maxSize = maxSize;
     }
@@ -179,6 +207,29 @@ public class InMemoryLevel extends AbstractCacheLevel implements CacheLevel {
         return cacheData.get(id);
     }
 
+    /**
+     * @return item without changing the order of items.
+     */
+    @Override
+    public Cacheable peek(long id) throws CacheLevelException {
+        return cacheData.peek(id);
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
+    @Override
+    public boolean mightContain(long id) throws CacheLevelException {
+        return cacheData.contains(id);
+    }
+
+    @Override
+    public long[] ids() throws CacheLevelException {
+        return cacheData.ids();
+    }
+
     @Override
     public Cacheable getByStrategy() throws CacheLevelException {
         return cacheData.getByStrategy();
@@ -206,7 +257,29 @@ public class InMemoryLevel extends AbstractCacheLevel implements CacheLevel {
 
     @Override
     public boolean isFull() throws CacheLevelException {
-        return cacheData.size() == maxSize;
+        return cacheData.isFull();
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weigher != null;
+    }
+
+    @Override
+    public int weigh(Cacheable cacheable) throws CacheLevelException {
+        if (weigher == null) {
+            return 1;
+        }
+        try {
+            return weigher.weigh(cacheable);
+        } catch (RuntimeException e) {
+            throw new CacheLevelException("Cannot weigh item [id " + cacheable.getId() + "]", e);
+        }
+    }
+
+    @Override
+    public long weight() throws CacheLevelException {
+        return cacheData.weight;
     }
 
     @Override
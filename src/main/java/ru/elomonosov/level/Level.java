@@ -1,5 +1,5 @@
 package ru.elomonosov.level;
 
 public enum Level {
-    MEMORY, FILE
+    MEMORY, OFF_HEAP, FILE, MMAP, REMOTE
 }
@@ -0,0 +1,283 @@
+package ru.elomonosov.level;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hash index with primitive long keys. Keys are kept in the dense arrays, so the entry position is always
+ * between 0 and size - 1. Removed entry is replaced by the last one. Positions are found by the open addressing
+ * table with linear probing. The order of entries (from eldest to newest) is kept in two arrays of links.
+ * <p>
+ * Values are kept by subclasses in their own arrays, which are moved together with the keys.
+ * Not thread safe.
+ */
+abstract class LongHashIndex {
+
+    static final int NIL = -1;
+
+    private static final int MIN_CAPACITY = 8;
+    private static final int MAX_CAPACITY = 1 << 29;
+
+    private final boolean accessOrder;
+
+    private int[] table;  // entry position + 1, 0 means empty slot
+    private int tableMask;
+
+    private long[] keys;
+    private int[] older;  // link to the previous entry in the order
+    private int[] newer;  // link to the next entry in the order
+
+    private int eldest = NIL;
+    private int newest = NIL;
+    private int size;
+
+    /**
+     * @param expectedSize quantity of entries that can be stored without resize.
+     * @param accessOrder  true if got entry becomes the newest one, false if order is the insertion order.
+     */
+    LongHashIndex(int expectedSize, boolean accessOrder) {
+        this.accessOrder = accessOrder;
+        allocate(Math.max(MIN_CAPACITY, Math.min(expectedSize, MAX_CAPACITY)));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        older = new int[capacity];
+        newer = new int[capacity];
+        int tableSize = Integer.highestOneBit(capacity - 1) << 2; // load factor is not more than 0.5
+        table = new int[tableSize];
+        tableMask = tableSize - 1;
+        growValues(capacity);
+    }
+
+    /**
+     * Resizes subclass value arrays, existing values must be kept.
+     * @param capacity new capacity.
+     */
+    protected abstract void growValues(int capacity);
+
+    /**
+     * Moves subclass value from one position to another.
+     */
+    protected abstract void moveValue(int from, int to);
+
+    /**
+     * Releases subclass value on the position.
+     */
+    protected abstract void clearValue(int position);
+
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return position of the key, or NIL if there is no such key.
+     */
+    int indexOf(long key) {
+        int slot = hash(key) & tableMask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (keys[entry - 1] == key) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return NIL;
+    }
+
+    boolean containsKey(long key) {
+        return indexOf(key) != NIL;
+    }
+
+    long keyAt(int position) {
+        return keys[position];
+    }
+
+    /**
+     * @return copy of the keys, in no particular order.
+     */
+    long[] keys() {
+        return Arrays.copyOf(keys, size);
+    }
+
+    /**
+     * @return position of the eldest entry, or NIL if the index is empty.
+     */
+    int eldest() {
+        return eldest;
+    }
+
+    /**
+     * @return position of the random entry, or NIL if the index is empty. Positions are dense,
+     * so the entry is chosen in constant time without walking the entries.
+     */
+    int randomPosition() {
+        return (size == 0) ? NIL : ThreadLocalRandom.current().nextInt(size);
+    }
+
+    /**
+     * @return position of the entry that follows the specified one in the order, or NIL for the newest one.
+     */
+    int newerThan(int position) {
+        return newer[position];
+    }
+
+    /**
+     * Marks entry as accessed. In the access order it becomes the newest one.
+     */
+    void touch(int position) {
+        if (accessOrder && (position != newest)) {
+            unlink(position);
+            linkNewest(position);
+        }
+    }
+
+    /**
+     * Adds the new key as the newest entry. The key must be absent.
+     * @return position of the new entry.
+     */
+    int add(long key) {
+        if (size == keys.length) {
+            grow();
+        }
+        int position = size++;
+        keys[position] = key;
+        linkNewest(position);
+        int slot = hash(key) & tableMask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & tableMask;
+        }
+        table[slot] = position + 1;
+        return position;
+    }
+
+    /**
+     * Removes entry, the last entry takes its position.
+     */
+    void removeAt(int position) {
+        unlink(position);
+        deleteSlot(position);
+        int last = size - 1;
+        if (position != last) {
+            keys[position] = keys[last];
+            older[position] = older[last];
+            newer[position] = newer[last];
+            if (older[position] == NIL) {
+                eldest = position;
+            } else {
+                newer[older[position]] = position;
+            }
+            if (newer[position] == NIL) {
+                newest = position;
+            } else {
+                older[newer[position]] = position;
+            }
+            table[slotOf(last)] = position + 1;
+            moveValue(last, position);
+        }
+        clearValue(last);
+        size = last;
+    }
+
+    void clear() {
+        Arrays.fill(table, 0);
+        for (int i = 0; i < size; i++) {
+            clearValue(i);
+        }
+        eldest = NIL;
+        newest = NIL;
+        size = 0;
+    }
+
+    private int slotOf(int position) {
+        int slot = hash(keys[position]) & tableMask;
+        while (table[slot] != position + 1) {
+            slot = (slot + 1) & tableMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Frees the table slot of the entry and shifts back the following entries of the probe chain.
+     */
+    private void deleteSlot(int position) {
+        int hole = slotOf(position);
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & tableMask;
+            int entry = table[slot];
+            if (entry == 0) {
+                break;
+            }
+            int home = hash(keys[entry - 1]) & tableMask;
+            // move entry to the hole if its home slot is not between the hole and its current slot
+            if (((slot - home) & tableMask) >= ((slot - hole) & tableMask)) {
+                table[hole] = entry;
+                hole = slot;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void linkNewest(int position) {
+        older[position] = newest;
+        newer[position] = NIL;
+        if (newest == NIL) {
+            eldest = position;
+        } else {
+            newer[newest] = position;
+        }
+        newest = position;
+    }
+
+    private void unlink(int position) {
+        int before = older[position];
+        int after = newer[position];
+        if (before == NIL) {
+            eldest = after;
+        } else {
+            newer[before] = after;
+        }
+        if (after == NIL) {
+            newest = before;
+        } else {
+            older[after] = before;
+        }
+    }
+
+    private void grow() {
+        if (keys.length >= MAX_CAPACITY) {
+            throw new IllegalStateException("Index cannot keep more than " + MAX_CAPACITY + " entries");
+        }
+        int capacity = keys.length << 1;
+        keys = Arrays.copyOf(keys, capacity);
+        older = Arrays.copyOf(older, capacity);
+        newer = Arrays.copyOf(newer, capacity);
+        growValues(capacity);
+        int tableSize = Integer.highestOneBit(capacity - 1) << 2;
+        if (tableSize > table.length) {
+            table = new int[tableSize];
+            tableMask = tableSize - 1;
+            for (int position = 0; position < size; position++) {
+                int slot = hash(keys[position]) & tableMask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & tableMask;
+                }
+                table[slot] = position + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ru.elomonosov.level;
+
+import java.util.Arrays;
+
+/**
+ * Map with primitive long keys and ordered entries. Keys are not boxed and entries are not allocated,
+ * every entry takes the key, the value reference and two int links.
+ * Not thread safe.
+ *
+ * @param <V> type of values.
+ */
+class LongObjectMap<V> extends LongHashIndex {
+
+    private Object[] values;
+
+    /**
+     * @param expectedSize quantity of entries that can be stored without resize.
+     * @param accessOrder  true if got entry becomes the newest one, false if order is the insertion order.
+     */
+    LongObjectMap(int expectedSize, boolean accessOrder) {
+        super(expectedSize, accessOrder);
+    }
+
+    @Override
+    protected void growValues(int capacity) {
+        values = (values == null) ? new Object[capacity] : Arrays.copyOf(values, capacity);
+    }
+
+    @Override
+    protected void moveValue(int from, int to) {
+        values[to] = values[from];
+    }
+
+    @Override
+    protected void clearValue(int position) {
+        values[position] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(int position) {
+        return (V) values[position];
+    }
+
+    /**
+     * @return value for the key, or null if there is no such key. In the access order the entry becomes the newest one.
+     */
+    V get(long key) {
+        int position = indexOf(key);
+        V result = null;
+        if (position != NIL) {
+            touch(position);
+            result = valueAt(position);
+        }
+        return result;
+    }
+
+    /**
+     * @return value for the key without changing the order, or null if there is no such key.
+     */
+    V peek(long key) {
+        int position = indexOf(key);
+        return (position == NIL) ? null : valueAt(position);
+    }
+
+    /**
+     * Puts the value. Existing entry gets the new value and becomes the newest one in the access order,
+     * otherwise the new entry becomes the newest one.
+     *
+     * @return previous value for the key, or null if there was no such key.
+     */
+    V put(long key, V value) {
+        int position = indexOf(key);
+        V result = null;
+        if (position != NIL) {
+            result = valueAt(position);
+            touch(position);
+        } else {
+            position = add(key);
+        }
+        values[position] = value;
+        return result;
+    }
+
+    /**
+     * @return removed value, or null if there was no such key.
+     */
+    V remove(long key) {
+        int position = indexOf(key);
+        V result = null;
+        if (position != NIL) {
+            result = valueAt(position);
+            removeAt(position);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,418 @@
+package ru.elomonosov.level;
+
+import ru.elomonosov.cache.CacheStrategy;
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.serializer.BinarySerializer;
+import ru.elomonosov.serializer.CacheSerializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Level that keeps items in the memory mapped file. The file grows by chunks, every chunk is a separate mapped region.
+ * Records (id, payload length and serialized item) are appended to the active chunk, record never crosses
+ * the chunk border. Item larger than the chunk gets its own region. Hit is a read from the page cache.
+ * <p>
+ * When the active chunk is full, the chunk without live items is reused or the new one is mapped.
+ * If more than a half of some chunk is dead, its live items are moved to the new active chunk, so the chunk is freed.
+ */
+public class MappedFileLevel extends AbstractCacheLevel implements CacheLevel {
+
+    static final int CHUNK_SIZE = 64 << 20;
+
+    private static final int HEADER_SIZE = 12; // id (long) + payload length (int)
+
+    /**
+     * Index of stored items, keeps chunk number, record offset in the chunk and payload length for every id.
+     */
+    private static final class RegionIndex extends LongHashIndex {
+
+        private int[] chunks;
+        private int[] offsets;
+        private int[] lengths;
+        private long totalLength; // sum of payload lengths
+
+        RegionIndex(int expectedSize, boolean accessOrder) {
+            super(expectedSize, accessOrder);
+        }
+
+        void setLength(int position, int length) {
+            totalLength += length - lengths[position];
+            lengths[position] = length;
+        }
+
+        @Override
+        void removeAt(int position) {
+            totalLength -= lengths[position];
+            super.removeAt(position);
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            totalLength = 0;
+        }
+
+        @Override
+        protected void growValues(int capacity) {
+            chunks = (chunks == null) ? new int[capacity] : Arrays.copyOf(chunks, capacity);
+            offsets = (offsets == null) ? new int[capacity] : Arrays.copyOf(offsets, capacity);
+            lengths = (lengths == null) ? new int[capacity] : Arrays.copyOf(lengths, capacity);
+        }
+
+        @Override
+        protected void moveValue(int from, int to) {
+            chunks[to] = chunks[from];
+            offsets[to] = offsets[from];
+            lengths[to] = lengths[from];
+        }
+
+        @Override
+        protected void clearValue(int position) {
+            lengths[position] = 0;
+        }
+    }
+
+    /**
+     * Mapped region of the file.
+     */
+    private static final class Chunk {
+
+        final MappedByteBuffer buffer;
+        int size;      // bytes used by records
+        int deadBytes; // bytes of removed records
+        int liveCount;
+
+        Chunk(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    private final CacheStrategy cacheStrategy;
+
+    private final CacheSerializer serializer;
+
+    private final int maxSize;
+
+    private final int chunkSize;
+
+    private final boolean weighted;
+
+
+    private final RegionIndex index;
+
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    private Path path; // created on the first put
+
+    private FileChannel channel;
+
+    private long fileSize;
+
+    private int active = -1;
+
+    public MappedFileLevel(CacheStrategy cacheStrategy, int maxSize, int order) {
+        this(cacheStrategy, maxSize, order, new BinarySerializer());
+    }
+
+    public MappedFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer) {
+        this(cacheStrategy, maxSize, order, serializer, false);
+    }
+
+    /**
+     * @param maxSize  total serialized size of items that the level can keep, or their quantity if the level is not weighted.
+     * @param weighted true if items are weighed by their serialized size.
+     */
+    public MappedFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, boolean weighted) {
+        this(cacheStrategy, maxSize, order, serializer, weighted, CHUNK_SIZE);
+    }
+
+    MappedFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, int chunkSize) {
+        this(cacheStrategy, maxSize, order, serializer, false, chunkSize);
+    }
+
+    MappedFileLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, boolean weighted, int chunkSize) {
+        super(order);
+        this.cacheStrategy = cacheStrategy;
+        this.serializer = serializer;
+        this.maxSize = maxSize;
+        this.weighted = weighted;
+        this.chunkSize = chunkSize;
+        this.index = new RegionIndex(expectedSize(maxSize, weighted), cacheStrategy != CacheStrategy.RANDOM);
+    }
+
+    @Override
+    public void put(Cacheable cacheable) throws CacheLevelException {
+        byte[] data = serialize(cacheable, serializer);
+
+        int position = index.indexOf(cacheable.getId());
+        if (position != LongHashIndex.NIL) {
+            markDead(position);
+            index.touch(position);
+        } else {
+            position = index.add(cacheable.getId());
+        }
+        try {
+            append(position, cacheable.getId(), data, 0, data.length);
+        } catch (IOException e) {
+            index.removeAt(position);
+            throw new CacheLevelException("Cannot write item [id " + cacheable.getId() + "]", e);
+        }
+    }
+
+
+    @Override
+    public Cacheable get(long id) throws CacheLevelException {
+        int position = index.indexOf(id);
+        Cacheable result = null;
+        if (position != LongHashIndex.NIL) {
+            index.touch(position);
+            result = read(position);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean mightContain(long id) throws CacheLevelException {
+        return index.containsKey(id);
+    }
+
+    @Override
+    public long[] ids() throws CacheLevelException {
+        return index.keys();
+    }
+
+    @Override
+    public Cacheable getByStrategy() throws CacheLevelException {
+        return index.isEmpty() ? null : read(positionByStrategy());
+    }
+
+    @Override
+    public Cacheable pull(long id) throws CacheLevelException {
+        int position = index.indexOf(id);
+        Cacheable result = null;
+        if (position != LongHashIndex.NIL) {
+            result = read(position);
+            markDead(position);
+            index.removeAt(position);
+        }
+        return result;
+    }
+
+    @Override
+    public Cacheable pullByStrategy() throws CacheLevelException {
+        Cacheable result = null;
+        if (!index.isEmpty()) {
+            int position = positionByStrategy();
+            result = read(position);
+            markDead(position);
+            index.removeAt(position);
+        }
+        return result;
+    }
+
+    @Override
+    public int size() throws CacheLevelException {
+        return index.size();
+    }
+
+    @Override
+    public int maxSize() throws CacheLevelException {
+        return maxSize;
+    }
+
+    @Override
+    public boolean isFull() throws CacheLevelException {
+        return weight() >= maxSize;
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weighted;
+    }
+
+    /**
+     * @return serialized size of the item if the level is weighted. The item is serialized once for the weigh and the put.
+     */
+    @Override
+    public int weigh(Cacheable cacheable) throws CacheLevelException {
+        if (!weighted) {
+            return 1;
+        }
+        byte[] data = serializeWeighed(cacheable, serializer);
+        return data.length;
+    }
+
+    @Override
+    public long weight() throws CacheLevelException {
+        return weighted ? index.totalLength : index.size();
+    }
+
+    /**
+     * Clears the level and deletes the file. Mapped regions are released by the garbage collector.
+     */
+    @Override
+    public void clear() throws CacheLevelException {
+        index.clear();
+        chunks.clear();
+        active = -1;
+        fileSize = 0;
+        if (channel != null) {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                throw new CacheLevelException("Cannot clear level " + order, e);
+            } finally {
+                channel = null;
+                path = null;
+            }
+        }
+    }
+
+    /**
+     * Deletes the file, mapped level is not persistent.
+     */
+    @Override
+    public void close() throws CacheLevelException {
+        clear();
+    }
+
+    /**
+     * @return size of the file that keeps the level.
+     */
+    long fileSize() {
+        return fileSize;
+    }
+
+    private int positionByStrategy() {
+        int result = 0;
+        switch (cacheStrategy) {
+            case LEAST_RECENTLY_USED:
+            case TINY_LFU: {
+                result = index.eldest();
+                break;
+            }
+            case RANDOM: {
+                result = index.randomPosition();
+                break;
+            }
+        }
+        return result;
+    }
+
+    private Cacheable read(int position) throws CacheLevelException {
+        byte[] data = new byte[index.lengths[position]];
+        ByteBuffer buffer = chunks.get(index.chunks[position]).buffer.duplicate();
+        buffer.position(index.offsets[position] + HEADER_SIZE);
+        buffer.get(data);
+        try {
+            return serializer.deserialize(data, 0, data.length);
+        } catch (IOException e) {
+            throw new CacheLevelException("Cannot read item [id " + index.keyAt(position) + "]", e);
+        }
+    }
+
+    private void markDead(int position) {
+        Chunk chunk = chunks.get(index.chunks[position]);
+        chunk.deadBytes += HEADER_SIZE + index.lengths[position];
+        chunk.liveCount--;
+    }
+
+    /**
+     * Internal method. Writes the record to the active chunk and points the index entry to it.
+     */
+    private void append(int position, long id, byte[] data, int offset, int length) throws IOException {
+        int recordSize = HEADER_SIZE + length;
+        if ((active == -1) || (chunks.get(active).size + recordSize > chunks.get(active).capacity())) {
+            nextChunk(recordSize);
+        }
+        Chunk chunk = chunks.get(active);
+        ByteBuffer buffer = chunk.buffer.duplicate();
+        buffer.position(chunk.size);
+        buffer.putLong(id).putInt(length).put(data, offset, length);
+        index.chunks[position] = active;
+        index.offsets[position] = chunk.size;
+        index.setLength(position, length);
+        chunk.size += recordSize;
+        chunk.liveCount++;
+    }
+
+    /**
+     * Internal method. Makes active the free chunk or the new one. Compacts the chunk with the most dead bytes,
+     * if more than a half of it is dead.
+     */
+    private void nextChunk(int recordSize) throws IOException {
+        int previous = active;
+        active = -1;
+        int compactCandidate = -1;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            if (i == previous) {
+                continue;
+            }
+            if ((chunk.liveCount == 0) && (active == -1) && (recordSize <= chunk.capacity())) {
+                active = i;
+            } else if ((chunk.capacity() == chunkSize) && (chunk.deadBytes * 2 > chunk.size)
+                    && ((compactCandidate == -1) || (chunk.deadBytes > chunks.get(compactCandidate).deadBytes))) {
+                compactCandidate = i;
+            }
+        }
+        if (active == -1) {
+            active = map(Math.max(chunkSize, recordSize));
+        } else {
+            Chunk chunk = chunks.get(active);
+            chunk.size = 0;
+            chunk.deadBytes = 0;
+        }
+        if ((compactCandidate != -1) && (recordSize <= chunkSize / 2)) {
+            compact(compactCandidate);
+        }
+    }
+
+    /**
+     * Internal method. Moves live records of the chunk to the active chunk.
+     */
+    private void compact(int chunkNum) throws IOException {
+        Chunk chunk = chunks.get(chunkNum);
+        byte[] data = new byte[0];
+        for (int position = 0; (position < index.size()) && (chunk.liveCount > 0); position++) {
+            if (index.chunks[position] == chunkNum) {
+                int length = index.lengths[position];
+                if (data.length < length) {
+                    data = new byte[length];
+                }
+                ByteBuffer buffer = chunk.buffer.duplicate();
+                buffer.position(index.offsets[position] + HEADER_SIZE);
+                buffer.get(data, 0, length);
+                markDead(position);
+                append(position, index.keyAt(position), data, 0, length);
+            }
+        }
+    }
+
+    private int map(int size) throws IOException {
+        if (channel == null) {
+            Path base = Paths.get(System.getProperty("user.dir"), "tmp");
+            Files.createDirectories(base);
+            path = Files.createTempFile(base, "cache", ".mmap");
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        chunks.add(new Chunk(channel.map(FileChannel.MapMode.READ_WRITE, fileSize, size)));
+        fileSize += size;
+        return chunks.size() - 1;
+    }
+}
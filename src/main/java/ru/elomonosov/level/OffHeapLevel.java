@@ -0,0 +1,463 @@
+package ru.elomonosov.level;
+
+import ru.elomonosov.cache.CacheStrategy;
+import ru.elomonosov.cache.Cacheable;
+
+import ru.elomonosov.serializer.BinarySerializer;
+import ru.elomonosov.serializer.CacheSerializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Level that keeps serialized items out of the java heap, in the direct byte buffers (slabs).
+ * Every slab is cut into chunks of the same size class, item takes the smallest chunk that can hold it.
+ * Freed chunks are reused by the items of the same size class. Item larger than the slab gets its own buffer.
+ * The first slab of the size class holds a few chunks, not more than the level can keep, every next slab
+ * of the class is twice as large up to {@link #SLAB_SIZE}. Slab is released once all its chunks are free,
+ * so the size classes of a few items do not pin the direct memory.
+ * <p>
+ * Heap keeps only the primitive index: id, chunk address and length of every item.
+ */
+public class OffHeapLevel extends AbstractCacheLevel implements CacheLevel {
+
+    static final int SLAB_SIZE = 1 << 22;
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private static final int[] CHUNK_SIZES = chunkSizes();
+
+    private static final int LARGE = -1; // size class of the slab with one large item
+
+    private static final int FIRST_SLAB_CHUNKS = 16;
+
+    private static final int NO_CHUNK = -1;
+
+    /**
+     * Direct buffer cut into chunks of one size class. Free chunks keep the offset of the next free chunk,
+     * the chunks after the bump offset were never used.
+     */
+    private static final class Slab {
+
+        final int number;
+        final ByteBuffer buffer;
+        final int sizeClass;
+        int used;                   // chunks that keep items
+        int freeHead = NO_CHUNK;    // offset of the first free chunk
+        int bump;                   // offset of the first chunk that was never used
+        int availablePosition = -1; // position in the list of slabs with free chunks, -1 if the slab is full
+
+        Slab(int number, ByteBuffer buffer, int sizeClass) {
+            this.number = number;
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        boolean isFull() {
+            return (freeHead == NO_CHUNK) && (bump + CHUNK_SIZES[sizeClass] > buffer.capacity());
+        }
+    }
+
+    /**
+     * Index of stored items, keeps chunk address (slab number and offset) and payload length for every id.
+     */
+    private static final class SlotIndex extends LongHashIndex {
+
+        private long[] addresses;
+        private int[] lengths;
+        private long totalLength; // sum of payload lengths
+
+        SlotIndex(int expectedSize, boolean accessOrder) {
+            super(expectedSize, accessOrder);
+        }
+
+        void setLength(int position, int length) {
+            totalLength += length - lengths[position];
+            lengths[position] = length;
+        }
+
+        @Override
+        void removeAt(int position) {
+            totalLength -= lengths[position];
+            super.removeAt(position);
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            totalLength = 0;
+        }
+
+        @Override
+        protected void growValues(int capacity) {
+            addresses = (addresses == null) ? new long[capacity] : Arrays.copyOf(addresses, capacity);
+            lengths = (lengths == null) ? new int[capacity] : Arrays.copyOf(lengths, capacity);
+        }
+
+        @Override
+        protected void moveValue(int from, int to) {
+            addresses[to] = addresses[from];
+            lengths[to] = lengths[from];
+        }
+
+        @Override
+        protected void clearValue(int position) {
+            lengths[position] = 0;
+        }
+    }
+
+    private final CacheStrategy cacheStrategy;
+
+    private final CacheSerializer serializer;
+
+    private final int maxSize;
+
+    private final boolean weighted;
+
+
+    private final SlotIndex index;
+
+    private final List<Slab> slabs = new ArrayList<>();
+    private int[] freeSlabs = new int[16]; // numbers of released slabs
+    private int freeSlabCount;
+
+    private final List<List<Slab>> availableSlabs = new ArrayList<>(CHUNK_SIZES.length); // slabs with free chunks by size class
+    private final int[] slabCounts = new int[CHUNK_SIZES.length];                          // slabs by size class
+    private long allocated; // bytes of the slabs
+
+    public OffHeapLevel(CacheStrategy cacheStrategy, int maxSize, int order) {
+        this(cacheStrategy, maxSize, order, new BinarySerializer());
+    }
+
+    public OffHeapLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer) {
+        this(cacheStrategy, maxSize, order, serializer, false);
+    }
+
+    /**
+     * @param maxSize  total serialized size of items that the level can keep, or their quantity if the level is not weighted.
+     * @param weighted true if items are weighed by their serialized size.
+     */
+    public OffHeapLevel(CacheStrategy cacheStrategy, int maxSize, int order, CacheSerializer serializer, boolean weighted) {
+        super(order);
+        this.cacheStrategy = cacheStrategy;
+        this.serializer = serializer;
+        this.maxSize = maxSize;
+        this.weighted = weighted;
+        this.index = new SlotIndex(expectedSize(maxSize, weighted), cacheStrategy != CacheStrategy.RANDOM);
+        for (int i = 0; i < CHUNK_SIZES.length; i++) {
+            availableSlabs.add(new ArrayList<Slab>());
+        }
+    }
+
+    private static int[] chunkSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        int size = MIN_CHUNK_SIZE;
+        while (size < SLAB_SIZE) {
+            sizes.add(size);
+            size = (int) Math.min(SLAB_SIZE, ((size + (size >> 2)) + 7) & ~7L); // +25% per class
+        }
+        sizes.add(SLAB_SIZE);
+        int[] result = new int[sizes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sizes.get(i);
+        }
+        return result;
+    }
+
+    private static int sizeClass(int length) {
+        int result = Arrays.binarySearch(CHUNK_SIZES, length);
+        if (result < 0) {
+            result = -result - 1;
+        }
+        return (result < CHUNK_SIZES.length) ? result : LARGE;
+    }
+
+    @Override
+    public void put(Cacheable cacheable) throws CacheLevelException {
+        byte[] data = serialize(cacheable, serializer);
+
+        long address = allocate(data.length); // before the old chunk is freed, so its slab is not released and allocated again
+        ByteBuffer slab = slabs.get(slabOf(address)).buffer.duplicate();
+        slab.position(offsetOf(address));
+        slab.put(data);
+        int position = index.indexOf(cacheable.getId());
+        if (position != LongHashIndex.NIL) {
+            free(index.addresses[position]);
+            index.touch(position);
+        } else {
+            position = index.add(cacheable.getId());
+        }
+        index.addresses[position] = address;
+        index.setLength(position, data.length);
+    }
+
+
+    @Override
+    public Cacheable get(long id) throws CacheLevelException {
+        int position = index.indexOf(id);
+        Cacheable result = null;
+        if (position != LongHashIndex.NIL) {
+            index.touch(position);
+            result = read(position);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
+    @Override
+    public boolean mightContain(long id) throws CacheLevelException {
+        return index.containsKey(id);
+    }
+
+    @Override
+    public long[] ids() throws CacheLevelException {
+        return index.keys();
+    }
+
+    @Override
+    public Cacheable getByStrategy() throws CacheLevelException {
+        return index.isEmpty() ? null : read(positionByStrategy());
+    }
+
+    @Override
+    public Cacheable pull(long id) throws CacheLevelException {
+        int position = index.indexOf(id);
+        Cacheable result = null;
+        if (position != LongHashIndex.NIL) {
+            result = read(position);
+            release(position);
+        }
+        return result;
+    }
+
+    @Override
+    public Cacheable pullByStrategy() throws CacheLevelException {
+        Cacheable result = null;
+        if (!index.isEmpty()) {
+            int position = positionByStrategy();
+            result = read(position);
+            release(position);
+        }
+        return result;
+    }
+
+    @Override
+    public int size() throws CacheLevelException {
+        return index.size();
+    }
+
+    @Override
+    public int maxSize() throws CacheLevelException {
+        return maxSize;
+    }
+
+    @Override
+    public boolean isFull() throws CacheLevelException {
+        return weight() >= maxSize;
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weighted;
+    }
+
+    /**
+     * @return serialized size of the item if the level is weighted. The item is serialized once for the weigh and the put.
+     */
+    @Override
+    public int weigh(Cacheable cacheable) throws CacheLevelException {
+        if (!weighted) {
+            return 1;
+        }
+        byte[] data = serializeWeighed(cacheable, serializer);
+        return data.length;
+    }
+
+    @Override
+    public long weight() throws CacheLevelException {
+        return weighted ? index.totalLength : index.size();
+    }
+
+    @Override
+    public void clear() throws CacheLevelException {
+        index.clear();
+        slabs.clear();
+        freeSlabCount = 0;
+        for (List<Slab> available : availableSlabs) {
+            available.clear();
+        }
+        Arrays.fill(slabCounts, 0);
+        allocated = 0;
+    }
+
+    /**
+     * @return bytes of the direct buffers held by the level.
+     */
+    long allocated() {
+        return allocated;
+    }
+
+    /**
+     * Releases the slabs, off-heap level is not persistent.
+     */
+    @Override
+    public void close() throws CacheLevelException {
+        clear();
+    }
+
+    private int positionByStrategy() {
+        int result = 0;
+        switch (cacheStrategy) {
+            case LEAST_RECENTLY_USED:
+            case TINY_LFU: {
+                result = index.eldest();
+                break;
+            }
+            case RANDOM: {
+                result = index.randomPosition();
+                break;
+            }
+        }
+        return result;
+    }
+
+    private Cacheable read(int position) throws CacheLevelException {
+        long address = index.addresses[position];
+        byte[] data = new byte[index.lengths[position]];
+        ByteBuffer slab = slabs.get(slabOf(address)).buffer.duplicate();
+        slab.position(offsetOf(address));
+        slab.get(data);
+        try {
+            return serializer.deserialize(data, 0, data.length);
+        } catch (IOException e) {
+            throw new CacheLevelException("Cannot deserialize item [id " + index.keyAt(position) + "]", e);
+        }
+    }
+
+    private void release(int position) {
+        free(index.addresses[position]);
+        index.removeAt(position);
+    }
+
+    private static int slabOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    /**
+     * @return address of the chunk that can hold the specified quantity of bytes.
+     */
+    private long allocate(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass == LARGE) {
+            Slab slab = addSlab(ByteBuffer.allocateDirect(length), LARGE);
+            slab.used = 1;
+            return address(slab.number, 0);
+        }
+        List<Slab> available = availableSlabs.get(sizeClass);
+        if (available.isEmpty()) {
+            makeAvailable(addSlab(ByteBuffer.allocateDirect(nextSlabSize(sizeClass)), sizeClass));
+        }
+        Slab slab = available.get(available.size() - 1);
+        int offset;
+        if (slab.freeHead != NO_CHUNK) {
+            offset = slab.freeHead;
+            slab.freeHead = slab.buffer.getInt(offset);
+        } else {
+            offset = slab.bump;
+            slab.bump += CHUNK_SIZES[sizeClass];
+        }
+        slab.used++;
+        if (slab.isFull()) {
+            makeUnavailable(slab);
+        }
+        return address(slab.number, offset);
+    }
+
+    private void free(long address) {
+        Slab slab = slabs.get(slabOf(address));
+        if (--slab.used == 0) {
+            removeSlab(slab);
+            return;
+        }
+        int offset = offsetOf(address);
+        slab.buffer.putInt(offset, slab.freeHead);
+        slab.freeHead = offset;
+        if (slab.availablePosition < 0) {
+            makeAvailable(slab);
+        }
+    }
+
+    /**
+     * Internal method.
+     * @return size of the next slab of the size class: a few chunks for the first slab, but not more than
+     * the level can keep, twice as many chunks for every next one, not more than {@link #SLAB_SIZE}.
+     */
+    private int nextSlabSize(int sizeClass) {
+        int chunkSize = CHUNK_SIZES[sizeClass];
+        long levelChunks = weighted ? ((long) maxSize + chunkSize - 1) / chunkSize : maxSize;
+        long chunks = Math.min(FIRST_SLAB_CHUNKS, levelChunks) << Math.min(slabCounts[sizeClass], 30);
+        chunks = Math.max(1, Math.min(chunks, SLAB_SIZE / chunkSize));
+        return (int) (chunks * chunkSize);
+    }
+
+    private Slab addSlab(ByteBuffer buffer, int sizeClass) {
+        int number = (freeSlabCount > 0) ? freeSlabs[--freeSlabCount] : slabs.size();
+        Slab slab = new Slab(number, buffer, sizeClass);
+        if (number == slabs.size()) {
+            slabs.add(slab);
+        } else {
+            slabs.set(number, slab);
+        }
+        if (sizeClass != LARGE) {
+            slabCounts[sizeClass]++;
+        }
+        allocated += buffer.capacity();
+        return slab;
+    }
+
+    private void removeSlab(Slab slab) {
+        if (slab.sizeClass != LARGE) {
+            if (slab.availablePosition >= 0) {
+                makeUnavailable(slab);
+            }
+            slabCounts[slab.sizeClass]--;
+        }
+        slabs.set(slab.number, null); // direct memory is released by the garbage collector
+        if (freeSlabCount == freeSlabs.length) {
+            freeSlabs = Arrays.copyOf(freeSlabs, freeSlabCount << 1);
+        }
+        freeSlabs[freeSlabCount++] = slab.number;
+        allocated -= slab.buffer.capacity();
+    }
+
+    private void makeAvailable(Slab slab) {
+        List<Slab> available = availableSlabs.get(slab.sizeClass);
+        slab.availablePosition = available.size();
+        available.add(slab);
+    }
+
+    private void makeUnavailable(Slab slab) {
+        List<Slab> available = availableSlabs.get(slab.sizeClass);
+        Slab last = available.remove(available.size() - 1);
+        if (last != slab) {
+            available.set(slab.availablePosition, last);
+            last.availablePosition = slab.availablePosition;
+        }
+        slab.availablePosition = -1;
+    }
+}
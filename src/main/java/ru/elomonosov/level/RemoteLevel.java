@@ -0,0 +1,518 @@
+package ru.elomonosov.level;
+
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.serializer.CacheSerializer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Level that keeps items on the {@link CacheServer}, so several processes share one cache level. Items are
+ * serialized by the level, the server keeps them as they are. The server displaces items by itself, so the level
+ * always has room for an item and displaced items are lost, they are not moved to the next level. Connections
+ * are kept in the pool and opened when they are needed. Group operations are split in chunks that are sent
+ * without waiting for the responses.
+ * <p>
+ * The server is shared by all segments of the cache, every segment reports its share of the server size and
+ * capacity, so their sums are the size and the capacity of the server.
+ * <p>
+ * Every level is the separate client of the server. Items are shared by id, but clear and the displacement
+ * by strategy touch only the items put by this level, so the levels of other segments and processes keep their items.
+ * The level created again with the same client name, e.g. after the restart of the process, owns the items put
+ * by the previous one.
+ */
+public class RemoteLevel extends AbstractCacheLevel {
+
+    /**
+     * Quantity of items sent by one request of the group operation.
+     */
+    static final int CHUNK_SIZE = 256;
+
+    /**
+     * Quantity of requests sent before the response to the first of them is read. Requests of the large groups
+     * are small and the responses to the large puts are empty, so neither side waits for the other.
+     */
+    private static final int PIPELINE_DEPTH = 4;
+
+    private static final int TIMEOUT = 30_000;
+
+    /**
+     * Connection to the server, it is used by one thread at a time.
+     */
+    private static final class Connection {
+
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final RemoteProtocol.Payload payload = new RemoteProtocol.Payload();
+
+        final ByteBuffer hello; // response to the hello: the capacity of the server
+
+        private int sent;
+        private int received;
+
+        /**
+         * Connects to the server and says hello as the client, so the server knows which items the client puts.
+         */
+        Connection(InetSocketAddress address, String client) throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(TIMEOUT);
+                socket.connect(address, TIMEOUT);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), RemoteProtocol.BUFFER_SIZE));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), RemoteProtocol.BUFFER_SIZE));
+                RemoteProtocol.writeString(payload.start(), client);
+                hello = call(RemoteProtocol.HELLO);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Sends the request with the payload, the request is written when a response is awaited.
+         */
+        void send(byte operation) throws IOException {
+            RemoteProtocol.writeFrame(out, sent++, operation, payload);
+        }
+
+        /**
+         * @return payload of the response to the eldest request.
+         * @throws IOException if the connection is broken or the server could not do the operation.
+         */
+        ByteBuffer receive() throws IOException {
+            out.flush();
+            ByteBuffer frame = RemoteProtocol.readFrame(in);
+            int requestId = frame.getInt();
+            if (requestId != received++) {
+                throw new IOException("Response to request " + requestId + " is received instead of " + (received - 1));
+            }
+            if (frame.get() == RemoteProtocol.ERROR) {
+                throw new IOException("Server error: " + RemoteProtocol.readString(frame));
+            }
+            return frame;
+        }
+
+        ByteBuffer call(byte operation) throws IOException {
+            send(operation);
+            return receive();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private interface Call<T> {
+        T call(Connection connection) throws IOException;
+    }
+
+    /**
+     * Part of the group operation.
+     */
+    private interface Chunk {
+
+        /**
+         * Writes the request for the items [from, to) of the group.
+         */
+        void write(RemoteProtocol.Payload payload, int from, int to) throws IOException;
+
+        void read(ByteBuffer response) throws IOException;
+    }
+
+    private final InetSocketAddress address;
+
+    private final String client; // name of the level on the server
+
+    private final CacheSerializer serializer;
+
+    private final int shares;
+
+    private final int shareNum;
+
+    private final int serverMaxSize;
+
+    private final boolean serverWeighted;
+
+    private final BlockingQueue<Connection> idle;
+
+    private final Semaphore permits;
+
+    private volatile boolean closed;
+
+
+    /**
+     * Creates the level with the random client name and connects to the server.
+     *
+     * @param address  address of the server.
+     * @param poolSize maximal quantity of connections to the server.
+     * @param shares   quantity of levels that share the server in this cache, every level reports its share of the server size.
+     * @param shareNum number of this level among them, from 0.
+     * @throws CacheLevelException if the server is not available.
+     */
+    public RemoteLevel(InetSocketAddress address, int order, CacheSerializer serializer, int poolSize, int shares, int shareNum) throws CacheLevelException {
+        this(address, order, serializer, poolSize, shares, shareNum, null);
+    }
+
+    /**
+     * Creates the level and connects to the server.
+     *
+     * @param address  address of the server.
+     * @param poolSize maximal quantity of connections to the server.
+     * @param shares   quantity of levels that share the server in this cache, every level reports its share of the server size.
+     * @param shareNum number of this level among them, from 0.
+     * @param client   name of the level on the server, the same for every run of the process, null for the random name.
+     * @throws CacheLevelException if the server is not available.
+     */
+    public RemoteLevel(InetSocketAddress address, int order, CacheSerializer serializer, int poolSize, int shares, int shareNum,
+                       String client) throws CacheLevelException {
+        super(order);
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        if ((shares < 1) || (shareNum < 0) || (shareNum >= shares)) {
+            throw new IllegalArgumentException("Wrong share " + shareNum + " of " + shares);
+        }
+        this.address = address;
+        this.client = (client != null) ? client : UUID.randomUUID().toString();
+        this.serializer = serializer;
+        this.shares = shares;
+        this.shareNum = shareNum;
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+        this.permits = new Semaphore(poolSize);
+        ByteBuffer hello = execute("connect", new Call<ByteBuffer>() {
+            @Override
+            public ByteBuffer call(Connection connection) {
+                return connection.hello;
+            }
+        });
+        this.serverMaxSize = hello.getInt();
+        this.serverWeighted = hello.get() != 0;
+    }
+
+    @Override
+    public void put(final Cacheable cacheable) throws CacheLevelException {
+        final byte[] data = serialize(cacheable, serializer);
+        execute("put item [id " + cacheable.getId() + "]", new Call<Void>() {
+            @Override
+            public Void call(Connection connection) throws IOException {
+                connection.payload.start();
+                connection.payload.writeItem(cacheable.getId(), data);
+                connection.call(RemoteProtocol.PUT);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void putAll(final List<Cacheable> cacheables) throws CacheLevelException {
+        final byte[][] data = new byte[cacheables.size()][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = serialize(cacheables.get(i), serializer);
+        }
+        execute("put items", new Call<Void>() {
+            @Override
+            public Void call(Connection connection) throws IOException {
+                pipeline(connection, RemoteProtocol.PUT_ALL, data.length, new Chunk() {
+                    @Override
+                    public void write(RemoteProtocol.Payload payload, int from, int to) throws IOException {
+                        payload.out.writeInt(to - from);
+                        for (int i = from; i < to; i++) {
+                            payload.writeItem(cacheables.get(i).getId(), data[i]);
+                        }
+                    }
+
+                    @Override
+                    public void read(ByteBuffer response) {
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Cacheable get(final long id) throws CacheLevelException {
+        return execute("get item [id " + id + "]", new Call<Cacheable>() {
+            @Override
+            public Cacheable call(Connection connection) throws IOException {
+                connection.payload.start().writeLong(id);
+                return readFound(connection.call(RemoteProtocol.GET));
+            }
+        });
+    }
+
+    @Override
+    public Map<Long, Cacheable> getAll(final long[] ids) throws CacheLevelException {
+        final Map<Long, Cacheable> result = new HashMap<>();
+        execute("get items", new Call<Void>() {
+            @Override
+            public Void call(Connection connection) throws IOException {
+                pipeline(connection, RemoteProtocol.GET_ALL, ids.length, new Chunk() {
+                    @Override
+                    public void write(RemoteProtocol.Payload payload, int from, int to) throws IOException {
+                        writeIds(payload.out, ids, from, to);
+                    }
+
+                    @Override
+                    public void read(ByteBuffer response) throws IOException {
+                        int count = response.getInt();
+                        for (int i = 0; i < count; i++) {
+                            Cacheable cacheable = RemoteProtocol.readItem(response, serializer);
+                            result.put(cacheable.getId(), cacheable);
+                        }
+                    }
+                });
+                return null;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the item put by this level before its other items, null if the server keeps no items of this level.
+     */
+    @Override
+    public Cacheable getByStrategy() throws CacheLevelException {
+        return execute("get item by strategy", new Call<Cacheable>() {
+            @Override
+            public Cacheable call(Connection connection) throws IOException {
+                connection.payload.start();
+                return readFound(connection.call(RemoteProtocol.GET_BY_STRATEGY));
+            }
+        });
+    }
+
+    @Override
+    public Cacheable pull(final long id) throws CacheLevelException {
+        return execute("pull item [id " + id + "]", new Call<Cacheable>() {
+            @Override
+            public Cacheable call(Connection connection) throws IOException {
+                connection.payload.start().writeLong(id);
+                return readFound(connection.call(RemoteProtocol.PULL));
+            }
+        });
+    }
+
+    /**
+     * @return the item put by this level before its other items, null if the server keeps no items of this level.
+     */
+    @Override
+    public Cacheable pullByStrategy() throws CacheLevelException {
+        return execute("pull item by strategy", new Call<Cacheable>() {
+            @Override
+            public Cacheable call(Connection connection) throws IOException {
+                connection.payload.start();
+                return readFound(connection.call(RemoteProtocol.PULL_BY_STRATEGY));
+            }
+        });
+    }
+
+    @Override
+    public int removeAll(final long[] ids) throws CacheLevelException {
+        final int[] result = new int[1];
+        execute("remove items", new Call<Void>() {
+            @Override
+            public Void call(Connection connection) throws IOException {
+                pipeline(connection, RemoteProtocol.REMOVE_ALL, ids.length, new Chunk() {
+                    @Override
+                    public void write(RemoteProtocol.Payload payload, int from, int to) throws IOException {
+                        writeIds(payload.out, ids, from, to);
+                    }
+
+                    @Override
+                    public void read(ByteBuffer response) {
+                        result[0] += response.getInt();
+                    }
+                });
+                return null;
+            }
+        });
+        return result[0];
+    }
+
+    /**
+     * @return share of this level in the quantity of items on the server.
+     */
+    @Override
+    public int size() throws CacheLevelException {
+        return (int) share(stats().getInt());
+    }
+
+    /**
+     * @return share of this level in the capacity of the server.
+     */
+    @Override
+    public int maxSize() {
+        return (int) share(serverMaxSize);
+    }
+
+    /**
+     * @return true if the server is full.
+     */
+    @Override
+    public boolean isFull() throws CacheLevelException {
+        ByteBuffer stats = stats();
+        int size = stats.getInt();
+        return (serverWeighted ? stats.getLong() : size) >= serverMaxSize;
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return serverWeighted;
+    }
+
+    /**
+     * @return size of the item on the server if it is weighted. The item is serialized once for the weigh and the put.
+     */
+    @Override
+    public int weigh(Cacheable cacheable) throws CacheLevelException {
+        if (!serverWeighted) {
+            return 1;
+        }
+        byte[] data = serializeWeighed(cacheable, serializer);
+        return 8 + data.length; // server keeps the id with the item
+    }
+
+    /**
+     * @return share of this level in the weight of items on the server.
+     */
+    @Override
+    public long weight() throws CacheLevelException {
+        ByteBuffer stats = stats();
+        int size = stats.getInt();
+        return share(serverWeighted ? stats.getLong() : size);
+    }
+
+    /**
+     * @return always true, the server displaces items by itself.
+     */
+    @Override
+    public boolean hasRoomFor(long weight) {
+        return true;
+    }
+
+    /**
+     * Removes the items put by this level, items of other clients stay on the server.
+     */
+    @Override
+    public void clear() throws CacheLevelException {
+        execute("clear level", new Call<Void>() {
+            @Override
+            public Void call(Connection connection) throws IOException {
+                connection.payload.start();
+                connection.call(RemoteProtocol.CLEAR);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Closes the connections, items stay on the server.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private ByteBuffer stats() throws CacheLevelException {
+        return execute("get level size", new Call<ByteBuffer>() {
+            @Override
+            public ByteBuffer call(Connection connection) throws IOException {
+                connection.payload.start();
+                return connection.call(RemoteProtocol.STATS);
+            }
+        });
+    }
+
+    private long share(long value) {
+        return value / shares + ((shareNum < value % shares) ? 1 : 0);
+    }
+
+    /**
+     * Internal method. Does the operation on the pooled connection. Connection is closed if the operation fails,
+     * its stream may contain the responses that were not read.
+     */
+    private <T> T execute(String operation, Call<T> call) throws CacheLevelException {
+        if (closed) {
+            throw new IllegalStateException("Level is closed");
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheLevelException("Interrupted while waiting for connection to " + address, e);
+        }
+        Connection connection = null;
+        try {
+            connection = idle.poll();
+            if (connection == null) {
+                connection = new Connection(address, client);
+            }
+            T result = call.call(connection);
+            if (closed) {
+                connection.close();
+            } else {
+                idle.offer(connection);
+            }
+            connection = null;
+            return result;
+        } catch (IOException e) {
+            throw new CacheLevelException("Cannot " + operation + " on server " + address, e);
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * Internal method. Sends the chunks of the group operation and reads the responses, not more than
+     * {@link #PIPELINE_DEPTH} responses are awaited at a time.
+     */
+    private static void pipeline(Connection connection, byte operation, int count, Chunk chunk) throws IOException {
+        int awaited = 0;
+        for (int from = 0; from < count; from += CHUNK_SIZE) {
+            connection.payload.start();
+            chunk.write(connection.payload, from, Math.min(count, from + CHUNK_SIZE));
+            connection.send(operation);
+            if (++awaited == PIPELINE_DEPTH) {
+                chunk.read(connection.receive());
+                awaited--;
+            }
+        }
+        for (; awaited > 0; awaited--) {
+            chunk.read(connection.receive());
+        }
+    }
+
+    private static void writeIds(DataOutputStream out, long[] ids, int from, int to) throws IOException {
+        out.writeInt(to - from);
+        for (int i = from; i < to; i++) {
+            out.writeLong(ids[i]);
+        }
+    }
+
+    private Cacheable readFound(ByteBuffer response) throws IOException {
+        return (response.get() != 0) ? RemoteProtocol.readItem(response, serializer) : null;
+    }
+
+}
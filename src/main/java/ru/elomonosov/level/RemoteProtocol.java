@@ -0,0 +1,129 @@
+package ru.elomonosov.level;
+
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.serializer.CacheSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol of the remote level. Every request and response is the frame: length of the rest (int),
+ * request id (int), operation or status (byte) and the payload. Item is sent as id (long), length (int)
+ * and the serialized item. Client may send several requests before reading the responses,
+ * the server answers them in the same order.
+ */
+final class RemoteProtocol {
+
+    static final byte HELLO = 1;            // client (string) -> max size (int), weighted (boolean)
+    static final byte PUT = 2;              // item ->
+    static final byte PUT_ALL = 3;          // count (int), items ->
+    static final byte GET = 4;              // id (long) -> found (boolean), item
+    static final byte GET_ALL = 5;          // count (int), ids (long) -> count (int), items
+    static final byte GET_BY_STRATEGY = 6;  // -> found (boolean), item put by the client
+    static final byte PULL = 7;             // id (long) -> found (boolean), item
+    static final byte PULL_BY_STRATEGY = 8; // -> found (boolean), item put by the client
+    static final byte REMOVE_ALL = 9;       // count (int), ids (long) -> removed (int)
+    static final byte STATS = 10;           // -> size (int), weight (long)
+    static final byte CLEAR = 11;           // -> (items put by the client are removed)
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;            // -> message
+
+    static final int BUFFER_SIZE = 64 << 10;
+
+    private static final int MAX_FRAME = 256 << 20;
+
+    private static final int FRAME_HEADER = 5; // request id + operation
+
+    /**
+     * Payload of the frame that is written, its array is sent without copying.
+     */
+    static final class Payload extends ByteArrayOutputStream {
+
+        final DataOutputStream out = new DataOutputStream(this);
+
+        Payload() {
+            super(256);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        DataOutputStream start() {
+            reset();
+            return out;
+        }
+
+        void writeItem(long id, byte[] data) throws IOException {
+            out.writeLong(id);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private RemoteProtocol() {
+    }
+
+    static void writeFrame(DataOutputStream out, int requestId, byte code, Payload payload) throws IOException {
+        out.writeInt(FRAME_HEADER + payload.size());
+        out.writeInt(requestId);
+        out.writeByte(code);
+        out.write(payload.array(), 0, payload.size());
+    }
+
+    /**
+     * @return frame without the length, positioned at the request id.
+     * @throws IOException if the connection is closed or the frame is corrupted.
+     */
+    static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if ((length < FRAME_HEADER) || (length > MAX_FRAME)) {
+            throw new IOException("Wrong frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * @return serialized item of the frame, the frame is positioned after it.
+     */
+    static byte[] readData(ByteBuffer frame) throws IOException {
+        int length = frame.getInt();
+        if ((length < 0) || (length > frame.remaining())) {
+            throw new IOException("Wrong item length " + length);
+        }
+        byte[] result = new byte[length];
+        frame.get(result);
+        return result;
+    }
+
+    /**
+     * @return item of the frame deserialized in place, the frame is positioned after it.
+     */
+    static Cacheable readItem(ByteBuffer frame, CacheSerializer serializer) throws IOException {
+        frame.getLong(); // id is a part of the serialized item
+        int length = frame.getInt();
+        if ((length < 0) || (length > frame.remaining())) {
+            throw new IOException("Wrong item length " + length);
+        }
+        Cacheable result = serializer.deserialize(frame.array(), frame.arrayOffset() + frame.position(), length);
+        frame.position(frame.position() + length);
+        return result;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer frame) throws IOException {
+        return new String(readData(frame), StandardCharsets.UTF_8);
+    }
+}
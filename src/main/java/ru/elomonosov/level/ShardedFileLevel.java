@@ -0,0 +1,465 @@
+package ru.elomonosov.level;
+
+import ru.elomonosov.cache.CacheStrategy;
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.serializer.CacheSerializer;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File level that spreads items between several directories, typically one per device. Every directory keeps
+ * the shard, the file level of its own, item is kept by the shard chosen by the hash of its id. Single item
+ * operations go to one shard, so operations of different cache segments on different shards don't wait each other.
+ * <p>
+ * Every shard has its own I/O worker. Batch operations, clear, open and close are split by shards
+ * and done by the workers in parallel, so the throughput grows with the quantity of devices. Worker thread
+ * is stopped when the shard is idle.
+ * <p>
+ * Shards keep their own order of items, but stamp every put and access by the clock of the level. Displaced item
+ * is the eldest of the eldest items of the shards, so it is the eldest item of the level. Random item is taken
+ * from the shard chosen by the quantity of items.
+ */
+public class ShardedFileLevel extends AbstractCacheLevel implements CacheLevel {
+
+    private static final long WORKER_KEEP_ALIVE = 1; // seconds of idleness after which the worker thread is stopped
+
+    /**
+     * Part of the operation that is done on one shard.
+     */
+    private interface ShardTask<T> {
+
+        T run(InFileLevel shard, int shardNum) throws CacheLevelException;
+    }
+
+    private final CacheStrategy cacheStrategy;
+
+    private final int maxSize;
+
+    private final boolean weighted;
+
+    private final InFileLevel[] shards;
+    private final AtomicLong clock = new AtomicLong(); // access stamps of the items of all shards
+
+    private final ThreadPoolExecutor[] workers;
+
+    /**
+     * @param maxSize     total serialized size of items that the level can keep, or their quantity if the level is not weighted.
+     * @param directories directories of the shards, one shard per directory. Order of directories must not change
+     *                    while the persistent level keeps items.
+     * @param persistent  true if the shards keep items in the directories and the level opened with the same
+     *                    directories gets them back, false if the shards create temporary directories in them.
+     * @param weighted    true if items are weighed by their serialized size.
+     * @throws CacheLevelException if a directory of the persistent level cannot be opened.
+     */
+    public ShardedFileLevel(final CacheStrategy cacheStrategy, final int maxSize, final int order, final CacheSerializer serializer,
+                            final List<Path> directories, boolean persistent, final boolean weighted) throws CacheLevelException {
+        super(order);
+        if ((directories == null) || directories.isEmpty()) {
+            throw new IllegalArgumentException("Shard directories must be set");
+        }
+        this.cacheStrategy = cacheStrategy;
+        this.maxSize = maxSize;
+        this.weighted = weighted;
+        this.shards = new InFileLevel[directories.size()];
+        this.workers = new ThreadPoolExecutor[directories.size()];
+        for (int i = 0; i < workers.length; i++) {
+            final String name = "cache-file-shard-" + order + "-" + i;
+            workers[i] = new ThreadPoolExecutor(1, 1, WORKER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, name);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            workers[i].allowCoreThreadTimeOut(true);
+        }
+        // every shard may keep the whole level, the level limits the total; the index is sized for the even share
+        final int expectedSize = Math.max(1, expectedSize(maxSize, weighted) / shards.length * 5 / 4);
+        if (!persistent) {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new InFileLevel(cacheStrategy, maxSize, order, serializer, weighted, InFileLevel.SEGMENT_SIZE,
+                        directories.get(i), expectedSize);
+                shards[i].shareClock(clock);
+            }
+            return;
+        }
+        final Map<Integer, CacheLevelException> failures = new ConcurrentHashMap<>();
+        final CountDownLatch opened = new CountDownLatch(shards.length);
+        for (int i = 0; i < shards.length; i++) { // shards scan their segments in parallel
+            final int shardNum = i;
+            workers[i].execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shards[shardNum] = new InFileLevel(cacheStrategy, maxSize, order, serializer,
+                                directories.get(shardNum), weighted, InFileLevel.SEGMENT_SIZE, expectedSize);
+                    } catch (CacheLevelException e) {
+                        failures.put(shardNum, e);
+                    } finally {
+                        opened.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            opened.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.put(-1, new CacheLevelException("Opening of level " + order + " was interrupted", e));
+        }
+        if (failures.isEmpty()) {
+            for (InFileLevel shard : shards) {
+                shard.shareClock(clock);
+            }
+            while (weight() > maxSize) { // level was created with the larger size
+                pullByStrategy();
+            }
+            return;
+        }
+        try {
+            close();
+        } catch (CacheLevelException ignored) {
+        }
+        throw failures.values().iterator().next();
+    }
+
+    private int shardIndex(long id) {
+        int hash = Long.hashCode(id * 0x9E3779B97F4A7C15L); // other bits than the cache segments use
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    private InFileLevel shardFor(long id) {
+        return shards[shardIndex(id)];
+    }
+
+    /**
+     * Internal method. Runs the task on the specified shards by their workers and waits for all of them.
+     * The only shard is run by the calling thread.
+     *
+     * @param used shards to run the task on, null for all shards.
+     * @return results of the task by shard number, null for the unused shards.
+     */
+    private <T> List<T> forShards(final ShardTask<T> task, boolean[] used) throws CacheLevelException {
+        List<T> result = new ArrayList<>(Collections.<T>nCopies(shards.length, null));
+        List<Future<T>> futures = new ArrayList<>(Collections.<Future<T>>nCopies(shards.length, null));
+        int count = 0;
+        int last = -1;
+        for (int i = 0; i < shards.length; i++) {
+            if ((used == null) || used[i]) {
+                count++;
+                last = i;
+            }
+        }
+        if (count == 1) {
+            result.set(last, task.run(shards[last], last));
+            return result;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (((used == null) || used[i]) && (shards[i] != null)) {
+                final int shardNum = i;
+                futures.set(i, workers[i].submit(new Callable<T>() {
+                    @Override
+                    public T call() throws CacheLevelException {
+                        return task.run(shards[shardNum], shardNum);
+                    }
+                }));
+            }
+        }
+        CacheLevelException failure = null;
+        for (int i = 0; i < shards.length; i++) {
+            if (futures.get(i) == null) {
+                continue;
+            }
+            try {
+                result.set(i, futures.get(i).get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CacheLevelException) {
+                    failure = (CacheLevelException) e.getCause();
+                } else if (e.getCause() instanceof Exception) {
+                    failure = new CacheLevelException("Shard " + i + " of level " + order + " failed", (Exception) e.getCause());
+                } else {
+                    throw new IllegalStateException("Shard " + i + " of level " + order + " failed", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CacheLevelException("Operation on level " + order + " was interrupted", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
+    @Override
+    public void put(Cacheable cacheable) throws CacheLevelException {
+        shardFor(cacheable.getId()).put(cacheable);
+    }
+
+    /**
+     * Puts the group of items, every shard writes its part in parallel.
+     */
+    @Override
+    public void putAll(List<Cacheable> cacheables) throws CacheLevelException {
+        final List<List<Cacheable>> parts = new ArrayList<>(shards.length);
+        boolean[] used = new boolean[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<Cacheable>());
+        }
+        for (Cacheable cacheable : cacheables) { // order of items is kept within every shard
+            int shardNum = shardIndex(cacheable.getId());
+            parts.get(shardNum).add(cacheable);
+            used[shardNum] = true;
+        }
+        forShards(new ShardTask<Void>() {
+            @Override
+            public Void run(InFileLevel shard, int shardNum) throws CacheLevelException {
+                shard.putAll(parts.get(shardNum));
+                return null;
+            }
+        }, used);
+    }
+
+    @Override
+    public Cacheable get(long id) throws CacheLevelException {
+        return shardFor(id).get(id);
+    }
+
+    /**
+     * Gets the group of items, every shard reads its part in parallel.
+     */
+    @Override
+    public Map<Long, Cacheable> getAll(long[] ids) throws CacheLevelException {
+        final long[][] parts = split(ids);
+        boolean[] used = new boolean[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            used[i] = parts[i].length > 0;
+        }
+        Map<Long, Cacheable> result = new HashMap<>();
+        for (Map<Long, Cacheable> part : forShards(new ShardTask<Map<Long, Cacheable>>() {
+            @Override
+            public Map<Long, Cacheable> run(InFileLevel shard, int shardNum) throws CacheLevelException {
+                return shard.getAll(parts[shardNum]);
+            }
+        }, used)) {
+            if (part != null) {
+                result.putAll(part);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean mightContain(long id) throws CacheLevelException {
+        return shardFor(id).mightContain(id);
+    }
+
+    @Override
+    public long[] ids() throws CacheLevelException {
+        long[][] parts = new long[shards.length][];
+        int count = 0;
+        for (int i = 0; i < shards.length; i++) {
+            parts[i] = shards[i].ids();
+            count += parts[i].length;
+        }
+        long[] result = new long[count];
+        int position = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+
+    @Override
+    public Cacheable getByStrategy() throws CacheLevelException {
+        InFileLevel shard = shardByStrategy();
+        return (shard == null) ? null : shard.getByStrategy();
+    }
+
+    @Override
+    public Cacheable pull(long id) throws CacheLevelException {
+        return shardFor(id).pull(id);
+    }
+
+    @Override
+    public Cacheable pullByStrategy() throws CacheLevelException {
+        InFileLevel shard = shardByStrategy();
+        return (shard == null) ? null : shard.pullByStrategy();
+    }
+
+    /**
+     * Removes the group of items, every shard removes its part in parallel.
+     */
+    @Override
+    public int removeAll(long[] ids) throws CacheLevelException {
+        final long[][] parts = split(ids);
+        boolean[] used = new boolean[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            used[i] = parts[i].length > 0;
+        }
+        int result = 0;
+        for (Integer count : forShards(new ShardTask<Integer>() {
+            @Override
+            public Integer run(InFileLevel shard, int shardNum) throws CacheLevelException {
+                return shard.removeAll(parts[shardNum]);
+            }
+        }, used)) {
+            if (count != null) {
+                result += count;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int size() throws CacheLevelException {
+        int result = 0;
+        for (InFileLevel shard : shards) {
+            result += shard.size();
+        }
+        return result;
+    }
+
+    @Override
+    public int maxSize() throws CacheLevelException {
+        return maxSize;
+    }
+
+    @Override
+    public boolean isFull() throws CacheLevelException {
+        return weight() >= maxSize();
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weighted;
+    }
+
+    /**
+     * @return serialized size of the item if the level is weighted. The shard that keeps the item serializes it once
+     * for the weigh and the put.
+     */
+    @Override
+    public int weigh(Cacheable cacheable) throws CacheLevelException {
+        return shardFor(cacheable.getId()).weigh(cacheable);
+    }
+
+    @Override
+    public void releaseWeighed() {
+        for (InFileLevel shard : shards) {
+            shard.releaseWeighed();
+        }
+    }
+
+    @Override
+    public long weight() throws CacheLevelException {
+        long result = 0;
+        for (InFileLevel shard : shards) {
+            result += shard.weight();
+        }
+        return result;
+    }
+
+    /**
+     * Clears all shards in parallel.
+     */
+    @Override
+    public void clear() throws CacheLevelException {
+        forShards(new ShardTask<Void>() {
+            @Override
+            public Void run(InFileLevel shard, int shardNum) throws CacheLevelException {
+                shard.clear();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Closes all shards in parallel and stops the workers.
+     */
+    @Override
+    public void close() throws CacheLevelException {
+        try {
+            forShards(new ShardTask<Void>() {
+                @Override
+                public Void run(InFileLevel shard, int shardNum) throws CacheLevelException {
+                    if (shard != null) { // shard of the persistent level may be not opened
+                        shard.close();
+                    }
+                    return null;
+                }
+            }, null);
+        } finally {
+            for (ExecutorService worker : workers) {
+                worker.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return quantity of shards of the level.
+     */
+    int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Internal method.
+     * @return ids split by shards.
+     */
+    private long[][] split(long[] ids) {
+        int[] counts = new int[shards.length];
+        int[] shardNums = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            shardNums[i] = shardIndex(ids[i]);
+            counts[shardNums[i]]++;
+        }
+        long[][] result = new long[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            result[i] = new long[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < ids.length; i++) {
+            result[shardNums[i]][counts[shardNums[i]]++] = ids[i];
+        }
+        return result;
+    }
+
+    /**
+     * Internal method.
+     * @return shard to displace the item from: the shard with the least recently used eldest item, or the random one
+     * chosen by the quantity of items for the random strategy. Null if the level is empty.
+     */
+    private InFileLevel shardByStrategy() throws CacheLevelException {
+        if (cacheStrategy == CacheStrategy.RANDOM) {
+            int size = size();
+            if (size == 0) {
+                return null;
+            }
+            int item = ThreadLocalRandom.current().nextInt(size);
+            for (InFileLevel shard : shards) {
+                item -= shard.size();
+                if (item < 0) {
+                    return shard;
+                }
+            }
+            return null; // shards were changed meanwhile
+        }
+        InFileLevel result = null;
+        long resultStamp = Long.MAX_VALUE;
+        for (InFileLevel shard : shards) {
+            long shardStamp = shard.eldestStamp();
+            if (shardStamp < resultStamp) {
+                result = shard;
+                resultStamp = shardStamp;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,199 @@
+package ru.elomonosov.serializer;
+
+import ru.elomonosov.cache.Cacheable;
+
+import java.io.*;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compact binary serializer. Item of the class with the registered codec is written as the tag byte, the type id
+ * (variable length int) and the fields written by the codec. Item of any other class is written as the tag byte
+ * and the java serialization of the item.
+ * <p>
+ * Codecs should be registered before the cache is used. Type id of the class must not change while the serialized
+ * items are kept.
+ */
+public class BinarySerializer implements CacheSerializer {
+
+    private static final byte JAVA = 0;
+    private static final byte CODEC = 1;
+
+    private static final class Registration {
+
+        final int typeId;
+        final Class<?> type;
+        final CacheCodec<Cacheable> codec;
+
+        Registration(int typeId, Class<?> type, CacheCodec<Cacheable> codec) {
+            this.typeId = typeId;
+            this.type = type;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * Output stream that gives access to its buffer, so the buffer is reused by the thread.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        final DataOutputStream data = new DataOutputStream(this);
+
+        Buffer() {
+            super(256);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private static final int MAX_REUSED_BUFFER = 1 << 16;
+
+    private final ConcurrentMap<Class<?>, Registration> byClass = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Registration> byTypeId = new ConcurrentHashMap<>();
+
+    private final JavaSerializer javaSerializer = new JavaSerializer();
+
+    /**
+     * Registers codec for the class. Items of the subclasses are not written by the codec.
+     *
+     * @param typeId non-negative id of the class in the serialized items.
+     * @param type   class of items.
+     * @param codec  codec of the class.
+     * @return this serializer.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Cacheable> BinarySerializer register(int typeId, Class<T> type, CacheCodec<T> codec) {
+        if (typeId < 0) {
+            throw new IllegalArgumentException("Type id must be not negative");
+        }
+        if ((type == null) || (codec == null)) {
+            throw new IllegalArgumentException("Class and codec must be not null");
+        }
+        Registration registration = new Registration(typeId, type, (CacheCodec<Cacheable>) codec);
+        if (byTypeId.putIfAbsent(typeId, registration) != null) {
+            throw new IllegalArgumentException("Type id " + typeId + " is already registered");
+        }
+        byClass.put(type, registration);
+        return this;
+    }
+
+    /**
+     * @return registered classes by type id, e.g. "1=com.example.CachingData,2=com.example.Account", sorted by type id.
+     * Persistent cache keeps it to refuse the serializer that reads the stored items differently.
+     */
+    public String registrations() {
+        StringBuilder result = new StringBuilder();
+        for (Registration registration : new TreeMap<>(byTypeId).values()) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(registration.typeId).append('=').append(registration.type.getName());
+        }
+        return result.toString();
+    }
+
+    @Override
+    public byte[] serialize(Cacheable cacheable) throws IOException {
+        Registration registration = byClass.get(cacheable.getClass());
+        if (registration == null) {
+            byte[] serialized = javaSerializer.serialize(cacheable);
+            byte[] result = new byte[serialized.length + 1];
+            result[0] = JAVA;
+            System.arraycopy(serialized, 0, result, 1, serialized.length);
+            return result;
+        }
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        try {
+            buffer.write(CODEC);
+            writeVarInt(registration.typeId, buffer.data);
+            registration.codec.write(cacheable, buffer.data);
+            return buffer.toByteArray();
+        } finally {
+            if (buffer.array().length > MAX_REUSED_BUFFER) {
+                buffers.remove(); // don't keep buffers of the huge items
+            }
+        }
+    }
+
+    @Override
+    public Cacheable deserialize(byte[] data, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new EOFException("Serialized item is empty");
+        }
+        switch (data[offset]) {
+            case JAVA: {
+                return javaSerializer.deserialize(data, offset + 1, length - 1);
+            }
+            case CODEC: {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset + 1, length - 1));
+                int typeId = readVarInt(in);
+                Registration registration = byTypeId.get(typeId);
+                if (registration == null) {
+                    throw new IOException("Codec of type " + typeId + " is not registered");
+                }
+                return registration.codec.read(in);
+            }
+            default: {
+                throw new IOException("Unknown format of serialized item: " + data[offset]);
+            }
+        }
+    }
+
+    /**
+     * Writes non-negative int in 1 - 5 bytes, 7 bits per byte.
+     */
+    public static void writeVarInt(int value, DataOutput out) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed variable length int");
+    }
+
+    /**
+     * Writes long in 1 - 10 bytes, small absolute values take less bytes.
+     */
+    public static void writeVarLong(long value, DataOutput out) throws IOException {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.writeByte((int) zigZag);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long zigZag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+        throw new IOException("Malformed variable length long");
+    }
+}
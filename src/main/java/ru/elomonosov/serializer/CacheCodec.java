@@ -0,0 +1,20 @@
+package ru.elomonosov.serializer;
+
+import ru.elomonosov.cache.Cacheable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compact binary format of one class of items. Codec writes only the item fields, without any class descriptors.
+ * Codec is registered in the {@link BinarySerializer} with the type id, which is written before the fields.
+ *
+ * @param <T> class of items.
+ */
+public interface CacheCodec<T extends Cacheable> {
+
+    void write(T cacheable, DataOutput out) throws IOException;
+
+    T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,28 @@
+package ru.elomonosov.serializer;
+
+import ru.elomonosov.cache.Cacheable;
+
+import java.io.IOException;
+
+/**
+ * Converts items to bytes and back for the levels that keep items out of the java heap.
+ * Implementation is shared by all levels of the cache, so it must be thread safe.
+ */
+public interface CacheSerializer {
+
+    /**
+     * @param cacheable item to serialize.
+     * @return serialized item.
+     * @throws IOException if the item cannot be serialized.
+     */
+    byte[] serialize(Cacheable cacheable) throws IOException;
+
+    /**
+     * @param data   array that contains serialized item.
+     * @param offset offset of the serialized item in the array.
+     * @param length length of the serialized item.
+     * @return item.
+     * @throws IOException if the item cannot be deserialized.
+     */
+    Cacheable deserialize(byte[] data, int offset, int length) throws IOException;
+}
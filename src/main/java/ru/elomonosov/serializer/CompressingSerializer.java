@@ -0,0 +1,208 @@
+package ru.elomonosov.serializer;
+
+import ru.elomonosov.cache.Cacheable;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Serializer that compresses the items serialized by the other serializer. Every record starts with the header:
+ * the method byte (stored, LZF or deflate) and, for the compressed record, 4 bytes of the original length.
+ * So the records of any method are read by any compression setting, but the records written without this
+ * serializer are not.
+ * <p>
+ * Items smaller than the threshold are stored as they are. Item is stored as it is if the compression saves less
+ * than 1/8 of its size. When many items in a row are incompressible, the next items are stored without trying,
+ * then the compression is tried again.
+ */
+public class CompressingSerializer implements CacheSerializer {
+
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private static final byte STORED = 0;
+    private static final byte LZF = 1;
+    private static final byte DEFLATED = 2;
+
+    private static final int HEADER = 5;
+
+    private static final int MISSES_BEFORE_BYPASS = 16; // incompressible items in a row that start the bypass
+    private static final int BYPASS_LENGTH = 256;       // items stored without trying the compression
+
+    private static final ThreadLocal<LzfCompressor> lzfCompressors = new ThreadLocal<LzfCompressor>() {
+        @Override
+        protected LzfCompressor initialValue() {
+            return new LzfCompressor();
+        }
+    };
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final CacheSerializer serializer;
+    private final Compression compression;
+    private final int threshold;
+
+    private final AtomicInteger misses = new AtomicInteger(); // incompressible items in a row
+    private final AtomicInteger bypass = new AtomicInteger(); // items left to store without trying
+
+    public CompressingSerializer(CacheSerializer serializer, Compression compression) {
+        this(serializer, compression, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param serializer  serializer of items.
+     * @param compression compression of the serialized items.
+     * @param threshold   serialized items smaller than that quantity of bytes are not compressed.
+     */
+    public CompressingSerializer(CacheSerializer serializer, Compression compression, int threshold) {
+        if ((serializer == null) || (compression == null)) {
+            throw new IllegalArgumentException("Serializer and compression must be not null");
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Compression threshold must be not less than 0");
+        }
+        this.serializer = serializer;
+        this.compression = compression;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] serialize(Cacheable cacheable) throws IOException {
+        byte[] data = serializer.serialize(cacheable);
+        if ((compression != Compression.NONE) && (data.length >= threshold) && !bypassed()) {
+            byte[] result = new byte[HEADER + data.length - (data.length >>> 3)]; // longer result is useless
+            int length = (compression == Compression.FAST)
+                    ? lzfCompressors.get().compress(data, 0, data.length, result, HEADER, result.length - HEADER)
+                    : deflate(data, result);
+            if (length >= 0) {
+                misses.set(0);
+                result[0] = (compression == Compression.FAST) ? LZF : DEFLATED;
+                writeInt(data.length, result, 1);
+                return trim(result, HEADER + length);
+            }
+            if (misses.incrementAndGet() >= MISSES_BEFORE_BYPASS) {
+                misses.set(0);
+                bypass.set(BYPASS_LENGTH);
+            }
+        }
+        byte[] result = new byte[1 + data.length];
+        result[0] = STORED;
+        System.arraycopy(data, 0, result, 1, data.length);
+        return result;
+    }
+
+    @Override
+    public Cacheable deserialize(byte[] data, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Empty compressed record");
+        }
+        switch (data[offset]) {
+            case STORED: {
+                return serializer.deserialize(data, offset + 1, length - 1);
+            }
+            case LZF: {
+                byte[] original = new byte[readInt(data, offset + 1, length)];
+                LzfCompressor.decompress(data, offset + HEADER, length - HEADER, original);
+                return serializer.deserialize(original, 0, original.length);
+            }
+            case DEFLATED: {
+                byte[] original = new byte[readInt(data, offset + 1, length)];
+                inflate(data, offset + HEADER, length - HEADER, original);
+                return serializer.deserialize(original, 0, original.length);
+            }
+            default: {
+                throw new IOException("Unknown compression of the record: " + data[offset]);
+            }
+        }
+    }
+
+    private boolean bypassed() {
+        while (true) {
+            int left = bypass.get();
+            if (left == 0) {
+                return false;
+            }
+            if (bypass.compareAndSet(left, left - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return length of the deflated data written after the header, -1 if it does not fit the result.
+     */
+    private static int deflate(byte[] data, byte[] result) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished() && (HEADER + length < result.length)) {
+            length += deflater.deflate(result, HEADER + length, result.length - HEADER - length);
+        }
+        return deflater.finished() ? length : -1;
+    }
+
+    private static void inflate(byte[] data, int offset, int length, byte[] original) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        try {
+            int inflated = 0;
+            while (!inflater.finished()) {
+                int count = inflater.inflate(original, inflated, original.length - inflated);
+                if ((count == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (!inflater.finished() || (inflated != original.length)) {
+                throw new IOException("Deflated data has " + inflated + " bytes instead of " + original.length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted deflated data", e);
+        }
+    }
+
+    private static byte[] trim(byte[] data, int length) {
+        if (length == data.length) {
+            return data;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(data, 0, result, 0, length);
+        return result;
+    }
+
+    private static void writeInt(int value, byte[] data, int offset) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] data, int offset, int length) throws IOException {
+        if (length < HEADER) {
+            throw new IOException("Truncated compressed record");
+        }
+        int result = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        if (result < 0) {
+            throw new IOException("Corrupted compressed record");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,23 @@
+package ru.elomonosov.serializer;
+
+/**
+ * Compression of the serialized items on the disk levels, see {@link CompressingSerializer}.
+ */
+public enum Compression {
+
+    /**
+     * Items are stored as they are serialized.
+     */
+    NONE,
+
+    /**
+     * LZF: byte-oriented LZ77 without entropy coding. Compresses repetitive data several times
+     * at the speed of a memory copy, decompression is faster still.
+     */
+    FAST,
+
+    /**
+     * Deflate of the java.util.zip. Compresses better than FAST, several times slower.
+     */
+    DEFLATE
+}
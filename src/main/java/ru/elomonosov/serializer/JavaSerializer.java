@@ -0,0 +1,29 @@
+package ru.elomonosov.serializer;
+
+import ru.elomonosov.cache.Cacheable;
+
+import java.io.*;
+
+/**
+ * Standard java serialization. Works with any item, but writes class descriptors with every item.
+ */
+public class JavaSerializer implements CacheSerializer {
+
+    @Override
+    public byte[] serialize(Cacheable cacheable) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(cacheable);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Cacheable deserialize(byte[] data, int offset, int length) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return (Cacheable) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Cannot deserialize item", e);
+        }
+    }
+}
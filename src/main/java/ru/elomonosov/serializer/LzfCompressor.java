@@ -0,0 +1,124 @@
+package ru.elomonosov.serializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZF block format. The block is a sequence of runs: control byte below 32 is followed by (control + 1) literal bytes,
+ * other control byte is the back reference: 3 high bits are the length - 2 (7 means that the next byte is added
+ * to it), 5 low bits and the next byte are the distance - 1, up to 8 KB back.
+ * Not thread safe, every thread should have its own compressor.
+ */
+final class LzfCompressor {
+
+    private static final int MAX_LITERAL = 32;
+    private static final int MAX_DISTANCE = 1 << 13;
+    private static final int MAX_MATCH = (7 + 255) + 2;
+    private static final int MAX_HASH_BITS = 14;
+
+    private final int[] table = new int[1 << MAX_HASH_BITS]; // last position + 1 of every hashed triple
+
+    /**
+     * @param input        data to compress.
+     * @param output       array for the compressed data.
+     * @param outputOffset position of the compressed data in the output.
+     * @param limit        compressed data longer than that is useless.
+     * @return length of the compressed data, -1 if it would be longer than the limit.
+     */
+    int compress(byte[] input, int offset, int length, byte[] output, int outputOffset, int limit) {
+        int hashBits = Math.max(8, Math.min(MAX_HASH_BITS, 32 - Integer.numberOfLeadingZeros(length)));
+        Arrays.fill(table, 0, 1 << hashBits, 0);
+        int end = offset + length;
+        int position = offset;
+        int literalStart = offset;
+        int out = outputOffset;
+        limit += outputOffset;
+        while (position < end - 2) {
+            int triple = ((input[position] & 0xff) << 16) | ((input[position + 1] & 0xff) << 8) | (input[position + 2] & 0xff);
+            int hash = (triple * 0x9E3779B1) >>> (32 - hashBits);
+            int reference = table[hash] - 1;
+            table[hash] = position + 1;
+            int distance = position - reference - 1;
+            if ((reference >= offset) && (distance < MAX_DISTANCE)
+                    && (input[reference] == input[position]) && (input[reference + 1] == input[position + 1])
+                    && (input[reference + 2] == input[position + 2])) {
+                int matchLength = 3;
+                int maxLength = Math.min(MAX_MATCH, end - position);
+                while ((matchLength < maxLength) && (input[reference + matchLength] == input[position + matchLength])) {
+                    matchLength++;
+                }
+                out = literals(input, literalStart, position, output, out, limit);
+                if ((out < 0) || (out + 3 > limit)) {
+                    return -1;
+                }
+                int lengthCode = matchLength - 2;
+                if (lengthCode < 7) {
+                    output[out++] = (byte) ((lengthCode << 5) | (distance >>> 8));
+                } else {
+                    output[out++] = (byte) ((7 << 5) | (distance >>> 8));
+                    output[out++] = (byte) (lengthCode - 7);
+                }
+                output[out++] = (byte) distance;
+                position += matchLength;
+                literalStart = position;
+            } else {
+                position++;
+            }
+        }
+        out = literals(input, literalStart, end, output, out, limit);
+        return (out < 0) ? -1 : out - outputOffset;
+    }
+
+    private static int literals(byte[] input, int from, int to, byte[] output, int out, int limit) {
+        while (from < to) {
+            int count = Math.min(MAX_LITERAL, to - from);
+            if (out + 1 + count > limit) {
+                return -1;
+            }
+            output[out++] = (byte) (count - 1);
+            System.arraycopy(input, from, output, out, count);
+            out += count;
+            from += count;
+        }
+        return out;
+    }
+
+    /**
+     * @param output array for the decompressed data, its length is the length of the original data.
+     * @throws IOException if the data is corrupted.
+     */
+    static void decompress(byte[] input, int offset, int length, byte[] output) throws IOException {
+        int end = offset + length;
+        int position = offset;
+        int out = 0;
+        try {
+            while (position < end) {
+                int control = input[position++] & 0xff;
+                if (control < MAX_LITERAL) {
+                    int count = control + 1;
+                    System.arraycopy(input, position, output, out, count);
+                    position += count;
+                    out += count;
+                } else {
+                    int matchLength = control >>> 5;
+                    if (matchLength == 7) {
+                        matchLength += input[position++] & 0xff;
+                    }
+                    matchLength += 2;
+                    int reference = out - (((control & 0x1f) << 8) | (input[position++] & 0xff)) - 1;
+                    if ((reference < 0) || (out + matchLength > output.length)) {
+                        throw new IOException("Corrupted compressed data");
+                    }
+                    for (int i = 0; i < matchLength; i++) { // the match may overlap the output
+                        output[out++] = output[reference++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted compressed data", e);
+        }
+        if (out != output.length) {
+            throw new IOException("Compressed data has " + out + " bytes instead of " + output.length);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ru.elomonosov.serializer;
+
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.cache.Weigher;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Weighs the item by the quantity of bytes of its serialized form, so the memory levels are bounded by the same
+ * measure as the levels that keep serialized items. The item is serialized to be weighed.
+ */
+public class SerializedSizeWeigher implements Weigher {
+
+    private final CacheSerializer serializer;
+
+    public SerializedSizeWeigher(CacheSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    @Override
+    public int weigh(Cacheable cacheable) {
+        try {
+            return Math.max(1, serializer.serialize(cacheable).length);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot serialize item [id " + cacheable.getId() + "]", e);
+        }
+    }
+}
@@ -1,16 +1,33 @@
 package ru.elomonosov.cache;
 
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.elomonosov.level.CacheLevel;
 import ru.elomonosov.level.CacheLevelException;
 import ru.elomonosov.level.Level;
+import ru.elomonosov.serializer.BinarySerializer;
+import ru.elomonosov.serializer.JavaSerializer;
 import ru.elomonosov.test.Result;
 import ru.elomonosov.util.ClassNameUtil;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class CacheTest {
 
@@ -19,6 +36,9 @@ public class CacheTest {
     private static final int LEVEL_MAX_SIZE = 20;
     private static final Map<Cache, Long> cacheMap = new LinkedHashMap<>();
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @BeforeClass
     public static void prepare() throws Exception {
         CacheFactory cacheFactory = CacheFactory.getInstance();
@@ -29,6 +49,8 @@ public class CacheTest {
         cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE);
         Cache cache = cacheFactory.getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels);
         cacheMap.put(cache, 0L);
+        Cache segmentedCache = cacheFactory.getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, 4);
+        cacheMap.put(segmentedCache, 0L);
     }
 
     @AfterClass
@@ -67,6 +89,10 @@ public class CacheTest {
 
         logger.info(allResult.toString());
         System.out.println(allResult);
+        for (Cache cache : cacheMap.keySet()) {
+            cache.close();
+        }
+        cacheMap.clear();
     }
 
     @Before
@@ -179,4 +205,789 @@ public class CacheTest {
             assertEquals("Cannot get correct item.", storedData, cashedData);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        CacheFactory cacheFactory = CacheFactory.getInstance();
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE);
+
+        for (CacheStrategy cacheStrategy : CacheStrategy.values()) {
+            Cache cache = cacheFactory.getCache(cacheStrategy, cacheLevels, 8);
+            try {
+                accessConcurrently(cache, 8);
+                assertTrue("Cache contains more items than it can store.\n" + cache.toString(), cache.size() <= cache.maxSize());
+            } finally {
+                cache.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReopenPersistentCache() throws Exception {
+        CacheFactory cacheFactory = CacheFactory.getInstance();
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE * 4);
+        CacheSettings settings = new CacheSettings();
+        settings.setConcurrencyLevel(4);
+        settings.setDirectory(folder.getRoot().toPath());
+
+        Cache cache = cacheFactory.getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+        for (long id = 0; id < LEVEL_MAX_SIZE * 3; id++) {
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        int storedOnDisk = cache.size() - LEVEL_MAX_SIZE; // items of the memory level are lost on close
+        cache.close();
+
+        Cache reopened = cacheFactory.getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+        try {
+            assertEquals("Wrong cache size after reopen.", storedOnDisk, reopened.size());
+            for (long id = 0; id < storedOnDisk; id++) { // the eldest items were displaced to the file level
+                assertEquals("Item was lost by reopen.", new TestCacheData(id, "testCashData" + id), reopened.get(id));
+            }
+        } finally {
+            reopened.close();
+        }
+
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE);
+        try {
+            cacheFactory.getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+            Assert.fail("Cache was opened with other levels.");
+        } catch (CacheFactoryException expected) {
+        }
+
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE * 4);
+        settings.setSerializer(new JavaSerializer());
+        try {
+            cacheFactory.getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+            Assert.fail("Cache was opened with other serializer.");
+        } catch (CacheFactoryException expected) {
+        }
+        settings.setSerializer(new BinarySerializer());
+        settings.setWeigher(new Weigher() {
+            @Override
+            public int weigh(Cacheable cacheable) {
+                return 1;
+            }
+        });
+        try {
+            cacheFactory.getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+            Assert.fail("Cache was opened with the weigher.");
+        } catch (CacheFactoryException expected) {
+        }
+    }
+
+    @Test
+    public void testTinyLfuHitRate() throws Exception {
+        CacheFactory cacheFactory = CacheFactory.getInstance();
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, 100);
+
+        Map<CacheStrategy, Integer> hits = new EnumMap<>(CacheStrategy.class);
+        for (CacheStrategy cacheStrategy : new CacheStrategy[]{CacheStrategy.LEAST_RECENTLY_USED, CacheStrategy.TINY_LFU}) {
+            Cache cache = cacheFactory.getCache(cacheStrategy, cacheLevels);
+            Random random = new Random(1);
+            long scanId = 1_000_000;
+            int hitCount = 0;
+            for (int i = 0; i < 20_000; i++) {
+                long id = random.nextBoolean()
+                        ? random.nextInt(random.nextInt(250) + 1) // skewed popular items
+                        : scanId++;                               // one-hit wonders of the scan
+                if (cache.get(id) != null) {
+                    hitCount++;
+                } else {
+                    cache.put(new TestCacheData(id, "testCashData" + id));
+                }
+            }
+            assertTrue("Cache contains more items than it can store.", cache.size() <= cache.maxSize());
+            hits.put(cacheStrategy, hitCount);
+        }
+        logger.info("Hits by strategy: {}", hits);
+        assertTrue("TinyLFU hit rate is not higher than LRU one: " + hits,
+                hits.get(CacheStrategy.TINY_LFU) > hits.get(CacheStrategy.LEAST_RECENTLY_USED) * 1.2);
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception {
+        CacheFactory cacheFactory = CacheFactory.getInstance();
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE);
+
+        long[] ids = new long[LEVEL_MAX_SIZE * 3];
+        List<Cacheable> items = new ArrayList<>();
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = id;
+            items.add(new TestCacheData(id, "testCashData" + id));
+        }
+        Cache cache = cacheFactory.getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels);
+        try {
+            cache.putAll(items.subList(0, LEVEL_MAX_SIZE * 3 / 2));
+            assertEquals("Wrong cache size after batch put.", LEVEL_MAX_SIZE * 3 / 2, cache.size());
+            cache.putAll(items.subList(LEVEL_MAX_SIZE * 3 / 2, items.size()));
+            assertEquals("Wrong cache size after batch put.", cache.maxSize(), cache.size());
+
+            Map<Long, Cacheable> found = cache.getAll(ids);
+            assertEquals("Wrong quantity of found items.", LEVEL_MAX_SIZE * 2, found.size());
+            for (int id = LEVEL_MAX_SIZE; id < ids.length; id++) { // the eldest items were displaced
+                assertEquals("Cannot get correct item.", items.get(id), found.get((long) id));
+            }
+            assertEquals("Items were lost by batch get.", cache.maxSize(), cache.size());
+        } finally {
+            cache.close();
+        }
+
+        for (CacheStrategy cacheStrategy : CacheStrategy.values()) {
+            Cache segmentedCache = cacheFactory.getCache(cacheStrategy, cacheLevels, 4);
+            try {
+                segmentedCache.putAll(items);
+                segmentedCache.putAll(items.subList(0, LEVEL_MAX_SIZE));
+                for (Map.Entry<Long, Cacheable> entry : segmentedCache.getAll(ids).entrySet()) {
+                    assertEquals("Cannot get correct item.", items.get(entry.getKey().intValue()), entry.getValue());
+                }
+                assertTrue("Cache contains more items than it can store.", segmentedCache.size() <= segmentedCache.maxSize());
+            } finally {
+                segmentedCache.close();
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncOperations() throws Exception {
+        final AtomicInteger taskCount = new AtomicInteger();
+        CacheSettings settings = new CacheSettings();
+        settings.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                taskCount.incrementAndGet();
+                new Thread(command).start();
+            }
+        });
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE);
+        Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+
+        for (long id = 0; id < LEVEL_MAX_SIZE * 2; id++) {
+            cache.putAsync(new TestCacheData(id, "testCashData" + id)).get();
+        }
+        assertEquals("Put was not run by the executor.", LEVEL_MAX_SIZE * 2, taskCount.get());
+
+        CompletableFuture<Cacheable> memoryHit = cache.getAsync(LEVEL_MAX_SIZE + 1);
+        assertTrue("Memory hit was not completed inline.", memoryHit.isDone());
+        assertEquals("Cannot get correct item.", new TestCacheData(LEVEL_MAX_SIZE + 1, "testCashData" + (LEVEL_MAX_SIZE + 1)), memoryHit.get());
+        assertEquals("Memory hit was run by the executor.", LEVEL_MAX_SIZE * 2, taskCount.get());
+
+        assertEquals("Cannot get correct item.", new TestCacheData(1, "testCashData1"), cache.getAsync(1).get());
+        assertEquals("File level search was not run by the executor.", LEVEL_MAX_SIZE * 2 + 1, taskCount.get());
+        assertNull("Absent item was found.", cache.getAsync(LEVEL_MAX_SIZE * 3).get());
+
+        assertTrue("Item was not removed.", cache.removeAsync(1).get());
+        assertFalse("Absent item was removed.", cache.removeAsync(1).get());
+        assertNull("Removed item was found.", cache.getAsync(1).get());
+        assertEquals("Wrong cache size after remove.", LEVEL_MAX_SIZE * 2 - 1, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        final List<Runnable> tasks = Collections.synchronizedList(new ArrayList<Runnable>());
+        CacheSettings settings = new CacheSettings();
+        settings.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command); // demoted items are written when the test runs the tasks
+            }
+        });
+        settings.setWriteBehindQueueSize(LEVEL_MAX_SIZE);
+        settings.setWriteBehindBatchSize(4);
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE * 2);
+        Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+
+        int itemCount = LEVEL_MAX_SIZE * 3 / 2;
+        for (long id = 0; id < itemCount; id++) {
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        assertFalse("Demoted items were not queued.", tasks.isEmpty());
+        assertEquals("Wrong cache size with queued items.", itemCount, cache.size());
+        for (long id = 0; id < itemCount; id++) { // queued items are found and raised
+            assertEquals("Cannot get correct item.", new TestCacheData(id, "testCashData" + id), cache.get(id));
+        }
+        CacheLevel writeBehind = cache.segmentFor(0).levels().get(1);
+        Cacheable eldest = writeBehind.getByStrategy();
+        assertTrue("Raised item must not be displaced from the queue.", (eldest == null) || writeBehind.mightContain(eldest.getId()));
+
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        assertEquals("Wrong cache size after writing.", itemCount, cache.size());
+        int written = 0;
+        for (long id = 0; id < itemCount; id++) {
+            CacheLevel level = cache.segmentFor(id).levels().get(1);
+            if (level.mightContain(id)) {
+                assertTrue("Written item must be on the file level.", ((WriteBehindLevel) level).lowerLevels().get(0).mightContain(id));
+                written++;
+            }
+        }
+        assertEquals("Written items must be known by the write-behind level.", itemCount - LEVEL_MAX_SIZE, written);
+        for (long id = 0; id < itemCount; id++) {
+            assertEquals("Item was lost by writing.", new TestCacheData(id, "testCashData" + id), cache.get(id));
+        }
+        cache.close();
+
+        for (Backpressure backpressure : Backpressure.values()) {
+            CacheSettings concurrentSettings = new CacheSettings();
+            concurrentSettings.setConcurrencyLevel(2);
+            concurrentSettings.setWriteBehindQueueSize(4);
+            concurrentSettings.setWriteBehindBatchSize(2);
+            concurrentSettings.setBackpressure(backpressure);
+            Cache concurrentCache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, concurrentSettings);
+            try {
+                accessConcurrently(concurrentCache, 4);
+            } finally {
+                concurrentCache.close();
+            }
+        }
+
+        CacheSettings rejectingSettings = new CacheSettings();
+        rejectingSettings.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+        });
+        rejectingSettings.setWriteBehindQueueSize(4);
+        rejectingSettings.setWriteBehindBatchSize(2);
+        cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, rejectingSettings);
+        try {
+            for (long id = 0; id < LEVEL_MAX_SIZE * 2; id++) { // the caller writes the queue that the executor rejects
+                cache.put(new TestCacheData(id, "testCashData" + id));
+            }
+            assertEquals("Items were lost when the executor rejected the writing.", LEVEL_MAX_SIZE * 2, cache.size());
+        } finally {
+            cache.close();
+        }
+
+        ExecutorService singleThread = Executors.newSingleThreadExecutor();
+        CacheSettings saturatedSettings = new CacheSettings();
+        saturatedSettings.setConcurrencyLevel(1);
+        saturatedSettings.setExecutor(singleThread); // the flusher is queued behind the puts
+        saturatedSettings.setWriteBehindQueueSize(4);
+        saturatedSettings.setWriteBehindBatchSize(2);
+        cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, saturatedSettings);
+        try {
+            List<CompletableFuture<Void>> puts = new ArrayList<>();
+            for (long id = 0; id < LEVEL_MAX_SIZE * 2; id++) {
+                puts.add(cache.putAsync(new TestCacheData(id, "testCashData" + id)));
+            }
+            for (CompletableFuture<Void> put : puts) {
+                put.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals("Items were lost by the saturated executor.", LEVEL_MAX_SIZE * 2, cache.size());
+        } finally {
+            cache.close();
+            singleThread.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoadingCache() throws Exception {
+        final ConcurrentHashMap<Long, AtomicInteger> loadCounts = new ConcurrentHashMap<>();
+        final AtomicInteger loadAllCount = new AtomicInteger();
+        CacheSettings settings = new CacheSettings();
+        settings.setConcurrencyLevel(2);
+        settings.setLoader(new CacheLoader() {
+            @Override
+            public Cacheable load(long id) throws Exception {
+                AtomicInteger count = new AtomicInteger();
+                AtomicInteger existing = loadCounts.putIfAbsent(id, count);
+                (existing == null ? count : existing).incrementAndGet();
+                Thread.sleep(20); // slow backing store, concurrent requests come while the item is loaded
+                return (id < LEVEL_MAX_SIZE * 4) ? new TestCacheData(id, "testCashData" + id) : null;
+            }
+
+            @Override
+            public Map<Long, Cacheable> loadAll(long[] ids) throws Exception {
+                loadAllCount.incrementAndGet();
+                return CacheLoader.super.loadAll(ids);
+            }
+        });
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE * 4);
+        final Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (long id = 0; id < LEVEL_MAX_SIZE; id++) {
+                            assertEquals("Cannot get loaded item.", new TestCacheData(id, "testCashData" + id), cache.get(id));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("Errors in concurrent loading: " + errors, 0, errors.size());
+        for (long id = 0; id < LEVEL_MAX_SIZE; id++) {
+            assertEquals("Item was loaded more than once.", 1, loadCounts.get(id).get());
+        }
+        assertEquals("Loaded items were not put in the cache.", LEVEL_MAX_SIZE, cache.size());
+
+        long[] ids = new long[LEVEL_MAX_SIZE * 2];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = LEVEL_MAX_SIZE / 2 + i;
+        }
+        Map<Long, Cacheable> found = cache.getAll(ids);
+        assertEquals("Wrong quantity of found and loaded items.", ids.length, found.size());
+        assertEquals("Missing items were not loaded by one call.", 1, loadAllCount.get());
+        assertEquals("Cached item was loaded again.", 1, loadCounts.get((long) LEVEL_MAX_SIZE / 2).get());
+        assertNull("Item absent in the backing store was found.", cache.get(LEVEL_MAX_SIZE * 4));
+        assertEquals("Cannot get loaded item asynchronously.", new TestCacheData(LEVEL_MAX_SIZE * 3, "testCashData" + LEVEL_MAX_SIZE * 3),
+                cache.getAsync(LEVEL_MAX_SIZE * 3).get());
+
+        try {
+            cache.get(LEVEL_MAX_SIZE * 5, new CacheLoader() {
+                @Override
+                public Cacheable load(long id) throws Exception {
+                    return new TestCacheData(id + 1, "wrong");
+                }
+            });
+            fail("Item with wrong id was loaded.");
+        } catch (CacheException e) {
+            assertNull("Item with wrong id was put in the cache.", cache.get(LEVEL_MAX_SIZE * 5 + 1));
+        }
+
+        final long failedId = LEVEL_MAX_SIZE * 4 - 1;
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CacheLoader failingLoader = new CacheLoader() {
+            @Override
+            public Cacheable load(long id) throws Exception {
+                throw new StackOverflowError();
+            }
+        };
+        final List<Throwable> waiterErrors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadStarted.await();
+                    cache.get(failedId, failingLoader);
+                } catch (Throwable e) {
+                    waiterErrors.add(e);
+                }
+            }
+        });
+        waiter.start();
+        try {
+            cache.get(failedId, new CacheLoader() {
+                @Override
+                public Cacheable load(long id) throws Exception {
+                    loadStarted.countDown();
+                    Thread.sleep(100); // the waiter joins the load
+                    throw new StackOverflowError();
+                }
+            });
+            fail("Error of the loader was not thrown.");
+        } catch (StackOverflowError e) {
+            waiter.join(5000);
+            assertFalse("Request waiting for the failed load must not wait forever.", waiter.isAlive());
+            assertEquals(1, waiterErrors.size());
+        }
+        assertEquals("Item must be loaded after the failed load.", new TestCacheData(failedId, "testCashData" + failedId), cache.get(failedId));
+        cache.close();
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        CacheSettings settings = new CacheSettings();
+        settings.setConcurrencyLevel(2);
+        settings.setExpireAfterWrite(200);
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE);
+        for (CacheStrategy strategy : CacheStrategy.values()) {
+            Cache cache = CacheFactory.getInstance().getCache(strategy, cacheLevels, settings);
+            int itemCount = LEVEL_MAX_SIZE / 2; // the random strategy does not displace items from the half-filled levels
+            for (long id = 0; id < itemCount; id++) {
+                cache.put(new TestCacheData(id, "testCashData" + id));
+            }
+            cache.put(new TestCacheData(itemCount, "eternal"), 0, 0);         // own expiration replaces the default one
+            cache.put(new TestCacheData(itemCount + 1, "idle"), 0, 150);
+            assertEquals("Item expired too early.", new TestCacheData(0, "testCashData0"), cache.get(0));
+
+            for (int i = 0; i < 5; i++) {
+                Thread.sleep(60);
+                assertEquals("Accessed item expired.", new TestCacheData(itemCount + 1, "idle"), cache.get(itemCount + 1));
+            }
+            for (long id = 0; id < itemCount; id++) {
+                assertNull("Expired item was found.", cache.get(id));
+            }
+            assertTrue("Expired items were found in " + strategy + ".", cache.getAll(new long[]{0, 1, itemCount}).size() == 1);
+            cache.cleanUp();
+            assertEquals("Expired items were not removed in " + strategy + ".", 2, cache.size());
+
+            Thread.sleep(300);
+            cache.cleanUp();
+            assertEquals("Idle item was not removed in " + strategy + ".", 1, cache.size());
+            assertEquals("Item without expiration was removed.", new TestCacheData(itemCount, "eternal"), cache.get(itemCount));
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testInlineRaise() throws Exception {
+        final List<Runnable> tasks = Collections.synchronizedList(new ArrayList<Runnable>());
+        CacheSettings settings = new CacheSettings();
+        settings.setConcurrencyLevel(1);
+        settings.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command); // deferred searches are run when the test runs the tasks
+            }
+        });
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.OFF_HEAP, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE * 2);
+        for (CacheStrategy strategy : new CacheStrategy[]{CacheStrategy.LEAST_RECENTLY_USED, CacheStrategy.TINY_LFU}) {
+            Cache cache = CacheFactory.getInstance().getCache(strategy, cacheLevels, settings);
+            for (long id = 0; id < LEVEL_MAX_SIZE * 2; id++) {
+                cache.put(new TestCacheData(id, "testCashData" + id));
+            }
+            CacheSegment segment = cache.segmentFor(0);
+            int size = cache.size();
+            long id = offHeapId(segment);
+
+            CompletableFuture<Cacheable> hit = cache.getAsync(id);
+            assertFalse("Raise that displaces items was completed inline in " + strategy + ".", hit.isDone());
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+            assertEquals(new TestCacheData(id, "testCashData" + id), hit.get());
+            assertEquals("Items were lost by the raise in " + strategy + ".", size, cache.size());
+
+            for (long memoryId = 0; memoryId < LEVEL_MAX_SIZE * 2; memoryId++) { // the top level gets room
+                if (segment.levels().get(0).mightContain(memoryId)) {
+                    cache.remove(memoryId);
+                    break;
+                }
+            }
+            long filePuts = cache.stats().getLevels().get(2).getPutCount();
+            id = offHeapId(segment);
+            hit = cache.getAsync(id);
+            assertTrue("Off-heap hit was not completed inline in " + strategy + ".", hit.isDone());
+            assertEquals(new TestCacheData(id, "testCashData" + id), hit.get());
+            assertTrue("Item was not raised to the top level in " + strategy + ".", segment.levels().get(0).mightContain(id));
+            assertEquals("Inline raise must not put items on the file level in " + strategy + ".",
+                    filePuts, cache.stats().getLevels().get(2).getPutCount());
+            assertEquals("Items were lost by the inline raise in " + strategy + ".", size - 1, cache.size());
+            cache.close();
+        }
+
+        cacheLevels.remove(Level.FILE);
+        Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.RANDOM, cacheLevels, settings);
+        cache.put(new TestCacheData(0, "testCashData0"));
+        CompletableFuture<Cacheable> miss = cache.getAsync(LEVEL_MAX_SIZE);
+        assertTrue("Miss of the memory levels was not completed inline.", miss.isDone());
+        assertNull(miss.get());
+        assertTrue("Miss of the memory levels was run by the executor.", tasks.isEmpty());
+        assertEquals("Miss must be counted once.", 1, cache.stats().getMissCount());
+        cache.close();
+    }
+
+    @Test
+    public void testWeightedCapacity() throws Exception {
+        CacheSettings settings = new CacheSettings();
+        settings.setWeigher(new Weigher() {
+            @Override
+            public int weigh(Cacheable cacheable) {
+                return ((TestCacheData) cacheable).getObject().length();
+            }
+        });
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, 1000);     // characters of the payloads
+        cacheLevels.put(Level.OFF_HEAP, 100_000); // bytes of the serialized items
+        char[] heavy = new char[5000];
+        Arrays.fill(heavy, 'x');
+        for (CacheStrategy strategy : CacheStrategy.values()) {
+            Cache cache = CacheFactory.getInstance().getCache(strategy, cacheLevels, settings);
+            CacheSegment segment = cache.segmentFor(0);
+            List<TestCacheData> items = new ArrayList<>();
+            for (long id = 0; id < 100; id++) {
+                char[] payload = new char[10 + (int) (id % 10) * 20];
+                Arrays.fill(payload, (char) ('a' + id % 26));
+                TestCacheData item = new TestCacheData(id, new String(payload));
+                items.add(item);
+                cache.put(item);
+                assertTrue("Memory level is overweight in " + strategy + ".", segment.levels().get(0).weight() <= 1000);
+            }
+            cache.put(new TestCacheData(100, new String(heavy)));
+            assertTrue("Memory level is overweight in " + strategy + ".", segment.levels().get(0).weight() <= 1000);
+            assertTrue("Cache is overweight in " + strategy + ".", cache.weight() <= cache.maxSize());
+            if (strategy != CacheStrategy.RANDOM) { // the random strategy loses items displaced from the chosen level
+                assertEquals("Item heavier than the memory level was lost.", new String(heavy), ((TestCacheData) cache.get(100)).getObject());
+                for (TestCacheData item : items) {
+                    assertEquals("Item was lost in " + strategy + ".", item, cache.get(item.getId()));
+                }
+            }
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        CacheSettings settings = new CacheSettings();
+        settings.setStatsMBeanName("testStats");
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE);
+        Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+        for (long id = 0; id < LEVEL_MAX_SIZE + 5; id++) {
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        assertEquals(new TestCacheData(0, "testCashData0"), cache.get(0)); // found on the file level and promoted
+        assertNull(cache.get(LEVEL_MAX_SIZE * 10));
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(2, stats.getLevels().size());
+        LevelStats memory = stats.getLevels().get(0);
+        LevelStats file = stats.getLevels().get(1);
+        assertEquals(LEVEL_MAX_SIZE + 6, memory.getPutCount());
+        assertEquals(6, memory.getDemotionCount());
+        assertEquals(0, memory.getEvictionCount());
+        assertEquals(2, memory.getMissCount());
+        assertEquals(1, file.getHitCount());
+        assertEquals(1, file.getPromotionCount());
+        assertEquals(6, file.getPutCount());
+        assertEquals(memory.getPutCount(), memory.getPutLatency().getCount());
+        assertTrue(file.getGetLatency().getMaxNanos() >= file.getGetLatency().getMedianNanos());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("ru.elomonosov.cache:type=Cache,name=\"testStats\"");
+        assertEquals(1L, server.getAttribute(name, "HitCount"));
+        assertEquals(2, ((CompositeData[]) server.getAttribute(name, "Levels")).length);
+        cache.close();
+        assertFalse("MBean was not unregistered by close.", server.isRegistered(name));
+
+        for (long nanos : new long[]{0, 3, 4, 7, 8, 1000, 123_456_789, Long.MAX_VALUE >> 1}) {
+            int bucket = LatencyStats.bucketOf(nanos);
+            assertTrue(nanos <= LatencyStats.upperBoundOf(bucket));
+            assertTrue((bucket == 0) || (nanos > LatencyStats.upperBoundOf(bucket - 1)));
+        }
+    }
+
+    @Test
+    public void testTrace() throws Exception {
+        CacheSettings settings = new CacheSettings();
+        settings.setTraceBufferSize(16);
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+        for (long id = 0; id < 10; id++) {
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        cache.get(0);
+        cache.get(LEVEL_MAX_SIZE * 10);
+        cache.remove(1);
+
+        List<TraceEvent> events = cache.traceEvents();
+        assertEquals(13, events.size());
+        assertEquals(TraceEvent.Type.PUT, events.get(9).getType());
+        assertEquals(9, events.get(9).getId());
+        assertEquals(TraceEvent.Type.HIT, events.get(10).getType());
+        assertEquals(0, events.get(10).getLevel());
+        assertEquals(TraceEvent.Type.MISS, events.get(11).getType());
+        assertEquals(TraceEvent.Type.REMOVE, events.get(12).getType());
+
+        for (long id = 10; id < 40; id++) {
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        events = cache.traceEvents();
+        assertEquals("Eldest events were not overwritten.", 16, events.size());
+        assertEquals(39, events.get(events.size() - 1).getId());
+        for (int i = 1; i < events.size(); i++) {
+            assertEquals(events.get(i - 1).getSequence() + 1, events.get(i).getSequence());
+        }
+        assertTrue("Displaced items were not traced.", events.toString().contains("EVICT"));
+        cache.close();
+        Cache untraced = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels);
+        assertTrue(untraced.traceEvents().isEmpty());
+        untraced.close();
+    }
+
+    @Test
+    public void testHierarchy() throws Exception {
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE * 2);
+        long[] filePuts = new long[2];
+        for (Hierarchy hierarchy : Hierarchy.values()) {
+            CacheSettings settings = new CacheSettings();
+            settings.setHierarchy(hierarchy);
+            Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+            for (long id = 0; id < LEVEL_MAX_SIZE + 5; id++) {
+                cache.put(new TestCacheData(id, "testCashData" + id));
+            }
+            assertEquals(new TestCacheData(0, "testCashData0"), cache.get(0)); // raised from the file level
+            assertEquals("Copy must not be counted as an item.", LEVEL_MAX_SIZE + 5, cache.size());
+            for (long id = LEVEL_MAX_SIZE + 5; id < LEVEL_MAX_SIZE * 2 + 5; id++) { // item 0 is displaced again
+                cache.put(new TestCacheData(id, "testCashData" + id));
+            }
+            assertEquals(LEVEL_MAX_SIZE * 2 + 5, cache.size());
+            assertEquals(new TestCacheData(0, "testCashData0"), cache.get(0));
+            filePuts[hierarchy.ordinal()] = cache.stats().getLevels().get(1).getPutCount();
+
+            assertTrue(cache.remove(0));
+            assertNull("Copy of the removed item was found.", cache.get(0));
+            assertEquals(LEVEL_MAX_SIZE * 2 + 4, cache.size());
+            cache.close();
+        }
+        assertEquals("Displaced item with the copy must not be written again.",
+                filePuts[Hierarchy.EXCLUSIVE.ordinal()] - 1, filePuts[Hierarchy.INCLUSIVE.ordinal()]);
+
+        CacheSettings settings = new CacheSettings();
+        settings.setPromotionThreshold(2);
+        Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+        for (long id = 0; id < LEVEL_MAX_SIZE + 5; id++) {
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        assertEquals(new TestCacheData(0, "testCashData0"), cache.get(0));
+        assertEquals("Single hit must not raise the item.", 0, cache.stats().getLevels().get(1).getPromotionCount());
+        assertEquals(new TestCacheData(0, "testCashData0"), cache.get(0));
+        assertEquals("Second hit must raise the item.", 1, cache.stats().getLevels().get(1).getPromotionCount());
+        cache.close();
+    }
+
+    @Test
+    public void testDiskAdmission() throws Exception {
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, LEVEL_MAX_SIZE);
+        cacheLevels.put(Level.FILE, LEVEL_MAX_SIZE * 2);
+        CacheSettings settings = new CacheSettings();
+        settings.setDiskAdmission(new FrequencyAdmissionPolicy());
+        Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+        for (long id = 0; id < LEVEL_MAX_SIZE; id++) {
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        for (long id = 0; id < 5; id++) {
+            cache.get(id);
+        }
+        for (long id = LEVEL_MAX_SIZE; id < LEVEL_MAX_SIZE * 2; id++) { // all items put before are displaced
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        LevelStats memory = cache.stats().getLevels().get(0);
+        assertEquals("Only the read items must be written to the file level.", 5, cache.stats().getLevels().get(1).getPutCount());
+        assertEquals(LEVEL_MAX_SIZE - 5, memory.getEvictionCount());
+        assertEquals(LEVEL_MAX_SIZE + 5, cache.size());
+        assertEquals(new TestCacheData(0, "testCashData0"), cache.get(0));
+        assertNull(cache.get(5));
+        cache.close();
+
+        settings.setDiskAdmission(new GhostAdmissionPolicy());
+        cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+        for (long id = 0; id < LEVEL_MAX_SIZE * 2; id++) {
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        assertEquals("Items displaced for the first time must not be written.", LEVEL_MAX_SIZE, cache.size());
+        for (long id = 0; id < LEVEL_MAX_SIZE + 10; id++) { // items 0..9 are displaced for the second time
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        assertEquals(LEVEL_MAX_SIZE + 10, cache.size());
+        assertEquals(new TestCacheData(9, "testCashData9"), cache.get(9));
+        cache.close();
+    }
+
+    @Test
+    public void testBufferedReads() throws Exception {
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, 3);
+        cacheLevels.put(Level.FILE, 10);
+        Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels);
+        CacheSegment segment = cache.segmentFor(0);
+        for (long id = 0; id < 3; id++) {
+            cache.put(new TestCacheData(id, "testCashData" + id));
+        }
+        assertEquals(new TestCacheData(0, "testCashData0"), cache.get(0)); // hit on the top level is only recorded
+        assertTrue("Hit must not reorder the level under the shared lock.", segment.levels().get(0).getByStrategy().getId() == 0);
+        cache.put(new TestCacheData(3, "testCashData3"));                  // writer replays the hit first
+        assertTrue("Recorded hit must make the item the newest one.", segment.levels().get(0).mightContain(0));
+        assertFalse("The eldest item must be displaced.", segment.levels().get(0).mightContain(1));
+        assertEquals(1, cache.stats().getLevels().get(0).getHitCount());
+        for (int i = 0; i < 1000; i++) { // full buffer is replayed by the reader or overwritten
+            assertNotNull(cache.get(i % 2));
+        }
+        cache.put(new TestCacheData(4, "testCashData4"));
+        assertFalse("Item without hits must be displaced.", segment.levels().get(0).mightContain(3));
+        assertTrue(segment.levels().get(0).mightContain(0) && segment.levels().get(0).mightContain(1));
+        cache.close();
+    }
+
+    /**
+     * Puts and gets random items by several threads, every thread fails if it gets another item than it asked.
+     */
+    private static void accessConcurrently(final Cache cache, int threadCount) throws InterruptedException {
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            long id = random.nextInt(LEVEL_MAX_SIZE * 4);
+                            if (random.nextBoolean()) {
+                                cache.put(new TestCacheData(id, "testCashData" + id));
+                            } else {
+                                Cacheable cacheable = cache.get(id);
+                                if ((cacheable != null) && (cacheable.getId() != id)) {
+                                    throw new AssertionError("Got item " + cacheable.getId() + " instead of " + id);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("Errors in concurrent access: " + errors, 0, errors.size());
+    }
+
+    /**
+     * @return id of the item that is kept by the second level of the segment and is not kept by the top one.
+     */
+    private static long offHeapId(CacheSegment segment) throws Exception {
+        for (long id = 0; id < LEVEL_MAX_SIZE * 2; id++) {
+            if (segment.levels().get(1).mightContain(id) && !segment.levels().get(0).mightContain(id)) {
+                return id;
+            }
+        }
+        throw new AssertionError("No item on the off-heap level.");
+    }
+}
@@ -0,0 +1,161 @@
+package ru.elomonosov.cache;
+
+import org.junit.Test;
+import ru.elomonosov.level.Level;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ClusterCacheTest {
+
+    private static final int ITEM_COUNT = 600;
+
+    private static Cache node() throws Exception {
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, 100);
+        cacheLevels.put(Level.FILE, 1000);
+        return CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, 2);
+    }
+
+    private static Map<String, Cache> nodes(int count) throws Exception {
+        Map<String, Cache> result = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            result.put("node" + i, node());
+        }
+        return result;
+    }
+
+    private static void putItems(ClusterCache cache) throws Exception {
+        List<Cacheable> cacheables = new ArrayList<>();
+        for (long id = 0; id < ITEM_COUNT; id++) {
+            cacheables.add(new TestCacheData(id, "testCacheData" + id));
+        }
+        cache.putAll(cacheables);
+    }
+
+    private static void assertAllFound(ClusterCache cache) throws Exception {
+        for (long id = 0; id < ITEM_COUNT; id++) {
+            assertEquals("Item was lost by the cluster.", new TestCacheData(id, "testCacheData" + id), cache.get(id));
+        }
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        Map<String, Cache> nodes = nodes(3);
+        ClusterCache cache = CacheFactory.getInstance().getClusterCache(nodes, 1, ClusterCache.DEFAULT_VIRTUAL_NODES);
+        try {
+            putItems(cache);
+            assertEquals(ITEM_COUNT, cache.size());
+            for (Cache node : nodes.values()) {
+                assertTrue("Items must be spread evenly between nodes.", node.size() > ITEM_COUNT / 6);
+            }
+            for (long id = 0; id < ITEM_COUNT; id += 7) {
+                assertNotNull("Item must be kept by its node.", nodes.get(cache.nodesOf(id).get(0)).get(id));
+            }
+            assertTrue(cache.remove(5));
+            assertNull(cache.get(5));
+            long[] ids = {1, 2, 3, 4, 5, ITEM_COUNT};
+            assertEquals("Absent items must not be found.", 4, cache.getAll(ids).size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testRebalance() throws Exception {
+        ClusterCache cache = CacheFactory.getInstance().getClusterCache(nodes(3), 1, ClusterCache.DEFAULT_VIRTUAL_NODES);
+        try {
+            putItems(cache);
+            Map<Long, String> before = new HashMap<>();
+            for (long id = 0; id < ITEM_COUNT; id++) {
+                before.put(id, cache.nodesOf(id).get(0));
+            }
+
+            Cache added = node();
+            cache.addNode("node3", added);
+            assertTrue("Added node must take items of its arcs.", added.size() > 0);
+            assertEquals("Items must not be lost or duplicated by rebalance.", ITEM_COUNT, cache.size());
+            for (long id = 0; id < ITEM_COUNT; id++) {
+                String node = cache.nodesOf(id).get(0);
+                assertTrue("Only items of the added node must move.", node.equals("node3") || node.equals(before.get(id)));
+            }
+            assertAllFound(cache);
+
+            cache.removeNode("node0");
+            assertEquals(Arrays.asList("node1", "node2", "node3"), cache.nodes());
+            assertEquals(ITEM_COUNT, cache.size());
+            assertAllFound(cache);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testRebalanceKeepsOtherItems() throws Exception {
+        Map<String, Cache> nodes = nodes(3);
+        ClusterCache cache = CacheFactory.getInstance().getClusterCache(nodes, 1, ClusterCache.DEFAULT_VIRTUAL_NODES);
+        try {
+            putItems(cache);
+            Map<Long, String> markers = new HashMap<>();
+            for (long id = ITEM_COUNT; id < ITEM_COUNT + 50; id++) {
+                String node = cache.nodesOf(id).get(0);
+                nodes.get(node).put(new TestCacheData(id, "marker" + id), 300, 0); // the state that a new put loses
+                markers.put(id, node);
+            }
+
+            cache.addNode("node3", node());
+            int kept = 0;
+            for (Map.Entry<Long, String> marker : markers.entrySet()) {
+                long id = marker.getKey();
+                if (cache.nodesOf(id).get(0).equals(marker.getValue())) {
+                    assertEquals("Item of the unaffected arc must stay on its node.", new TestCacheData(id, "marker" + id),
+                            nodes.get(marker.getValue()).get(id));
+                    kept++;
+                }
+            }
+            assertTrue("Most items must stay on their nodes.", kept > markers.size() / 2);
+            assertEquals(ITEM_COUNT + markers.size(), cache.size());
+
+            Thread.sleep(400);
+            for (Map.Entry<Long, String> marker : markers.entrySet()) {
+                if (cache.nodesOf(marker.getKey()).get(0).equals(marker.getValue())) {
+                    assertNull("Item of the unaffected arc must keep its expiration.", cache.get(marker.getKey()));
+                }
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testReplication() throws Exception {
+        Map<String, Cache> nodes = nodes(3);
+        ClusterCache cache = CacheFactory.getInstance().getClusterCache(nodes, 2, ClusterCache.DEFAULT_VIRTUAL_NODES);
+        try {
+            putItems(cache);
+            assertEquals("Every item must be kept by two nodes.", ITEM_COUNT * 2, cache.size());
+            int secondCopies = 0; // items found on their first node before the lost copy
+            for (long id = 0; id < ITEM_COUNT; id++) {
+                if (cache.nodesOf(id).get(1).equals("node1")) {
+                    secondCopies++;
+                }
+            }
+            nodes.get("node1").clear(); // node lost its items
+            long[] ids = new long[ITEM_COUNT];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i;
+            }
+            assertEquals("Items must be found on replicas.", ITEM_COUNT, cache.getAll(ids).size());
+            assertAllFound(cache);
+            assertEquals("Get must repair the lost copies on the first nodes.", ITEM_COUNT * 2 - secondCopies, cache.size());
+
+            cache.removeNode("node2");
+            assertEquals("Items of the removed node must be copied to the nodes that did not keep them.",
+                    ITEM_COUNT * 2 - secondCopies, cache.size());
+            assertAllFound(cache);
+        } finally {
+            cache.close();
+        }
+    }
+}
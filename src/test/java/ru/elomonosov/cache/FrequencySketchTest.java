@@ -0,0 +1,35 @@
+package ru.elomonosov.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void testFrequency() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(42);
+        }
+        assertEquals("Wrong frequency.", 5, sketch.frequency(42));
+        assertEquals("Item was not used.", 0, sketch.frequency(43));
+
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(42);
+        }
+        assertEquals("Counter was not saturated.", 15, sketch.frequency(42));
+    }
+
+    @Test
+    public void testAging() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(100);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(-1);
+        }
+        for (long id = 0; id < 1_000; id++) { // sample size is 10 * 100 accesses
+            sketch.increment(id);
+        }
+        assertTrue("Counters were not halved.", sketch.frequency(-1) < 8);
+    }
+}
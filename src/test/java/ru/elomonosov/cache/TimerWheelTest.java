@@ -0,0 +1,51 @@
+package ru.elomonosov.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    @Test
+    public void testAdvance() throws Exception {
+        TimerWheel wheel = new TimerWheel(0);
+        wheel.schedule(1, 0, 100, 0);
+        wheel.schedule(2, 0, 10_000, 0);          // second wheel
+        wheel.schedule(3, 0, 1_000_000, 0);       // third wheel
+        wheel.schedule(4, 0, 2_000_000_000L, 0);  // overflow bucket
+        wheel.schedule(5, 0, 100, 0);
+        wheel.cancel(5);
+        assertEquals("Wrong quantity of timers.", 4, wheel.size());
+
+        assertEquals("Item expired too early.", 0, wheel.advance(99).length);
+        assertFalse("Item expired too early.", wheel.isExpired(1, 99));
+        assertTrue("Item was not expired.", wheel.isExpired(1, 100));
+        assertArrayEquals("Wrong expired items.", new long[]{1}, wheel.advance(200));
+        assertArrayEquals("Wrong expired items.", new long[0], wheel.advance(9_999));
+        assertArrayEquals("Wrong expired items.", new long[]{2}, wheel.advance(10_100));
+        assertArrayEquals("Wrong expired items.", new long[]{3}, wheel.advance(1_000_100));
+        assertArrayEquals("Wrong expired items.", new long[0], wheel.advance(1_999_999_999L));
+        assertArrayEquals("Wrong expired items.", new long[]{4}, wheel.advance(2_000_000_100L));
+        assertEquals("Timers were not removed.", 0, wheel.size());
+    }
+
+    @Test
+    public void testTouch() throws Exception {
+        TimerWheel wheel = new TimerWheel(0);
+        wheel.schedule(1, 0, 0, 100);   // expires by idleness only
+        wheel.schedule(2, 0, 250, 100); // expires by idleness or by age
+        for (long now = 50; now <= 300; now += 50) {
+            wheel.touch(1, now);
+            wheel.touch(2, now);
+            if (now == 250) {
+                assertTrue("Item was prolonged after its time to live.", wheel.isExpired(2, now));
+            }
+            long[] expired = wheel.advance(now); // the wheel turns by 64 milliseconds
+            assertEquals("Wrong expired items at " + now + ": " + Arrays.toString(expired), (now < 300) ? 0 : 1, expired.length);
+        }
+        assertTrue("Item was not prolonged.", wheel.size() == 1 && !wheel.isExpired(1, 300));
+        assertArrayEquals("Idle item was not expired.", new long[]{1}, wheel.advance(500));
+    }
+}
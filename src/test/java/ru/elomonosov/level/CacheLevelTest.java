@@ -23,6 +23,8 @@ public class CacheLevelTest {
         // add CacheLevel implementation to cacheLevelMap to test it
         cacheLevelMap.put(new InMemoryLevel(CacheStrategy.LEAST_RECENTLY_USED, 500, 0), 0L);
         cacheLevelMap.put(new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 500, 1), 0L);
+        cacheLevelMap.put(new OffHeapLevel(CacheStrategy.LEAST_RECENTLY_USED, 500, 2), 0L);
+        cacheLevelMap.put(new MappedFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 500, 3), 0L);
     }
 
     @AfterClass
@@ -129,8 +131,10 @@ public class CacheLevelTest {
             CacheLevel cacheLevel = iterator.next();
             long timeBefore = System.nanoTime();
             int sizeBeforeRemove = cacheLevel.size();
+            assertTrue("Stored item is shown as absent.", cacheLevel.mightContain(1));
             cacheLevel.pull(1);
             assertEquals("Item was not removed.", sizeBeforeRemove - 1, cacheLevel.size());
+            assertFalse("Removed item is shown as present.", cacheLevel.mightContain(1));
             long resultTime = System.nanoTime() - timeBefore;
             long oldResult = cacheLevelMap.get(cacheLevel);
             cacheLevelMap.put(cacheLevel, oldResult + resultTime);
@@ -154,4 +158,27 @@ public class CacheLevelTest {
             cacheLevelMap.put(cacheLevel, oldResult + resultTime);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testOffHeapSlabs() throws Exception {
+        OffHeapLevel level = new OffHeapLevel(CacheStrategy.LEAST_RECENTLY_USED, 10, 0);
+        StringBuilder payload = new StringBuilder();
+        for (int id = 0; id < 10; id++) { // every item takes its own size class
+            payload.setLength(0);
+            for (int i = 0; i < (100 << id); i++) {
+                payload.append('x');
+            }
+            level.put(new TestCacheData(id, payload.toString()));
+        }
+        assertTrue("Small level must not pin a slab per size class: " + level.allocated(),
+                level.allocated() < OffHeapLevel.SLAB_SIZE);
+        for (long id = 0; id < 10; id++) {
+            assertEquals(100 << id, ((TestCacheData) level.get(id)).getObject().length());
+        }
+        for (long id = 0; id < 10; id++) {
+            level.pull(id);
+        }
+        assertEquals("Free slabs must be released.", 0, level.allocated());
+        level.close();
+    }
+}
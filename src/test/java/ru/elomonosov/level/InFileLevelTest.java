@@ -0,0 +1,224 @@
+package ru.elomonosov.level;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.elomonosov.cache.CacheStrategy;
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.cache.TestCacheData;
+import ru.elomonosov.serializer.BinarySerializer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InFileLevelTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompaction() throws Exception {
+        InFileLevel level = new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 1000, 0, new BinarySerializer(), 4096);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                level.put(new TestCacheData(i, "testCacheData" + i));
+            }
+            int segmentCount = level.segmentCount();
+            assertTrue("Items must be written to several segments.", segmentCount > 1);
+
+            for (int i = 0; i < 1000; i++) {
+                if (i % 10 != 0) {
+                    level.pull(i);
+                }
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while ((level.segmentCount() >= segmentCount / 2) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            assertTrue("Segments with dead items were not compacted.", level.segmentCount() < segmentCount / 2);
+
+            assertEquals("Wrong level size after compaction.", 100, level.size());
+            for (int i = 0; i < 1000; i += 10) {
+                assertEquals("Item was lost by compaction.", new TestCacheData(i, "testCacheData" + i), level.get(i));
+            }
+        } finally {
+            level.clear();
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsRecordOrder() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("level");
+        InFileLevel level = new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 1000, 0, new BinarySerializer(), directory, 4096);
+        Path copy = folder.newFolder("copy").toPath();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                level.put(new TestCacheData(i, "testCacheData" + i));
+            }
+            int segmentCount = level.segmentCount();
+            for (int i = 0; i < 1000; i++) {
+                if (i % 10 != 0) {
+                    level.pull(i);
+                } else if (i % 20 == 0) {
+                    level.put(new TestCacheData(i, "updated" + i)); // puts and gets go on while segments are copied
+                }
+                if (i % 30 == 0) {
+                    assertNotNull("Item was lost by compaction.", level.get(i));
+                }
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while ((level.segmentCount() >= segmentCount / 2) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            assertTrue("Segments with dead items were not compacted.", level.segmentCount() < segmentCount / 2);
+            Thread.sleep(100);
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+                for (Path path : stream) { // segments of the level that was not closed
+                    Files.copy(path, copy.resolve(path.getFileName()));
+                }
+            }
+        } finally {
+            level.close();
+        }
+
+        InFileLevel recovered = new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 1000, 0, new BinarySerializer(), copy, 4096);
+        try {
+            assertEquals("Wrong level size after recovery.", 100, recovered.size());
+            for (int i = 0; i < 1000; i += 10) {
+                String value = (i % 20 == 0) ? "updated" + i : "testCacheData" + i;
+                assertEquals("Compacted record replaced the newer one.", new TestCacheData(i, value), recovered.get(i));
+            }
+        } finally {
+            recovered.clear();
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("level");
+        InFileLevel level = new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 100, 0, new BinarySerializer(), directory, 4096);
+        for (int i = 0; i < 100; i++) {
+            level.put(new TestCacheData(i, "testCacheData" + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            level.get(i); // items 0..9 become the newest ones
+        }
+        level.pull(50);
+        assertEquals("Wrong quantity of removed items.", 3, level.removeAll(new long[]{60, 61, 62, 1000}));
+        level.close();
+
+        InFileLevel reopened = new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 100, 0, new BinarySerializer(), directory, 4096);
+        try {
+            assertEquals("Wrong level size after reopen.", 96, reopened.size());
+            assertNull("Removed item was restored.", reopened.get(50));
+            assertNull("Removed item was restored.", reopened.get(61));
+            assertEquals("Order of items was not restored.", new TestCacheData(10, "testCacheData10"), reopened.pullByStrategy());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("Item was lost by reopen.", new TestCacheData(i, "testCacheData" + i), reopened.get(i));
+            }
+        } finally {
+            reopened.clear();
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testRecoveryWithoutManifest() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("level");
+        InFileLevel level = new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 200, 0, new BinarySerializer(), directory, 4096);
+        Path copy = folder.newFolder("copy").toPath();
+        try {
+            for (int i = 0; i < 200; i++) {
+                level.put(new TestCacheData(i, "testCacheData" + i));
+            }
+            for (int i = 0; i < 200; i += 4) {
+                level.pull(i);
+            }
+            level.put(new TestCacheData(1, "updated"));
+
+            Path last = null;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+                for (Path path : stream) { // segments of the level that was not closed
+                    Path target = copy.resolve(path.getFileName());
+                    Files.copy(path, target);
+                    if ((last == null) || (target.compareTo(last) > 0)) {
+                        last = target;
+                    }
+                }
+            }
+            try (FileChannel channel = FileChannel.open(last, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 0, 0, 0, 0, 7, 0, 0, 0})); // incomplete record
+            }
+        } finally {
+            level.close();
+        }
+
+        InFileLevel recovered = new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 200, 0, new BinarySerializer(), copy, 4096);
+        try {
+            assertEquals("Wrong level size after recovery.", 150, recovered.size());
+            assertEquals("Updated item was not recovered.", new TestCacheData(1, "updated"), recovered.get(1));
+            for (int i = 0; i < 200; i++) {
+                if (i % 4 == 0) {
+                    assertNull("Removed item was recovered.", recovered.get(i));
+                } else if (i != 1) {
+                    assertEquals("Item was lost by recovery.", new TestCacheData(i, "testCacheData" + i), recovered.get(i));
+                }
+            }
+            recovered.put(new TestCacheData(1000, "testCacheData1000"));
+            assertEquals("Item was not written after recovery.", new TestCacheData(1000, "testCacheData1000"), recovered.get(1000));
+        } finally {
+            recovered.clear();
+            recovered.close();
+        }
+    }
+
+    @Test(expected = CacheLevelException.class)
+    public void testDirectoryIsLocked() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("level");
+        InFileLevel level = new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 10, 0, new BinarySerializer(), directory);
+        try {
+            new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 10, 0, new BinarySerializer(), directory);
+        } finally {
+            level.close();
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        InFileLevel level = new InFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 1000, 0, new BinarySerializer(), 4096);
+        try {
+            List<Cacheable> items = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                items.add(new TestCacheData(i, "testCacheData" + i));
+            }
+            level.putAll(items);
+            level.putAll(items.subList(0, 100)); // rewritten items
+            assertEquals("Wrong level size after batch put.", 500, level.size());
+            assertTrue("Items must be written to several segments.", level.segmentCount() > 1);
+
+            long[] ids = new long[600];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = ids.length - i - 1;
+            }
+            Map<Long, Cacheable> found = level.getAll(ids);
+            assertEquals("Wrong quantity of found items.", 500, found.size());
+            for (int i = 0; i < 500; i++) {
+                assertEquals("Cannot get correct item.", items.get(i), found.get((long) i));
+            }
+            assertEquals("Order of items was not updated.", items.get(499), level.getByStrategy());
+        } finally {
+            level.clear();
+        }
+    }
+}
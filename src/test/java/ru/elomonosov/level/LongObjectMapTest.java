@@ -0,0 +1,70 @@
+package ru.elomonosov.level;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LongObjectMapTest {
+
+    @Test
+    public void testSameAsLinkedHashMap() throws Exception {
+        for (boolean accessOrder : new boolean[]{true, false}) {
+            LongObjectMap<String> map = new LongObjectMap<>(4, accessOrder);
+            LinkedHashMap<Long, String> expected = new LinkedHashMap<>(16, 0.75F, accessOrder);
+            Random random = new Random(accessOrder ? 1 : 2);
+
+            for (int i = 0; i < 100_000; i++) {
+                long key = random.nextInt(2_000) * 0x1_0000_0001L; // keys with the same low bits
+                switch (random.nextInt(4)) {
+                    case 0:
+                    case 1: {
+                        assertEquals("Wrong previous value.", expected.put(key, "value" + i), map.put(key, "value" + i));
+                        break;
+                    }
+                    case 2: {
+                        assertEquals("Wrong value.", expected.get(key), map.get(key));
+                        break;
+                    }
+                    case 3: {
+                        assertEquals("Wrong removed value.", expected.remove(key), map.remove(key));
+                        break;
+                    }
+                }
+                assertEquals("Wrong size.", expected.size(), map.size());
+            }
+
+            Iterator<Map.Entry<Long, String>> iterator = expected.entrySet().iterator();
+            for (int position = map.eldest(); position != LongHashIndex.NIL; position = map.newerThan(position)) {
+                Map.Entry<Long, String> entry = iterator.next();
+                assertEquals("Wrong order of keys.", (long) entry.getKey(), map.keyAt(position));
+                assertEquals("Wrong order of values.", entry.getValue(), map.valueAt(position));
+            }
+            assertFalse("Not all entries were iterated.", iterator.hasNext());
+
+            map.clear();
+            assertTrue("Map was not cleared.", map.isEmpty());
+            assertNull("Cleared map contains value.", map.get(0));
+        }
+    }
+
+    @Test
+    public void testRandomPosition() throws Exception {
+        LongObjectMap<String> map = new LongObjectMap<>(4, false);
+        assertEquals("Empty map has random position.", LongHashIndex.NIL, map.randomPosition());
+        for (long key = 0; key < 100; key++) {
+            map.put(key, "value" + key);
+        }
+        for (long key = 0; key < 100; key += 2) {
+            map.remove(key);
+        }
+        Set<Long> chosen = new HashSet<>();
+        for (int i = 0; i < 10_000; i++) {
+            int position = map.randomPosition();
+            assertTrue("Random position is out of entries.", (position >= 0) && (position < map.size()));
+            chosen.add(map.keyAt(position));
+        }
+        assertEquals("Not all entries were chosen.", 50, chosen.size());
+    }
+}
@@ -0,0 +1,31 @@
+package ru.elomonosov.level;
+
+import org.junit.Test;
+import ru.elomonosov.cache.CacheStrategy;
+import ru.elomonosov.cache.TestCacheData;
+import ru.elomonosov.serializer.BinarySerializer;
+
+import static org.junit.Assert.*;
+
+public class MappedFileLevelTest {
+
+    @Test
+    public void testChunkReuse() throws Exception {
+        MappedFileLevel level = new MappedFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 100, 0, new BinarySerializer(), 4096);
+        try {
+            for (long i = Long.MIN_VALUE; i < Long.MIN_VALUE + 10_000; i++) {
+                if (level.isFull()) {
+                    level.pullByStrategy();
+                }
+                level.put(new TestCacheData(i, "testCacheData" + i));
+            }
+            assertEquals("Wrong level size.", 100, level.size());
+            assertTrue("Space of the removed items was not reused, file size is " + level.fileSize(), level.fileSize() < 100 * 4096);
+            for (long i = Long.MIN_VALUE + 9_900; i < Long.MIN_VALUE + 10_000; i++) {
+                assertEquals("Item was lost.", new TestCacheData(i, "testCacheData" + i), level.get(i));
+            }
+        } finally {
+            level.clear();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ru.elomonosov.level;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.elomonosov.cache.*;
+import ru.elomonosov.serializer.BinarySerializer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RemoteLevelTest {
+
+    private static final int SERVER_SIZE = 1000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private CacheServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new CacheServer(CacheStrategy.LEAST_RECENTLY_USED, Level.MEMORY, SERVER_SIZE, false);
+        server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testSharedItems() throws Exception {
+        RemoteLevel first = new RemoteLevel(server.getAddress(), 0, new BinarySerializer(), 2, 1, 0);
+        RemoteLevel second = new RemoteLevel(server.getAddress(), 0, new BinarySerializer(), 2, 1, 0);
+        try {
+            assertEquals("Level must report the capacity of the server.", SERVER_SIZE, first.maxSize());
+            first.put(new TestCacheData(1, "testCacheData1"));
+            assertEquals("Item put by one client must be found by another.", new TestCacheData(1, "testCacheData1"), second.get(1));
+
+            List<Cacheable> cacheables = new ArrayList<>();
+            for (int i = 2; i < 2 + RemoteLevel.CHUNK_SIZE * 3; i++) { // several pipelined chunks
+                cacheables.add(new TestCacheData(i, "testCacheData" + i));
+            }
+            first.putAll(cacheables);
+            assertEquals("Wrong level size.", 1 + cacheables.size(), second.size());
+
+            long[] ids = new long[RemoteLevel.CHUNK_SIZE + 44];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i * 2L;
+            }
+            Map<Long, Cacheable> found = second.getAll(ids);
+            assertEquals("Wrong quantity of found items.", ids.length - 1, found.size()); // item 0 is absent
+            assertEquals("Item was changed by the server.", new TestCacheData(100, "testCacheData100"), found.get(100L));
+
+            assertEquals("Wrong quantity of removed items.", ids.length - 1, first.removeAll(ids));
+            assertNull("Removed item was found.", second.get(2));
+            assertEquals(new TestCacheData(3, "testCacheData3"), second.pull(3));
+            assertNull("Pulled item was found.", first.get(3));
+            assertNull("Items of another client must not be displaced.", second.pullByStrategy());
+            assertEquals("The eldest item of the client must be displaced.", new TestCacheData(1, "testCacheData1"), first.pullByStrategy());
+
+            second.put(new TestCacheData(0, "testCacheData0"));
+            first.clear();
+            assertEquals("Clear must remove the items of the client only.", 1, second.size());
+            assertEquals(new TestCacheData(0, "testCacheData0"), first.get(0));
+            second.clear();
+            assertEquals("Level must be empty after clear.", 0, second.size());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testServerDisplacement() throws Exception {
+        RemoteLevel level = new RemoteLevel(server.getAddress(), 0, new BinarySerializer(), 1, 3, 2);
+        try {
+            assertEquals("Level must report its share of the server capacity.", SERVER_SIZE / 3, level.maxSize());
+            for (int i = 0; i < SERVER_SIZE + 100; i++) {
+                level.put(new TestCacheData(i, "testCacheData" + i));
+            }
+            assertTrue("Server must be full.", level.isFull());
+            assertNull("The eldest item must be displaced by the server.", level.get(0));
+            assertEquals(new TestCacheData(SERVER_SIZE + 99, "testCacheData" + (SERVER_SIZE + 99)), level.get(SERVER_SIZE + 99));
+        } finally {
+            level.close();
+        }
+    }
+
+    @Test
+    public void testClientOwnsItemsAfterRestart() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("server");
+        CacheServer persistent = new CacheServer(CacheStrategy.LEAST_RECENTLY_USED, SERVER_SIZE, false, directory);
+        persistent.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        RemoteLevel level = new RemoteLevel(persistent.getAddress(), 0, new BinarySerializer(), 1, 1, 0, "cache/segment0");
+        try {
+            for (int i = 0; i < 10; i++) {
+                level.put(new TestCacheData(i, "testCacheData" + i));
+            }
+        } finally {
+            level.close();
+            persistent.close();
+        }
+
+        persistent = new CacheServer(CacheStrategy.LEAST_RECENTLY_USED, SERVER_SIZE, false, directory);
+        persistent.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        RemoteLevel other = new RemoteLevel(persistent.getAddress(), 0, new BinarySerializer(), 1, 1, 0, "cache/segment1");
+        RemoteLevel restarted = new RemoteLevel(persistent.getAddress(), 0, new BinarySerializer(), 1, 1, 0, "cache/segment0");
+        try {
+            assertEquals(new TestCacheData(5, "testCacheData5"), other.get(5));
+            assertNull("Items of another client must not be displaced.", other.pullByStrategy());
+            other.clear();
+            assertEquals("Clear must keep the items of another client.", 10, restarted.size());
+
+            assertNotNull("Client must own its items after the restart.", restarted.pullByStrategy());
+            restarted.clear();
+            assertEquals("Clear must remove the items put before the restart.", 0, restarted.size());
+        } finally {
+            other.close();
+            restarted.close();
+            persistent.close();
+        }
+    }
+
+    @Test
+    public void testCacheWithRemoteLevel() throws Exception {
+        LinkedHashMap<Level, Integer> cacheLevels = new LinkedHashMap<>();
+        cacheLevels.put(Level.MEMORY, 10);
+        cacheLevels.put(Level.REMOTE, SERVER_SIZE);
+        CacheSettings settings = new CacheSettings();
+        settings.setConcurrencyLevel(2);
+        settings.setRemoteAddress(server.getAddress());
+        Cache cache = CacheFactory.getInstance().getCache(CacheStrategy.LEAST_RECENTLY_USED, cacheLevels, settings);
+        try {
+            for (long id = 0; id < 100; id++) {
+                cache.put(new TestCacheData(id, "testCacheData" + id));
+            }
+            assertEquals(100, cache.size());
+            assertEquals("Sizes of the segments must sum to the server capacity.", 10 + SERVER_SIZE, cache.maxSize());
+            assertEquals("Displaced item must be read from the server.", new TestCacheData(0, "testCacheData0"), cache.get(0));
+
+            RemoteLevel other = new RemoteLevel(server.getAddress(), 0, new BinarySerializer(), 1, 1, 0);
+            try {
+                other.put(new TestCacheData(1000, "testCacheData1000"));
+                cache.clear();
+                assertEquals("Clear of the cache must keep the items of other clients.", 1, other.size());
+            } finally {
+                other.close();
+            }
+        } finally {
+            cache.close();
+        }
+    }
+}
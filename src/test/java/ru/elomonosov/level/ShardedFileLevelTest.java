@@ -0,0 +1,119 @@
+package ru.elomonosov.level;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.elomonosov.cache.CacheStrategy;
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.cache.TestCacheData;
+import ru.elomonosov.serializer.BinarySerializer;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ShardedFileLevelTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private List<Path> roots(int count) throws Exception {
+        List<Path> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(folder.newFolder("disk" + i).toPath());
+        }
+        return result;
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception {
+        List<Path> roots = roots(3);
+        ShardedFileLevel level = new ShardedFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 1000, 0, new BinarySerializer(), roots, false, false);
+        try {
+            List<Cacheable> cacheables = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                cacheables.add(new TestCacheData(i, "testCacheData" + i));
+            }
+            level.putAll(cacheables);
+            assertEquals("Wrong level size.", 300, level.size());
+            for (Path root : roots) {
+                File[] files = root.toFile().listFiles();
+                assertTrue("Every shard must keep items in its directory.", (files != null) && (files.length == 1));
+            }
+
+            long[] ids = new long[100];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i * 3;
+            }
+            Map<Long, Cacheable> found = level.getAll(ids);
+            assertEquals("Items of all shards must be found.", ids.length, found.size());
+            for (long id : ids) {
+                assertEquals("Item was changed by the level.", new TestCacheData(id, "testCacheData" + id), found.get(id));
+            }
+
+            assertEquals("Wrong quantity of removed items.", ids.length, level.removeAll(ids));
+            assertNull("Removed item was found.", level.get(3));
+            assertEquals("Item was lost.", new TestCacheData(4, "testCacheData4"), level.get(4));
+            assertNotNull("Item must be displaced from the level.", level.pullByStrategy());
+            assertEquals("Wrong level size.", 199, level.size());
+        } finally {
+            level.clear();
+            level.close();
+        }
+        for (Path root : roots) {
+            File[] files = root.toFile().listFiles();
+            assertTrue("Temporary directories of shards must be deleted.", (files != null) && (files.length == 0));
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() throws Exception {
+        ShardedFileLevel level = new ShardedFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 1000, 0, new BinarySerializer(), roots(4), false, false);
+        try {
+            for (int i = 0; i < 60; i++) {
+                level.put(new TestCacheData(i, "testCacheData" + i));
+            }
+            level.get(0);
+            level.get(1);
+            for (long id = 2; id < 60; id++) {
+                assertEquals("Items must be displaced in the order of the level, not of one shard.", id, level.pullByStrategy().getId());
+            }
+            assertEquals(0, level.pullByStrategy().getId());
+            assertEquals(1, level.pullByStrategy().getId());
+            assertNull("Empty level has no items to displace.", level.pullByStrategy());
+        } finally {
+            level.clear();
+            level.close();
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        List<Path> roots = roots(2);
+        ShardedFileLevel level = new ShardedFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 100, 0, new BinarySerializer(), roots, true, false);
+        for (int i = 0; i < 100; i++) {
+            level.put(new TestCacheData(i, "testCacheData" + i));
+        }
+        level.close();
+
+        ShardedFileLevel reopened = new ShardedFileLevel(CacheStrategy.LEAST_RECENTLY_USED, 80, 0, new BinarySerializer(), roots, true, false);
+        try {
+            assertEquals("Level reopened with the smaller size must displace items.", 80, reopened.size());
+            int found = 0;
+            for (int i = 0; i < 100; i++) {
+                Cacheable cacheable = reopened.get(i);
+                if (cacheable != null) {
+                    assertEquals("Item was changed by reopen.", new TestCacheData(i, "testCacheData" + i), cacheable);
+                    found++;
+                }
+            }
+            assertEquals("Wrong quantity of restored items.", 80, found);
+        } finally {
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ru.elomonosov.serializer;
+
+import org.junit.Test;
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.cache.TestCacheData;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class BinarySerializerTest {
+
+    private static class TestCacheDataCodec implements CacheCodec<TestCacheData> {
+
+        @Override
+        public void write(TestCacheData cacheable, DataOutput out) throws IOException {
+            BinarySerializer.writeVarLong(cacheable.getId(), out);
+            out.writeBoolean(cacheable.getObject() != null);
+            if (cacheable.getObject() != null) {
+                out.writeUTF(cacheable.getObject());
+            }
+        }
+
+        @Override
+        public TestCacheData read(DataInput in) throws IOException {
+            long id = BinarySerializer.readVarLong(in);
+            return new TestCacheData(id, in.readBoolean() ? in.readUTF() : null);
+        }
+    }
+
+    @Test
+    public void testRegisteredCodec() throws Exception {
+        BinarySerializer serializer = new BinarySerializer().register(7, TestCacheData.class, new TestCacheDataCodec());
+        for (long id : new long[]{0, -1, 300, Long.MIN_VALUE, Long.MAX_VALUE}) {
+            TestCacheData data = new TestCacheData(id, (id == 0) ? null : "testCacheData" + id);
+            byte[] serialized = serializer.serialize(data);
+            assertEquals("Item was changed by serialization.", data, serializer.deserialize(serialized, 0, serialized.length));
+            assertTrue("Codec format must be more compact than java serialization.",
+                    serialized.length < new JavaSerializer().serialize(data).length / 2);
+        }
+    }
+
+    @Test
+    public void testJavaFallback() throws Exception {
+        BinarySerializer serializer = new BinarySerializer();
+        TestCacheData data = new TestCacheData(42, "testCacheData42");
+        byte[] item = serializer.serialize(data);
+        byte[] serialized = new byte[item.length + 3]; // item in the middle of the array
+        System.arraycopy(item, 0, serialized, 3, item.length);
+        Cacheable result = serializer.deserialize(serialized, 3, item.length);
+        assertEquals("Item was changed by serialization.", data, result);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateTypeId() throws Exception {
+        new BinarySerializer().register(1, TestCacheData.class, new TestCacheDataCodec()).register(1, TestCacheData.class, new TestCacheDataCodec());
+    }
+}
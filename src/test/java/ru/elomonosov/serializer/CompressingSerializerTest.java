@@ -0,0 +1,76 @@
+package ru.elomonosov.serializer;
+
+import org.junit.Test;
+import ru.elomonosov.cache.Cacheable;
+import ru.elomonosov.cache.TestCacheData;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressingSerializerTest {
+
+    private static String repetitive(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            builder.append("testCacheData").append(builder.length() % 7);
+        }
+        return builder.substring(0, length);
+    }
+
+    private static String random(int length) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) (33 + random.nextInt(94)));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        BinarySerializer binarySerializer = new BinarySerializer();
+        TestCacheData data = new TestCacheData(42, repetitive(4096));
+        int rawLength = binarySerializer.serialize(data).length;
+        for (Compression compression : new Compression[]{Compression.FAST, Compression.DEFLATE}) {
+            CompressingSerializer serializer = new CompressingSerializer(binarySerializer, compression);
+            byte[] item = serializer.serialize(data);
+            assertTrue(compression + " must compress repetitive data several times.", item.length < rawLength / 4);
+            byte[] serialized = new byte[item.length + 3]; // item in the middle of the array
+            System.arraycopy(item, 0, serialized, 3, item.length);
+            assertEquals("Item was changed by " + compression + " compression.", data,
+                    serializer.deserialize(serialized, 3, item.length));
+        }
+    }
+
+    @Test
+    public void testStored() throws Exception {
+        BinarySerializer binarySerializer = new BinarySerializer();
+        CompressingSerializer serializer = new CompressingSerializer(binarySerializer, Compression.FAST);
+        TestCacheData small = new TestCacheData(1, repetitive(CompressingSerializer.DEFAULT_THRESHOLD / 2));
+        TestCacheData incompressible = new TestCacheData(2, random(4096));
+        for (TestCacheData data : new TestCacheData[]{small, incompressible}) {
+            byte[] serialized = serializer.serialize(data);
+            assertEquals("Item must be stored with the one byte header.", binarySerializer.serialize(data).length + 1, serialized.length);
+            assertEquals("Item was changed by serialization.", data, serializer.deserialize(serialized, 0, serialized.length));
+        }
+    }
+
+    @Test
+    public void testAnyCompressionReads() throws Exception {
+        BinarySerializer binarySerializer = new BinarySerializer();
+        TestCacheData data = new TestCacheData(42, repetitive(1024));
+        byte[] deflated = new CompressingSerializer(binarySerializer, Compression.DEFLATE).serialize(data);
+        Cacheable result = new CompressingSerializer(binarySerializer, Compression.NONE).deserialize(deflated, 0, deflated.length);
+        assertEquals("Deflated item must be read with other compression setting.", data, result);
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupted() throws Exception {
+        CompressingSerializer serializer = new CompressingSerializer(new BinarySerializer(), Compression.FAST);
+        byte[] serialized = serializer.serialize(new TestCacheData(42, repetitive(1024)));
+        serialized[2]++; // original length
+        serializer.deserialize(serialized, 0, serialized.length);
+    }
+}